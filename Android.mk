@@ -26,6 +26,24 @@ LOCAL_SRC_FILES += $(call all-java-files-under,../../../external/koush/Superuser
 LOCAL_RESOURCE_DIR := $(LOCAL_PATH)/res $(LOCAL_PATH)/../../../external/koush/Widgets/Widgets/res $(LOCAL_PATH)/../../../external/koush/Superuser/Superuser/res
 LOCAL_ASSET_DIR := $(LOCAL_PATH)/assets
 
+# Pre-parsed preference xml files for the search index, see tools/
+search_index_src := $(call intermediates-dir-for,APPS,$(LOCAL_PACKAGE_NAME),,COMMON)/search_index/com/android/settings/search/SearchIndexData.java
+search_index_res_dirs := \
+        $(wildcard $(foreach dir,$(PRODUCT_PACKAGE_OVERLAYS) $(DEVICE_PACKAGE_OVERLAYS), \
+                $(dir)/$(LOCAL_PATH)/res)) \
+        $(LOCAL_PATH)/res
+search_index_tool := $(HOST_OUT_JAVA_LIBRARIES)/settings-searchindex$(COMMON_JAVA_PACKAGE_SUFFIX)
+
+$(search_index_src): PRIVATE_RES_DIRS := $(search_index_res_dirs)
+$(search_index_src): $(search_index_tool) \
+        $(foreach dir,$(search_index_res_dirs),$(wildcard $(dir)/xml*/*.xml))
+	@echo "Search index: $@"
+	@mkdir -p $(dir $@)
+	$(hide) java -cp $< com.android.settings.search.tools.SearchIndexCompiler \
+		$@ $(PRIVATE_RES_DIRS)
+
+LOCAL_GENERATED_SOURCES += $(search_index_src)
+
 LOCAL_JAVA_LIBRARIES += org.cyanogenmod.hardware
 
 include $(BUILD_PACKAGE)
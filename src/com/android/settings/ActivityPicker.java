@@ -20,6 +20,7 @@ import android.graphics.ColorFilter;
 import android.util.DisplayMetrics;
 import com.android.internal.app.AlertActivity;
 import com.android.internal.app.AlertController;
+import com.android.settings.applications.PackageCatalog;
 
 import android.app.Activity;
 import android.content.Context;
@@ -180,6 +181,19 @@ public class ActivityPicker extends AlertActivity implements
      * Fill the given list with any activities matching the base {@link Intent}. 
      */
     protected void putIntentItems(Intent baseIntent, List<PickAdapter.Item> items) {
+        if (isLauncherIntent(baseIntent)) {
+            PackageCatalog catalog = PackageCatalog.getInstance(this);
+            if (catalog.isLoaded()) {
+                // Already resolved and sorted
+                for (PackageCatalog.ActivityEntry activity : catalog.getActivities(null)) {
+                    items.add(new PickAdapter.Item(this, catalog, activity));
+                }
+                return;
+            }
+            // Resolve directly this time, the catalog is ready for the next picker
+            catalog.load();
+        }
+
         PackageManager packageManager = getPackageManager();
         List<ResolveInfo> list = packageManager.queryIntentActivities(baseIntent,
                 0 /* no flags */);
@@ -191,6 +205,14 @@ public class ActivityPicker extends AlertActivity implements
             items.add(new PickAdapter.Item(this, packageManager, resolveInfo));
         }
     }
+
+    private static boolean isLauncherIntent(Intent intent) {
+        return Intent.ACTION_MAIN.equals(intent.getAction())
+                && intent.getCategories() != null && intent.getCategories().size() == 1
+                && intent.hasCategory(Intent.CATEGORY_LAUNCHER)
+                && intent.getData() == null && intent.getType() == null
+                && intent.getComponent() == null && intent.getPackage() == null;
+    }
     
     /**
      * Adapter which shows the set of activities that can be performed for a
@@ -242,6 +264,17 @@ public class ActivityPicker extends AlertActivity implements
                 className = resolveInfo.activityInfo.name;
             }
 
+            /**
+             * Create a list item for a launcher activity of the
+             * {@link PackageCatalog}.
+             */
+            Item(Context context, PackageCatalog catalog, PackageCatalog.ActivityEntry activity) {
+                label = activity.label;
+                icon = getResizer(context).createIconThumbnail(catalog.getIcon(activity));
+                packageName = activity.componentName.getPackageName();
+                className = activity.componentName.getClassName();
+            }
+
             /**
              * Build the {@link Intent} described by this item. If this item
              * can't create a valid {@link android.content.ComponentName}, it will return
@@ -16,19 +16,19 @@
 
 package com.android.settings;
 
-import java.text.Collator;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
 
 import com.android.settings.applications.AppViewHolder;
+import com.android.settings.applications.PackageCatalog;
 
 import android.app.ActivityManagerNative;
 import android.app.ListActivity;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ApplicationInfo;
+import android.graphics.drawable.Drawable;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Process;
@@ -77,38 +77,66 @@ public class AppPicker extends ListActivity {
     class MyApplicationInfo {
         ApplicationInfo info;
         CharSequence label;
+        PackageCatalog.Entry entry;
     }
 
-    public class AppListAdapter extends ArrayAdapter<MyApplicationInfo> {
-        private final List<MyApplicationInfo> mPackageInfoList = new ArrayList<MyApplicationInfo>();
+    private static final PackageCatalog.Filter DEBUGGABLE_FILTER = new PackageCatalog.Filter() {
+        @Override
+        public boolean accept(PackageCatalog.Entry entry) {
+            ApplicationInfo ai = entry.info;
+            if (ai.uid == Process.SYSTEM_UID) {
+                return false;
+            }
+            // On a user build, we only allow debugging of apps that
+            // are marked as debuggable.  Otherwise (for platform development)
+            // we allow all apps.
+            if ((ai.flags&ApplicationInfo.FLAG_DEBUGGABLE) == 0
+                    && "user".equals(Build.TYPE)) {
+                return false;
+            }
+            return true;
+        }
+    };
+
+    public class AppListAdapter extends ArrayAdapter<MyApplicationInfo>
+            implements PackageCatalog.Listener {
+        private final PackageCatalog mCatalog;
         private final LayoutInflater mInflater;
+        private final Drawable mDefaultIcon;
+        // Icons being loaded in the background, only used on the main thread
+        private final HashSet<PackageCatalog.Entry> mLoadingIcons =
+                new HashSet<PackageCatalog.Entry>();
 
         public AppListAdapter(Context context) {
             super(context, 0);
             mInflater = (LayoutInflater)context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-            List<ApplicationInfo> pkgs = context.getPackageManager().getInstalledApplications(0);
-            for (int i=0; i<pkgs.size(); i++) {
-                ApplicationInfo ai = pkgs.get(i);
-                if (ai.uid == Process.SYSTEM_UID) {
-                    continue;
-                }
-                // On a user build, we only allow debugging of apps that
-                // are marked as debuggable.  Otherwise (for platform development)
-                // we allow all apps.
-                if ((ai.flags&ApplicationInfo.FLAG_DEBUGGABLE) == 0
-                        && "user".equals(Build.TYPE)) {
-                    continue;
-                }
-                MyApplicationInfo info = new MyApplicationInfo();
-                info.info = ai;
-                info.label = info.info.loadLabel(getPackageManager()).toString();
-                mPackageInfoList.add(info);
-            }
-            Collections.sort(mPackageInfoList, sDisplayNameComparator);
+            mCatalog = PackageCatalog.getInstance(context);
+            // shown until the actual app icon is loaded in the background
+            mDefaultIcon = context.getResources().getDrawable(android.R.mipmap.sym_def_app_icon);
+            mCatalog.addListener(this);
+            reloadList();
+        }
+
+        @Override
+        public void onPackageCatalogChanged() {
+            reloadList();
+        }
+
+        private void reloadList() {
+            setNotifyOnChange(false);
+            clear();
             MyApplicationInfo info = new MyApplicationInfo();
-            info.label = context.getText(R.string.no_application);
-            mPackageInfoList.add(0, info);
-            addAll(mPackageInfoList);
+            info.label = getContext().getText(R.string.no_application);
+            add(info);
+            List<PackageCatalog.Entry> entries = mCatalog.getEntries(DEBUGGABLE_FILTER);
+            for (PackageCatalog.Entry entry : entries) {
+                info = new MyApplicationInfo();
+                info.entry = entry;
+                info.info = entry.info;
+                info.label = entry.label;
+                add(info);
+            }
+            notifyDataSetChanged();
         }
 
         @Override
@@ -120,7 +148,14 @@ public class AppPicker extends ListActivity {
             MyApplicationInfo info = getItem(position);
             holder.appName.setText(info.label);
             if (info.info != null) {
-                holder.appIcon.setImageDrawable(info.info.loadIcon(getPackageManager()));
+                Drawable icon = mCatalog.peekIcon(info.entry);
+                if (icon == null) {
+                    icon = mDefaultIcon;
+                    if (mLoadingIcons.add(info.entry)) {
+                        new LoadIconTask(info.entry).execute();
+                    }
+                }
+                holder.appIcon.setImageDrawable(icon);
                 holder.appSize.setText(info.info.packageName);
             } else {
                 holder.appIcon.setImageDrawable(null);
@@ -130,15 +165,27 @@ public class AppPicker extends ListActivity {
             holder.checkBox.setVisibility(View.GONE);
             return convertView;
         }
-    }
 
-    private final static Comparator<MyApplicationInfo> sDisplayNameComparator
-            = new Comparator<MyApplicationInfo>() {
-        public final int
-        compare(MyApplicationInfo a, MyApplicationInfo b) {
-            return collator.compare(a.label, b.label);
-        }
+        /**
+         * Loads the icon of a package into the catalog, then rebinds the rows.
+         */
+        private class LoadIconTask extends AsyncTask<Void, Void, Void> {
+            private final PackageCatalog.Entry mEntry;
 
-        private final Collator collator = Collator.getInstance();
-    };
+            LoadIconTask(PackageCatalog.Entry entry) {
+                mEntry = entry;
+            }
+
+            @Override
+            protected Void doInBackground(Void... params) {
+                mCatalog.getIcon(mEntry);
+                return null;
+            }
+
+            @Override
+            protected void onPostExecute(Void result) {
+                mLoadingIcons.remove(mEntry);
+                notifyDataSetChanged();
+            }
+        }
 }
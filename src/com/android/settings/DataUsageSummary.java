@@ -41,8 +41,6 @@ import static android.net.NetworkTemplate.buildTemplateMobileAll;
 import static android.net.NetworkTemplate.buildTemplateWifiWildcard;
 import static android.net.TrafficStats.GB_IN_BYTES;
 import static android.net.TrafficStats.MB_IN_BYTES;
-import static android.net.TrafficStats.UID_REMOVED;
-import static android.net.TrafficStats.UID_TETHERING;
 import static android.telephony.TelephonyManager.SIM_STATE_READY;
 import static android.text.format.DateUtils.FORMAT_ABBREV_MONTH;
 import static android.text.format.DateUtils.FORMAT_SHOW_DATE;
@@ -59,10 +57,12 @@ import android.app.Fragment;
 import android.app.FragmentManager;
 import android.app.FragmentTransaction;
 import android.app.LoaderManager.LoaderCallbacks;
+import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.Loader;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
@@ -82,11 +82,13 @@ import android.net.NetworkTemplate;
 import android.net.TrafficStats;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.INetworkManagementService;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.os.RemoteException;
 import android.os.ServiceManager;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.preference.Preference;
@@ -98,7 +100,6 @@ import android.text.format.DateUtils;
 import android.text.format.Formatter;
 import android.text.format.Time;
 import android.util.Log;
-import android.util.SparseArray;
 import android.util.SparseBooleanArray;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -132,7 +133,9 @@ import android.widget.TextView;
 
 import com.android.internal.telephony.PhoneConstants;
 import com.android.settings.drawable.InsetBoundsDrawable;
+import com.android.settings.net.AppUsageAggregator;
 import com.android.settings.net.ChartData;
+import com.android.settings.net.ChartDataCache;
 import com.android.settings.net.ChartDataLoader;
 import com.android.settings.net.DataUsageMeteredSettings;
 import com.android.settings.net.NetworkPolicyEditor;
@@ -147,7 +150,6 @@ import com.google.android.collect.Lists;
 import libcore.util.Objects;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 
@@ -187,6 +189,16 @@ public class DataUsageSummary extends Fragment {
     private static final int LOADER_CHART_DATA = 2;
     private static final int LOADER_SUMMARY = 3;
 
+    // Sent by NetworkStatsService after every poll
+    private static final String ACTION_NETWORK_STATS_UPDATED =
+            "com.android.server.action.NETWORK_STATS_UPDATED";
+
+    // How long to wait for fresh stats after resume before reloading anyway
+    private static final long STATS_REFRESH_TIMEOUT = 3 * DateUtils.SECOND_IN_MILLIS;
+
+    // Rows that fit on the first screen of the app list
+    private static final int PREFETCH_DETAILS_COUNT = 10;
+
     private INetworkManagementService mNetworkService;
     private INetworkStatsService mStatsService;
     private NetworkPolicyManager mPolicyManager;
@@ -194,6 +206,12 @@ public class DataUsageSummary extends Fragment {
 
     private INetworkStatsSession mStatsSession;
 
+    private final Handler mHandler = new Handler();
+    private long mResumeTime;
+    private boolean mStatsRefreshPending;
+    private boolean mStatsBroadcastSeen;
+    private boolean mSkipStatsBroadcast;
+
     private static final String PREF_FILE = "data_usage";
     private static final String PREF_SHOW_WIFI = "show_wifi";
     private static final String PREF_SHOW_ETHERNET = "show_ethernet";
@@ -428,15 +446,23 @@ public class DataUsageSummary extends Fragment {
         // selected network, and binds chart, cycles and detail list.
         updateTabs();
 
-        // kick off background task to update stats
+        // reload as soon as the stats service polled fresh stats; the poll
+        // we request here usually reports first, other polls while we're
+        // resumed refresh the body as well
+        mResumeTime = SystemClock.elapsedRealtime();
+        mStatsRefreshPending = true;
+        mStatsBroadcastSeen = false;
+        mSkipStatsBroadcast = false;
+        getActivity().registerReceiver(mStatsUpdatedReceiver,
+                new IntentFilter(ACTION_NETWORK_STATS_UPDATED),
+                android.Manifest.permission.READ_NETWORK_USAGE_HISTORY, mHandler);
+        mHandler.postDelayed(mStatsRefreshTimeout, STATS_REFRESH_TIMEOUT);
+
         new AsyncTask<Void, Void, Void>() {
             @Override
             protected Void doInBackground(Void... params) {
                 try {
-                    // wait a few seconds before kicking off
-                    Thread.sleep(2 * DateUtils.SECOND_IN_MILLIS);
                     mStatsService.forceUpdate();
-                } catch (InterruptedException e) {
                 } catch (RemoteException e) {
                 }
                 return null;
@@ -444,13 +470,67 @@ public class DataUsageSummary extends Fragment {
 
             @Override
             protected void onPostExecute(Void result) {
-                if (isAdded()) {
-                    updateBody();
+                // the poll is done once forceUpdate() returns, its broadcast
+                // usually follows; reload only once for both
+                if (isResumed() && !mStatsBroadcastSeen) {
+                    mSkipStatsBroadcast = true;
+                    onStatsUpdated(true, "poll");
                 }
             }
         }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
     }
 
+    @Override
+    public void onPause() {
+        super.onPause();
+        getActivity().unregisterReceiver(mStatsUpdatedReceiver);
+        mHandler.removeCallbacks(mStatsRefreshTimeout);
+        mStatsRefreshPending = false;
+    }
+
+    private final BroadcastReceiver mStatsUpdatedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mStatsBroadcastSeen = true;
+            if (mSkipStatsBroadcast) {
+                // reloaded for this poll already
+                mSkipStatsBroadcast = false;
+                return;
+            }
+            onStatsUpdated(true, "broadcast");
+        }
+    };
+
+    private final Runnable mStatsRefreshTimeout = new Runnable() {
+        @Override
+        public void run() {
+            onStatsUpdated(false, "timeout");
+        }
+    };
+
+    /**
+     * Reload the chart and summary.
+     *
+     * @param fresh whether the stats service polled, as opposed to giving
+     *     up waiting for it
+     */
+    private void onStatsUpdated(boolean fresh, String reason) {
+        if (mStatsRefreshPending) {
+            Log.i(TAG, (fresh ? "fresh stats " : "no fresh stats yet ")
+                    + (SystemClock.elapsedRealtime() - mResumeTime) + "ms after resume ("
+                    + reason + ")");
+            mStatsRefreshPending = !fresh;
+            mHandler.removeCallbacks(mStatsRefreshTimeout);
+        }
+
+        // everything cached before is stale; on timeout the poll may still
+        // have happened without us hearing about it
+        ChartDataCache.invalidate();
+        if (isAdded()) {
+            updateBody();
+        }
+    }
+
     @Override
     public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
         inflater.inflate(R.menu.data_usage, menu);
@@ -1253,6 +1333,7 @@ public class DataUsageSummary extends Fragment {
                     POLICY_REJECT_METERED_BACKGROUND);
             mAdapter.bindStats(data, restrictedUids);
             updateEmptyVisible();
+            prefetchUidDetails();
         }
 
         @Override
@@ -1267,6 +1348,34 @@ public class DataUsageSummary extends Fragment {
         }
     };
 
+    /**
+     * Resolve the details of the largest apps in the background and write
+     * them to the disk cache, then rebind the list with them.
+     */
+    private void prefetchUidDetails() {
+        final UidDetailProvider provider = mUidDetailProvider;
+        final int[] uids = new int[Math.min(PREFETCH_DETAILS_COUNT, mAdapter.getCount())];
+        if (provider == null || uids.length == 0) return;
+        for (int i = 0; i < uids.length; i++) {
+            uids[i] = ((AppItem) mAdapter.getItem(i)).key;
+        }
+
+        new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... params) {
+                provider.prefetch(uids);
+                return null;
+            }
+
+            @Override
+            protected void onPostExecute(Void result) {
+                if (isAdded()) {
+                    mAdapter.notifyDataSetChanged();
+                }
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
     @Deprecated
     private boolean isMobilePolicySplit() {
         final Context context = getActivity();
@@ -1489,7 +1598,7 @@ public class DataUsageSummary extends Fragment {
         private final UidDetailProvider mProvider;
         private final int mInsetSide;
 
-        private ArrayList<AppItem> mItems = Lists.newArrayList();
+        private AppUsageAggregator mItems = new AppUsageAggregator(UserHandle.USER_OWNER);
         private long mLargest;
 
         public DataUsageAdapter(UidDetailProvider provider, int insetSide) {
@@ -1501,57 +1610,14 @@ public class DataUsageSummary extends Fragment {
          * Bind the given {@link NetworkStats}, or {@code null} to clear list.
          */
         public void bindStats(NetworkStats stats, int[] restrictedUids) {
-            mItems.clear();
-
-            final int currentUserId = ActivityManager.getCurrentUser();
-            final SparseArray<AppItem> knownItems = new SparseArray<AppItem>();
-
-            NetworkStats.Entry entry = null;
-            final int size = stats != null ? stats.size() : 0;
-            for (int i = 0; i < size; i++) {
-                entry = stats.getValues(i, entry);
-
-                // Decide how to collapse items together
-                final int uid = entry.uid;
-                final int collapseKey;
-                if (UserHandle.isApp(uid)) {
-                    if (UserHandle.getUserId(uid) == currentUserId) {
-                        collapseKey = uid;
-                    } else {
-                        collapseKey = UidDetailProvider.buildKeyForUser(UserHandle.getUserId(uid));
-                    }
-                } else if (uid == UID_REMOVED || uid == UID_TETHERING) {
-                    collapseKey = uid;
-                } else {
-                    collapseKey = android.os.Process.SYSTEM_UID;
-                }
-
-                AppItem item = knownItems.get(collapseKey);
-                if (item == null) {
-                    item = new AppItem(collapseKey);
-                    mItems.add(item);
-                    knownItems.put(item.key, item);
-                }
-                item.addUid(uid);
-                item.total += entry.rxBytes + entry.txBytes;
-            }
-
-            for (int uid : restrictedUids) {
-                // Only splice in restricted state for current user
-                if (UserHandle.getUserId(uid) != currentUserId) continue;
-
-                AppItem item = knownItems.get(uid);
-                if (item == null) {
-                    item = new AppItem(uid);
-                    item.total = -1;
-                    mItems.add(item);
-                    knownItems.put(item.key, item);
-                }
-                item.restricted = true;
-            }
-
-            Collections.sort(mItems);
-            mLargest = (mItems.size() > 0) ? mItems.get(0).total : 0;
+            // Only the rows that get shown are sorted, see AppUsageAggregator
+            final AppUsageAggregator items = new AppUsageAggregator(
+                    ActivityManager.getCurrentUser());
+            items.addStats(stats);
+            items.addRestricted(restrictedUids);
+
+            mItems = items;
+            mLargest = items.getLargest();
             notifyDataSetChanged();
         }
 
@@ -0,0 +1,437 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.drawable.Drawable;
+import android.text.format.Formatter;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * On-disk cache of the labels, sizes and (downsampled) icons of the
+ * {@link ApplicationsState.AppEntry}s, so that lists of apps can be shown
+ * completely right away after the process starts.  Records are keyed by
+ * package name and the modification time of the apk, the whole file is
+ * tied to the locale it was written in.  Sizes read from the cache are
+ * still marked stale, so they get refreshed in the background.
+ *
+ * The file is memory mapped; records are only decoded when looked up, and
+ * icons only when an entry is bound before its real icon was loaded.
+ */
+class AppEntryCache {
+    private static final String TAG = "AppEntryCache";
+    private static final boolean DEBUG = false;
+
+    private static final String FILE_NAME = "app_entries.cache";
+    private static final int MAGIC = 0x41504543; // "APEC"
+    private static final int VERSION = 1;
+
+    // The nine sizes of a record
+    private static final int SIZES_LENGTH = 9 * 8;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Results of writeEntry()
+    private static final int WRITE_SKIPPED = 0;
+    private static final int WRITE_COPIED = 1;
+    private static final int WRITE_COMPRESSED = 2;
+
+    private final Context mContext;
+    private final AppIconCache mIconCache;
+    private final AtomicFile mFile;
+    private final int mIconSize;
+
+    // Set once load() finished, entries created before miss the cache
+    private volatile boolean mLoaded;
+
+    // Guarded by 'this'
+    private ByteBuffer mBuffer;
+    private String mLocale;
+    private final HashMap<String, Integer> mOffsets = new HashMap<String, Integer>();
+
+    AppEntryCache(Context context, AppIconCache iconCache) {
+        mContext = context;
+        mIconCache = iconCache;
+        mFile = new AtomicFile(new File(context.getCacheDir(), FILE_NAME));
+        mIconSize = context.getResources().getDimensionPixelSize(
+                android.R.dimen.app_icon_size);
+    }
+
+    /**
+     * Map the cache file and index its records.  Must not be called on the
+     * main thread.
+     */
+    synchronized void load() {
+        mBuffer = null;
+        mOffsets.clear();
+        try {
+            loadLocked();
+        } finally {
+            mLoaded = true;
+        }
+    }
+
+    private void loadLocked() {
+
+        FileInputStream in = null;
+        try {
+            in = mFile.openRead();
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return;
+            }
+            String locale = readString(buffer);
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                int offset = buffer.position();
+                String packageName = readString(buffer);
+                // stamp, label, normalized label, sizes and icon
+                buffer.getLong();
+                skipString(buffer);
+                skipString(buffer);
+                skip(buffer, SIZES_LENGTH);
+                skip(buffer, Math.max(readCount(buffer), 0));
+                mOffsets.put(packageName, offset);
+            }
+            mBuffer = buffer;
+            mLocale = locale;
+        } catch (IOException e) {
+            // No cache yet
+        } catch (BufferUnderflowException e) {
+            Log.w(TAG, "Ignoring corrupt cache");
+            mOffsets.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignored, the mapping stays valid
+                }
+            }
+        }
+    }
+
+    /**
+     * Fill in label and sizes of a new entry from the cache, noting whether
+     * it has an icon for {@link #loadIcon}.
+     * @return whether a matching record was found
+     */
+    boolean apply(ApplicationsState.AppEntry entry) {
+        if (!mLoaded) {
+            return false;
+        }
+        synchronized (this) {
+            try {
+                return applyLocked(entry);
+            } catch (BufferUnderflowException e) {
+                discardCorruptLocked();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Stop using a file found to be corrupt, the next save replaces it.
+     */
+    private void discardCorruptLocked() {
+        Log.w(TAG, "Ignoring corrupt cache");
+        mBuffer = null;
+        mOffsets.clear();
+    }
+
+    private ByteBuffer findRecordLocked(ApplicationsState.AppEntry entry) {
+        Integer offset = mOffsets.get(entry.info.packageName);
+        if (offset == null || !getLocale().equals(mLocale)) {
+            return null;
+        }
+
+        ByteBuffer buffer = mBuffer.duplicate();
+        buffer.position(offset);
+        skipString(buffer);
+        long stamp = buffer.getLong();
+        if (stamp == 0 || stamp != entry.apkFile.lastModified()) {
+            return null;
+        }
+        return buffer;
+    }
+
+    private boolean applyLocked(ApplicationsState.AppEntry entry) {
+        ByteBuffer buffer = findRecordLocked(entry);
+        if (buffer == null) {
+            return false;
+        }
+
+        // Read the whole record first, so a corrupt one changes nothing
+        String label = readString(buffer);
+        String normalizedLabel = readString(buffer);
+        long[] sizes = new long[SIZES_LENGTH / 8];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = buffer.getLong();
+        }
+        boolean hasIcon = readCount(buffer) > 0;
+
+        synchronized (entry) {
+            entry.setLabelLocked(label);
+            entry.normalizedLabel = normalizedLabel;
+            entry.mounted = true;
+            entry.size = sizes[0];
+            entry.internalSize = sizes[1];
+            entry.externalSize = sizes[2];
+            entry.cacheSize = sizes[3];
+            entry.codeSize = sizes[4];
+            entry.dataSize = sizes[5];
+            entry.externalCodeSize = sizes[6];
+            entry.externalDataSize = sizes[7];
+            entry.externalCacheSize = sizes[8];
+            entry.sizeStr = getSizeStr(entry.size);
+            entry.internalSizeStr = getSizeStr(entry.internalSize);
+            entry.externalSizeStr = getSizeStr(entry.externalSize);
+
+            entry.hasCachedIcon = hasIcon;
+        }
+        return true;
+    }
+
+    /**
+     * Decode the cached icon of an entry and add it to the icon cache.
+     * @return the icon, or null if the record is gone or has none
+     */
+    Drawable loadIcon(ApplicationsState.AppEntry entry) {
+        byte[] data;
+        synchronized (this) {
+            data = readIconLocked(entry);
+        }
+        if (data == null) {
+            return null;
+        }
+
+        Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
+        return bitmap != null ? mIconCache.put(entry, bitmap) : null;
+    }
+
+    /**
+     * Write the given entries to disk, replacing the previous contents.
+     * Icons of apks that didn't change are copied over as they are, only
+     * new ones get compressed.  Must not be called on the main thread.
+     */
+    void save(List<ApplicationsState.AppEntry> entries) {
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(records);
+        int count = 0;
+        int compressed = 0;
+        try {
+            for (ApplicationsState.AppEntry entry : entries) {
+                byte[] icon;
+                synchronized (this) {
+                    icon = readIconLocked(entry);
+                }
+                int result = writeEntry(out, entry, icon);
+                if (result != WRITE_SKIPPED) {
+                    count++;
+                }
+                if (result == WRITE_COMPRESSED) {
+                    compressed++;
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to serialize app entries", e);
+            return;
+        }
+        if (DEBUG) Log.d(TAG, "Saving " + count + " entries, " + compressed + " new icons");
+
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            DataOutputStream fileOut = new DataOutputStream(new BufferedOutputStream(fos));
+            fileOut.writeInt(MAGIC);
+            fileOut.writeInt(VERSION);
+            writeString(fileOut, getLocale());
+            fileOut.writeInt(count);
+            records.writeTo(fileOut);
+            fileOut.flush();
+            mFile.finishWrite(fos);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write " + FILE_NAME, e);
+            mFile.failWrite(fos);
+            return;
+        }
+
+        // Icons of the next save are copied from the new file
+        synchronized (this) {
+            mBuffer = null;
+            mOffsets.clear();
+            loadLocked();
+        }
+    }
+
+    /**
+     * @return the compressed icon of the entry's record, if the apk didn't
+     * change since it was written, or null
+     */
+    private byte[] readIconLocked(ApplicationsState.AppEntry entry) {
+        try {
+            ByteBuffer buffer = findRecordLocked(entry);
+            if (buffer == null) {
+                return null;
+            }
+            skipString(buffer);
+            skipString(buffer);
+            skip(buffer, SIZES_LENGTH);
+            int iconLength = readCount(buffer);
+            if (iconLength <= 0) {
+                return null;
+            }
+            byte[] data = new byte[iconLength];
+            buffer.get(data);
+            return data;
+        } catch (BufferUnderflowException e) {
+            discardCorruptLocked();
+            return null;
+        }
+    }
+
+    /**
+     * @param icon the previously written icon, used instead of compressing
+     *        the entry's icon again, or null
+     * @return one of {@link #WRITE_SKIPPED}, {@link #WRITE_COPIED} or
+     *         {@link #WRITE_COMPRESSED}
+     */
+    private int writeEntry(DataOutputStream out, ApplicationsState.AppEntry entry, byte[] icon)
+            throws IOException {
+        synchronized (entry) {
+            long stamp = entry.apkFile.lastModified();
+            if (entry.label == null || !entry.mounted || stamp == 0) {
+                return WRITE_SKIPPED;
+            }
+            writeString(out, entry.info.packageName);
+            out.writeLong(stamp);
+            writeString(out, entry.label);
+            writeString(out, entry.getNormalizedLabel());
+            out.writeLong(entry.size);
+            out.writeLong(entry.internalSize);
+            out.writeLong(entry.externalSize);
+            out.writeLong(entry.cacheSize);
+            out.writeLong(entry.codeSize);
+            out.writeLong(entry.dataSize);
+            out.writeLong(entry.externalCodeSize);
+            out.writeLong(entry.externalDataSize);
+            out.writeLong(entry.externalCacheSize);
+
+            int result = WRITE_COPIED;
+            if (icon == null) {
+                icon = compressIcon(entry.icon);
+                result = WRITE_COMPRESSED;
+            }
+            out.writeInt(icon != null ? icon.length : 0);
+            if (icon != null) {
+                out.write(icon);
+            }
+            return result;
+        }
+    }
+
+    private byte[] compressIcon(Drawable icon) {
+        if (icon == null || icon.getConstantState() == null) {
+            return null;
+        }
+        // Draw a copy, the original may be in use by the UI
+        Drawable d = icon.getConstantState().newDrawable(mContext.getResources());
+        Bitmap bitmap = Bitmap.createBitmap(mIconSize, mIconSize, Bitmap.Config.ARGB_8888);
+        d.setBounds(0, 0, mIconSize, mIconSize);
+        d.draw(new Canvas(bitmap));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        bitmap.recycle();
+        return out.toByteArray();
+    }
+
+    private String getLocale() {
+        return mContext.getResources().getConfiguration().locale.toString();
+    }
+
+    private String getSizeStr(long size) {
+        if (size >= 0) {
+            return Formatter.formatFileSize(mContext, size);
+        }
+        return null;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] data = s.getBytes(UTF_8);
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    /**
+     * Read the length of the bytes that follow; -1 stands for null.
+     * @throws BufferUnderflowException if the buffer doesn't hold that many,
+     *         so corrupt data never gets us to allocate or skip past the end
+     */
+    private static int readCount(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < -1 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        return length;
+    }
+
+    private static void skip(ByteBuffer buffer, int length) {
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        buffer.position(buffer.position() + length);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = readCount(buffer);
+        if (length < 0) {
+            return null;
+        }
+        byte[] data = new byte[length];
+        buffer.get(data);
+        return new String(data, UTF_8);
+    }
+
+    private static void skipString(ByteBuffer buffer) {
+        skip(buffer, Math.max(readCount(buffer), 0));
+    }
+}
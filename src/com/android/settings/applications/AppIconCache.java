@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.LruCache;
+
+import java.io.PrintWriter;
+
+/**
+ * Icons of the {@link ApplicationsState.AppEntry}s, rendered at list row
+ * size and bounded by the number of bytes their bitmaps take.  Evicted
+ * icons are dropped from their entry, so they get loaded again the next
+ * time the entry is bound to a row.
+ */
+class AppIconCache {
+    private final Context mContext;
+    private final int mIconSize;
+    private final LruCache<ApplicationsState.AppEntry, BitmapDrawable> mCache;
+    // Set once the cache had to evict, read by the background thread
+    private volatile boolean mFull;
+
+    AppIconCache(Context context) {
+        mContext = context;
+        mIconSize = context.getResources().getDimensionPixelSize(
+                android.R.dimen.app_icon_size);
+
+        ActivityManager am = (ActivityManager) context.getSystemService(
+                Context.ACTIVITY_SERVICE);
+        int maxBytes = am.getMemoryClass() * 1024 * 1024 / (am.isLowRamDevice() ? 16 : 8);
+        mCache = new LruCache<ApplicationsState.AppEntry, BitmapDrawable>(maxBytes) {
+            @Override
+            protected int sizeOf(ApplicationsState.AppEntry entry, BitmapDrawable icon) {
+                return icon.getBitmap().getByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, ApplicationsState.AppEntry entry,
+                    BitmapDrawable oldIcon, BitmapDrawable newIcon) {
+                // Not locking the entry, we may hold the lock of another one.
+                // At worst an icon that was just set gets loaded again.
+                if (evicted) {
+                    mFull = true;
+                    if (entry.icon == oldIcon) {
+                        entry.icon = null;
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Load the icon of an entry at list row size and add it to the cache.
+     */
+    Drawable load(ApplicationsState.AppEntry entry, PackageManager pm) {
+        Drawable icon = entry.info.loadIcon(pm);
+        Bitmap bitmap = Bitmap.createBitmap(mIconSize, mIconSize, Bitmap.Config.ARGB_8888);
+        icon.setBounds(0, 0, mIconSize, mIconSize);
+        icon.draw(new Canvas(bitmap));
+        return put(entry, bitmap);
+    }
+
+    /**
+     * Add an already downsampled icon to the cache.
+     */
+    Drawable put(ApplicationsState.AppEntry entry, Bitmap bitmap) {
+        BitmapDrawable icon = new BitmapDrawable(mContext.getResources(), bitmap);
+        mCache.put(entry, icon);
+        return icon;
+    }
+
+    /**
+     * Mark the icon of an entry as recently used.
+     * @return whether the icon is still cached
+     */
+    boolean touch(ApplicationsState.AppEntry entry) {
+        return mCache.get(entry) != null;
+    }
+
+    void remove(ApplicationsState.AppEntry entry) {
+        mCache.remove(entry);
+    }
+
+    void clear() {
+        mCache.evictAll();
+        mFull = false;
+    }
+
+    /**
+     * Whether the cache ran out of room, so loading icons ahead of time
+     * would only evict others.  Trimming never brings the size back to
+     * exactly the maximum, so this is tracked from the first eviction.
+     */
+    boolean isFull() {
+        return mFull;
+    }
+
+    void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix); writer.print("Icon cache: ");
+                writer.print(mCache.size() / 1024); writer.print("/");
+                writer.print(mCache.maxSize() / 1024); writer.println(" KiB");
+        writer.print(prefix); writer.print("  hits="); writer.print(mCache.hitCount());
+                writer.print(" misses="); writer.print(mCache.missCount());
+                writer.print(" evictions="); writer.println(mCache.evictionCount());
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.app.AppOpsManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Process wide cache of what {@link AppOpsState} builds its lists from, so
+ * the tabs of the app ops screen and the details of an app don't query and
+ * walk every package again:
+ *  - the ops each package has through its granted permissions, found with
+ *    a reverse index from permission to ops and kept up to date from
+ *    package broadcasts.
+ *  - the recorded ops of all packages, read with a single query and
+ *    dropped when an op mode changes, or after a few seconds since they
+ *    carry usage times.
+ *
+ * All getters may do IPC, so must not be called on the main thread.
+ */
+final class AppOpsCache {
+    private static final String TAG = "AppOpsCache";
+    private static final boolean DEBUG = AppOpsState.DEBUG;
+
+    // How long the recorded ops are reused
+    private static final long OPS_MAX_AGE = 10 * 1000;
+
+    /** Reverse of AppOpsManager.opToPermission() */
+    private static final HashMap<String, int[]> sPermissionOps = new HashMap<String, int[]>();
+
+    static {
+        for (int op = 0; op < AppOpsManager._NUM_OP; op++) {
+            String perm = AppOpsManager.opToPermission(op);
+            if (perm == null) {
+                continue;
+            }
+            int[] ops = sPermissionOps.get(perm);
+            if (ops == null) {
+                ops = new int[] { op };
+            } else {
+                ops = Arrays.copyOf(ops, ops.length + 1);
+                ops[ops.length - 1] = op;
+            }
+            sPermissionOps.put(perm, ops);
+        }
+    }
+
+    /**
+     * An installed package and the ops it has through its permissions.
+     */
+    static final class PackageEntry {
+        final ApplicationInfo info;
+        private final BitSet mPermissionOps = new BitSet(AppOpsManager._NUM_OP);
+        // Guarded by the cache
+        private String mLabel;
+
+        PackageEntry(PackageInfo pi) {
+            info = pi.applicationInfo;
+            if (pi.requestedPermissions == null) {
+                return;
+            }
+            for (int i = 0; i < pi.requestedPermissions.length; i++) {
+                if (pi.requestedPermissionsFlags != null
+                        && (pi.requestedPermissionsFlags[i]
+                                & PackageInfo.REQUESTED_PERMISSION_GRANTED) == 0) {
+                    continue;
+                }
+                int[] ops = sPermissionOps.get(pi.requestedPermissions[i]);
+                if (ops != null) {
+                    for (int op : ops) {
+                        mPermissionOps.set(op);
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return whether the package was granted the permission of the op
+         */
+        boolean hasPermissionOp(int op) {
+            return mPermissionOps.get(op);
+        }
+
+        boolean hasAnyPermissionOp(BitSet ops) {
+            return mPermissionOps.intersects(ops);
+        }
+    }
+
+    private static AppOpsCache sInstance;
+
+    static synchronized AppOpsCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AppOpsCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private final Context mContext;
+    private final PackageManager mPm;
+    private final AppOpsManager mAppOps;
+
+    // Guarded by 'this'
+    private HashMap<String, PackageEntry> mPackages;
+    private List<AppOpsManager.PackageOps> mOps;
+    private boolean mWatching;
+
+    // Written from broadcasts and op change callbacks
+    private volatile long mOpsTime;
+    private final HashSet<String> mChangedPackages = new HashSet<String>();
+    private boolean mReloadAll;
+
+    private AppOpsCache(Context context) {
+        mContext = context;
+        mPm = context.getPackageManager();
+        mAppOps = (AppOpsManager) context.getSystemService(Context.APP_OPS_SERVICE);
+    }
+
+    /**
+     * @return all installed packages
+     */
+    synchronized List<PackageEntry> getPackages() {
+        updatePackagesLocked();
+        return new ArrayList<PackageEntry>(mPackages.values());
+    }
+
+    /**
+     * @return the installed package, or null
+     */
+    synchronized PackageEntry getPackage(String packageName) {
+        updatePackagesLocked();
+        return mPackages.get(packageName);
+    }
+
+    /**
+     * @return the label of the app, loaded once per package
+     */
+    synchronized String getLabel(ApplicationInfo info) {
+        updatePackagesLocked();
+        PackageEntry entry = mPackages.get(info.packageName);
+        if (entry != null && entry.mLabel != null) {
+            return entry.mLabel;
+        }
+        CharSequence label = info.loadLabel(mPm);
+        String result = label != null ? label.toString() : info.packageName;
+        if (entry != null) {
+            entry.mLabel = result;
+        }
+        return result;
+    }
+
+    /**
+     * Same as AppOpsManager.getPackagesForOps(), or getOpsForPackage() if a
+     * package is given, answered from the cached ops of all packages.
+     */
+    synchronized List<AppOpsManager.PackageOps> getOps(int[] ops, int uid, String packageName) {
+        startWatchingLocked();
+        long now = SystemClock.elapsedRealtime();
+        if (mOps == null || mOpsTime == 0 || now - mOpsTime > OPS_MAX_AGE) {
+            // Stamped first, so changes during the query invalidate it
+            mOpsTime = now;
+            mOps = mAppOps.getPackagesForOps(null);
+            if (mOps == null) {
+                mOps = new ArrayList<AppOpsManager.PackageOps>();
+            }
+            if (DEBUG) Log.d(TAG, "Read ops of " + mOps.size() + " packages");
+        }
+
+        BitSet wanted = new BitSet(AppOpsManager._NUM_OP);
+        for (int op : ops) {
+            wanted.set(op);
+        }
+        ArrayList<AppOpsManager.PackageOps> result = new ArrayList<AppOpsManager.PackageOps>();
+        for (AppOpsManager.PackageOps pkgOps : mOps) {
+            if (packageName != null && (pkgOps.getUid() != uid
+                    || !packageName.equals(pkgOps.getPackageName()))) {
+                continue;
+            }
+            ArrayList<AppOpsManager.OpEntry> matching = null;
+            for (AppOpsManager.OpEntry op : pkgOps.getOps()) {
+                if (wanted.get(op.getOp())) {
+                    if (matching == null) {
+                        matching = new ArrayList<AppOpsManager.OpEntry>();
+                    }
+                    matching.add(op);
+                }
+            }
+            if (matching != null) {
+                result.add(new AppOpsManager.PackageOps(pkgOps.getPackageName(),
+                        pkgOps.getUid(), matching));
+            }
+        }
+        return result;
+    }
+
+    private void startWatchingLocked() {
+        if (mWatching) {
+            return;
+        }
+        mWatching = true;
+
+        IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        mContext.registerReceiver(mReceiver, filter);
+        IntentFilter sdFilter = new IntentFilter();
+        sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
+        sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
+        sdFilter.addAction(Intent.ACTION_LOCALE_CHANGED);
+        mContext.registerReceiver(mReceiver, sdFilter);
+
+        // Mode changes are reported for the switch op
+        BitSet switches = new BitSet(AppOpsManager._NUM_OP);
+        for (int op = 0; op < AppOpsManager._NUM_OP; op++) {
+            switches.set(AppOpsManager.opToSwitch(op));
+        }
+        for (int op = switches.nextSetBit(0); op >= 0; op = switches.nextSetBit(op + 1)) {
+            mAppOps.startWatchingMode(op, null, mOpChangedListener);
+        }
+    }
+
+    private void updatePackagesLocked() {
+        startWatchingLocked();
+        String[] changed;
+        boolean reloadAll;
+        synchronized (mChangedPackages) {
+            reloadAll = mReloadAll || mPackages == null;
+            mReloadAll = false;
+            changed = mChangedPackages.toArray(new String[mChangedPackages.size()]);
+            mChangedPackages.clear();
+        }
+
+        if (reloadAll) {
+            long start = DEBUG ? SystemClock.elapsedRealtime() : 0;
+            List<PackageInfo> packages = mPm.getInstalledPackages(
+                    PackageManager.GET_PERMISSIONS);
+            mPackages = new HashMap<String, PackageEntry>(packages.size());
+            for (PackageInfo pi : packages) {
+                mPackages.put(pi.packageName, new PackageEntry(pi));
+            }
+            if (DEBUG) Log.d(TAG, "Loaded " + mPackages.size() + " packages in "
+                    + (SystemClock.elapsedRealtime() - start) + "ms");
+            return;
+        }
+
+        for (String packageName : changed) {
+            mPackages.remove(packageName);
+            try {
+                PackageInfo pi = mPm.getPackageInfo(packageName, PackageManager.GET_PERMISSIONS);
+                mPackages.put(packageName, new PackageEntry(pi));
+            } catch (PackageManager.NameNotFoundException e) {
+                // Removed or unavailable
+            }
+        }
+    }
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String action = intent.getAction();
+            if (Intent.ACTION_LOCALE_CHANGED.equals(action)) {
+                // Drops the labels
+                synchronized (mChangedPackages) {
+                    mReloadAll = true;
+                }
+                return;
+            }
+
+            String[] pkgList;
+            if (Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE.equals(action)
+                    || Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE.equals(action)) {
+                pkgList = intent.getStringArrayExtra(Intent.EXTRA_CHANGED_PACKAGE_LIST);
+            } else {
+                pkgList = new String[] { intent.getData().getEncodedSchemeSpecificPart() };
+            }
+            if (pkgList != null) {
+                synchronized (mChangedPackages) {
+                    mChangedPackages.addAll(Arrays.asList(pkgList));
+                }
+            }
+            mOpsTime = 0;
+        }
+    };
+
+    private final AppOpsManager.OnOpChangedListener mOpChangedListener =
+            new AppOpsManager.OnOpChangedListener() {
+        @Override
+        public void onOpChanged(int op, String packageName) {
+            mOpsTime = 0;
+        }
+    };
+}
@@ -20,9 +20,7 @@ import android.app.Activity;
 import android.app.AppOpsManager;
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
-import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.Resources;
 import android.content.SharedPreferences;
 import android.graphics.drawable.Drawable;
@@ -37,6 +35,7 @@ import com.android.settings.R;
 import java.io.File;
 import java.text.Collator;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -51,6 +50,7 @@ public class AppOpsState {
     final PackageManager mPm;
     final CharSequence[] mOpSummaries;
     final CharSequence[] mOpLabels;
+    final AppOpsCache mCache;
 
     List<AppOpEntry> mApps;
 
@@ -60,6 +60,7 @@ public class AppOpsState {
         mContext = context;
         mAppOps = (AppOpsManager)context.getSystemService(Context.APP_OPS_SERVICE);
         mPm = context.getPackageManager();
+        mCache = AppOpsCache.getInstance(context);
         mOpSummaries = context.getResources().getTextArray(R.array.app_ops_summaries_cm);
         mOpLabels = context.getResources().getTextArray(R.array.app_ops_labels_cm);
         mPreferences = context.getSharedPreferences("appops_manager", Activity.MODE_PRIVATE);
@@ -309,8 +310,7 @@ public class AppOpsState {
                     mLabel = mInfo.packageName;
                 } else {
                     mMounted = true;
-                    CharSequence label = mInfo.loadLabel(context.getPackageManager());
-                    mLabel = label != null ? label.toString() : mInfo.packageName;
+                    mLabel = mState.mCache.getLabel(mInfo);
                 }
             }
         }
@@ -523,6 +523,12 @@ public class AppOpsState {
     private AppEntry getAppEntry(final Context context, final HashMap<String, AppEntry> appEntries,
             final String packageName, ApplicationInfo appInfo, boolean applyFilters) {
 
+        if (appInfo == null) {
+            AppOpsCache.PackageEntry pkg = mCache.getPackage(packageName);
+            if (pkg != null) {
+                appInfo = pkg.info;
+            }
+        }
         if (appInfo == null) {
             try {
                 appInfo = mPm.getApplicationInfo(packageName,
@@ -572,6 +578,7 @@ public class AppOpsState {
 
         final ArrayList<String> perms = new ArrayList<String>();
         final ArrayList<Integer> permOps = new ArrayList<Integer>();
+        final BitSet permOpsSet = new BitSet(AppOpsManager._NUM_OP);
         final int[] opToOrder = new int[AppOpsManager._NUM_OP];
         for (int i=0; i<tpl.ops.length; i++) {
             if (tpl.showPerms[i]) {
@@ -579,6 +586,7 @@ public class AppOpsState {
                 if (perm != null && !perms.contains(perm)) {
                     perms.add(perm);
                     permOps.add(tpl.ops[i]);
+                    permOpsSet.set(tpl.ops[i]);
                     opToOrder[tpl.ops[i]] = i;
                 }
             }
@@ -587,85 +595,64 @@ public class AppOpsState {
         // Whether to apply hide user / system app filters
         final boolean applyFilters = (packageName == null);
 
-        List<AppOpsManager.PackageOps> pkgs;
-        if (packageName != null) {
-            pkgs = mAppOps.getOpsForPackage(uid, packageName, tpl.ops);
-        } else {
-            pkgs = mAppOps.getPackagesForOps(tpl.ops);
-        }
-
-        if (pkgs != null) {
-            for (int i=0; i<pkgs.size(); i++) {
-                AppOpsManager.PackageOps pkgOps = pkgs.get(i);
-                AppEntry appEntry = getAppEntry(context, appEntries, pkgOps.getPackageName(), null,
-                        applyFilters);
-                if (appEntry == null) {
-                    continue;
-                }
-                for (int j=0; j<pkgOps.getOps().size(); j++) {
-                    AppOpsManager.OpEntry opEntry = pkgOps.getOps().get(j);
-                    addOp(entries, pkgOps, appEntry, opEntry, packageName == null,
-                            packageName == null ? 0 : opToOrder[opEntry.getOp()]);
-                }
+        List<AppOpsManager.PackageOps> pkgs = mCache.getOps(tpl.ops, uid, packageName);
+        for (int i=0; i<pkgs.size(); i++) {
+            AppOpsManager.PackageOps pkgOps = pkgs.get(i);
+            AppEntry appEntry = getAppEntry(context, appEntries, pkgOps.getPackageName(), null,
+                    applyFilters);
+            if (appEntry == null) {
+                continue;
+            }
+            for (int j=0; j<pkgOps.getOps().size(); j++) {
+                AppOpsManager.OpEntry opEntry = pkgOps.getOps().get(j);
+                addOp(entries, pkgOps, appEntry, opEntry, packageName == null,
+                        packageName == null ? 0 : opToOrder[opEntry.getOp()]);
             }
         }
 
-        List<PackageInfo> apps;
+        // Packages holding the permissions, which may not have used them yet
+        List<AppOpsCache.PackageEntry> apps;
         if (packageName != null) {
-            apps = new ArrayList<PackageInfo>();
-            try {
-                PackageInfo pi = mPm.getPackageInfo(packageName, PackageManager.GET_PERMISSIONS);
-                apps.add(pi);
-            } catch (NameNotFoundException e) {
+            apps = new ArrayList<AppOpsCache.PackageEntry>();
+            AppOpsCache.PackageEntry pkg = mCache.getPackage(packageName);
+            if (pkg != null) {
+                apps.add(pkg);
             }
         } else {
-            String[] permsArray = new String[perms.size()];
-            perms.toArray(permsArray);
-            apps = mPm.getPackagesHoldingPermissions(permsArray, 0);
+            apps = mCache.getPackages();
         }
         for (int i=0; i<apps.size(); i++) {
-            PackageInfo appInfo = apps.get(i);
-            AppEntry appEntry = getAppEntry(context, appEntries, appInfo.packageName,
-                    appInfo.applicationInfo, applyFilters);
+            AppOpsCache.PackageEntry pkg = apps.get(i);
+            if (!pkg.hasAnyPermissionOp(permOpsSet)) {
+                continue;
+            }
+            AppEntry appEntry = getAppEntry(context, appEntries, pkg.info.packageName,
+                    pkg.info, applyFilters);
             if (appEntry == null) {
                 continue;
             }
             List<AppOpsManager.OpEntry> dummyOps = null;
             AppOpsManager.PackageOps pkgOps = null;
-            if (appInfo.requestedPermissions != null) {
-                for (int j=0; j<appInfo.requestedPermissions.length; j++) {
-                    if (appInfo.requestedPermissionsFlags != null) {
-                        if ((appInfo.requestedPermissionsFlags[j]
-                                & PackageInfo.REQUESTED_PERMISSION_GRANTED) == 0) {
-                            if (DEBUG) Log.d(TAG, "Pkg " + appInfo.packageName + " perm "
-                                    + appInfo.requestedPermissions[j] + " not granted; skipping");
-                            continue;
-                        }
-                    }
-                    if (DEBUG) Log.d(TAG, "Pkg " + appInfo.packageName + ": requested perm "
-                            + appInfo.requestedPermissions[j]);
-                    for (int k=0; k<perms.size(); k++) {
-                        if (!perms.get(k).equals(appInfo.requestedPermissions[j])) {
-                            continue;
-                        }
-                        if (DEBUG) Log.d(TAG, "Pkg " + appInfo.packageName + " perm " + perms.get(k)
-                                + " has op " + permOps.get(k) + ": " + appEntry.hasOp(permOps.get(k)));
-                        if (appEntry.hasOp(permOps.get(k))) {
-                            continue;
-                        }
-                        if (dummyOps == null) {
-                            dummyOps = new ArrayList<AppOpsManager.OpEntry>();
-                            pkgOps = new AppOpsManager.PackageOps(
-                                    appInfo.packageName, appInfo.applicationInfo.uid, dummyOps);
-
-                        }
-                        AppOpsManager.OpEntry opEntry = new AppOpsManager.OpEntry(
-                                permOps.get(k), AppOpsManager.MODE_ALLOWED, 0, 0, 0, 0, 0);
-                        dummyOps.add(opEntry);
-                        addOp(entries, pkgOps, appEntry, opEntry, packageName == null,
-                                packageName == null ? 0 : opToOrder[opEntry.getOp()]);
-                    }
+            for (int k=0; k<permOps.size(); k++) {
+                final int op = permOps.get(k);
+                if (!pkg.hasPermissionOp(op)) {
+                    continue;
+                }
+                if (DEBUG) Log.d(TAG, "Pkg " + pkg.info.packageName + " perm " + perms.get(k)
+                        + " has op " + op + ": " + appEntry.hasOp(op));
+                if (appEntry.hasOp(op)) {
+                    continue;
+                }
+                if (dummyOps == null) {
+                    dummyOps = new ArrayList<AppOpsManager.OpEntry>();
+                    pkgOps = new AppOpsManager.PackageOps(
+                            pkg.info.packageName, pkg.info.uid, dummyOps);
                 }
+                AppOpsManager.OpEntry opEntry = new AppOpsManager.OpEntry(
+                        op, AppOpsManager.MODE_ALLOWED, 0, 0, 0, 0, 0);
+                dummyOps.add(opEntry);
+                addOp(entries, pkgOps, appEntry, opEntry, packageName == null,
+                        packageName == null ? 0 : opToOrder[opEntry.getOp()]);
             }
         }
 
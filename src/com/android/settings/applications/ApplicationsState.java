@@ -23,6 +23,8 @@ import android.text.format.Formatter;
 import android.util.Log;
 
 import java.io.File;
+import java.io.PrintWriter;
+import java.text.CollationKey;
 import java.text.Collator;
 import java.text.Normalizer;
 import java.text.Normalizer.Form;
@@ -30,7 +32,17 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 /**
@@ -46,6 +58,11 @@ public class ApplicationsState {
         public void onRunningStateChanged(boolean running);
         public void onPackageListChanged();
         public void onRebuildComplete(ArrayList<AppEntry> apps);
+        // The list last handed out by rebuild() or onRebuildComplete() was
+        // updated in place of a full rebuild; apps is the updated list.
+        public void onEntryInserted(ArrayList<AppEntry> apps, int position);
+        public void onEntryRemoved(ArrayList<AppEntry> apps, int position);
+        public void onEntryMoved(ArrayList<AppEntry> apps, int fromPosition, int toPosition);
         public void onPackageIconChanged();
         public void onPackageSizeChanged(String packageName);
         public void onAllSizesComputed();
@@ -59,6 +76,11 @@ public class ApplicationsState {
     static final int SIZE_UNKNOWN = -1;
     static final int SIZE_INVALID = -2;
 
+    // Number of size requests kept outstanding at once
+    static final int MAX_SIZE_REQUESTS = 4;
+    // A size request without reply after this long is considered lost
+    static final long SIZE_REQUEST_TIMEOUT = 20*1000;
+
     static final Pattern REMOVE_DIACRITICALS_PATTERN
             = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
 
@@ -90,6 +112,8 @@ public class ApplicationsState {
         final File apkFile;
         final long id;
         String label;
+        // Sort key of the label, shared by all comparators
+        CollationKey labelKey;
         long size;
         long internalSize;
         long externalSize;
@@ -106,11 +130,17 @@ public class ApplicationsState {
 
         // Need to synchronize on 'this' for the following.
         ApplicationInfo info;
-        Drawable icon;
+        // May be dropped by AppIconCache at any time, without locking
+        volatile Drawable icon;
+        // Downsampled icon from AppEntryCache, to be replaced by the real one
+        boolean iconFromCache;
+        // AppEntryCache has an icon that was not decoded yet
+        boolean hasCachedIcon;
         String sizeStr;
         String internalSizeStr;
         String externalSizeStr;
-        boolean sizeStale;
+        // Checked by the background thread without locking
+        volatile boolean sizeStale;
         long sizeLoadStart;
 
         String normalizedLabel;
@@ -121,26 +151,42 @@ public class ApplicationsState {
             this.info = info;
             this.size = SIZE_UNKNOWN;
             this.sizeStale = true;
-            ensureLabel(context);
         }
         
-        void ensureLabel(Context context) {
+        synchronized void ensureLabel(Context context) {
             if (this.label == null || !this.mounted) {
                 if (!this.apkFile.exists()) {
                     this.mounted = false;
-                    this.label = info.packageName;
+                    setLabelLocked(info.packageName);
                 } else {
                     this.mounted = true;
                     CharSequence label = info.loadLabel(context.getPackageManager());
-                    this.label = label != null ? label.toString() : info.packageName;
+                    setLabelLocked(label != null ? label.toString() : info.packageName);
                 }
             }
         }
+
+        void setLabelLocked(String label) {
+            this.label = label;
+            this.labelKey = getCollationKey(label);
+        }
         
-        boolean ensureIconLocked(Context context, PackageManager pm) {
+        boolean ensureIconLocked(Context context, PackageManager pm, AppIconCache iconCache) {
+            if (this.iconFromCache) {
+                // Either way it is not picked for loading again
+                this.iconFromCache = false;
+                if (this.apkFile.exists()) {
+                    this.mounted = true;
+                    this.icon = iconCache.load(this, pm);
+                    return true;
+                }
+                // Keep showing the cached icon until the apk comes back
+                this.mounted = false;
+                return false;
+            }
             if (this.icon == null) {
                 if (this.apkFile.exists()) {
-                    this.icon = this.info.loadIcon(pm);
+                    this.icon = iconCache.load(this, pm);
                     return true;
                 } else {
                     this.mounted = false;
@@ -152,7 +198,7 @@ public class ApplicationsState {
                 // its icon.
                 if (this.apkFile.exists()) {
                     this.mounted = true;
-                    this.icon = this.info.loadIcon(pm);
+                    this.icon = iconCache.load(this, pm);
                     return true;
                 }
             }
@@ -160,8 +206,28 @@ public class ApplicationsState {
         }
     }
 
+    // Not thread safe, synchronize on it when used directly.
+    static final Collator sCollator = Collator.getInstance();
+
+    static CollationKey getCollationKey(String label) {
+        if (label == null) {
+            return null;
+        }
+        synchronized (sCollator) {
+            return sCollator.getCollationKey(label);
+        }
+    }
+
+    static int compareLabels(AppEntry object1, AppEntry object2) {
+        if (object1.labelKey != null && object2.labelKey != null) {
+            return object1.labelKey.compareTo(object2.labelKey);
+        }
+        synchronized (sCollator) {
+            return sCollator.compare(object1.label, object2.label);
+        }
+    }
+
     public static final Comparator<AppEntry> ALPHA_COMPARATOR = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             final boolean normal1 = object1.info.enabled
@@ -171,40 +237,37 @@ public class ApplicationsState {
             if (normal1 != normal2) {
                 return normal1 ? -1 : 1;
             }
-            return sCollator.compare(object1.label, object2.label);
+            return compareLabels(object1, object2);
         }
     };
 
     public static final Comparator<AppEntry> SIZE_COMPARATOR
             = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             if (object1.size < object2.size) return 1;
             if (object1.size > object2.size) return -1;
-            return sCollator.compare(object1.label, object2.label);
+            return compareLabels(object1, object2);
         }
     };
 
     public static final Comparator<AppEntry> INTERNAL_SIZE_COMPARATOR
             = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             if (object1.internalSize < object2.internalSize) return 1;
             if (object1.internalSize > object2.internalSize) return -1;
-            return sCollator.compare(object1.label, object2.label);
+            return compareLabels(object1, object2);
         }
     };
 
     public static final Comparator<AppEntry> EXTERNAL_SIZE_COMPARATOR
             = new Comparator<AppEntry>() {
-        private final Collator sCollator = Collator.getInstance();
         @Override
         public int compare(AppEntry object1, AppEntry object2) {
             if (object1.externalSize < object2.externalSize) return 1;
             if (object1.externalSize > object2.externalSize) return -1;
-            return sCollator.compare(object1.label, object2.label);
+            return compareLabels(object1, object2);
         }
     };
 
@@ -269,10 +332,36 @@ public class ApplicationsState {
     PackageIntentReceiver mPackageIntentReceiver;
 
     boolean mResumed;
-    boolean mHaveDisabledApps;
+    volatile boolean mHaveDisabledApps;
+
+    /**
+     * Immutable copy of mApplications, mEntriesMap and mAppEntries, so they
+     * can be read without taking the mEntriesMap lock.  The entries are the
+     * live objects; their own state is still synchronized on each entry.
+     */
+    static final class Snapshot {
+        final List<ApplicationInfo> applications;
+        final Map<String, AppEntry> entriesMap;
+        final List<AppEntry> entries;
+
+        Snapshot(List<ApplicationInfo> applications, Map<String, AppEntry> entriesMap,
+                List<AppEntry> entries) {
+            this.applications = Collections.unmodifiableList(
+                    new ArrayList<ApplicationInfo>(applications));
+            this.entriesMap = Collections.unmodifiableMap(
+                    new HashMap<String, AppEntry>(entriesMap));
+            this.entries = Collections.unmodifiableList(new ArrayList<AppEntry>(entries));
+        }
+    }
+
+    // Latest published Snapshot, replaced as a whole by writers.
+    volatile Snapshot mSnapshot = new Snapshot(new ArrayList<ApplicationInfo>(),
+            new HashMap<String, AppEntry>(), new ArrayList<AppEntry>());
+    // Whether the lists below changed since mSnapshot was published.
+    boolean mSnapshotDirty;
 
     // Information about all applications.  Synchronize on mEntriesMap
-    // to protect access to these.
+    // to protect access to these, or read mSnapshot instead.
     final ArrayList<Session> mSessions = new ArrayList<Session>();
     final ArrayList<Session> mRebuildingSessions = new ArrayList<Session>();
     final InterestingConfigChanges mInterestingConfigChanges = new InterestingConfigChanges();
@@ -280,12 +369,50 @@ public class ApplicationsState {
     final ArrayList<AppEntry> mAppEntries = new ArrayList<AppEntry>();
     List<ApplicationInfo> mApplications = new ArrayList<ApplicationInfo>();
     long mCurId = 1;
-    String mCurComputingSizePkg;
+    // Packages whose size has been requested, with the time of the request.
+    // Synchronized on itself.
+    final HashMap<String, Long> mSizeRequests = new HashMap<String, Long>();
+    // Packages currently shown, their sizes are requested first
+    volatile List<String> mSizePriority = new ArrayList<String>();
     boolean mSessionsChanged;
 
     // Temporary for dispatching session callbacks.  Only touched by main thread.
     final ArrayList<Session> mActiveSessions = new ArrayList<Session>();
 
+    // Labels and icons are loaded on this pool, locking only the entries
+    // being loaded.  Only used from the background thread.
+    final ExecutorService mLoaderPool;
+    final int mLoaderThreads;
+
+    // Icons of all entries, bounded in size.
+    final AppIconCache mIconCache;
+
+    // Persisted labels, sizes and icons from the last run.
+    final AppEntryCache mEntryCache;
+    volatile boolean mEntryCacheDirty;
+    // Whether the cache was written since the last resume; it is written
+    // at most once while resumed, and again when pausing.
+    volatile boolean mEntryCacheSaved;
+
+    // Package broadcasts are collected until none came in for
+    // PACKAGE_EVENT_DELAY, or PACKAGE_EVENT_MAX_DELAY after the first one,
+    // and then applied in one go on the background thread.
+    static final long PACKAGE_EVENT_DELAY = 250;
+    static final long PACKAGE_EVENT_MAX_DELAY = 1000;
+    static final int PACKAGE_ADDED = 1;
+    static final int PACKAGE_REMOVED = 2;
+    static final int PACKAGE_CHANGED = 3;
+
+    // Synchronized on mPendingPackageEvents.
+    final LinkedHashMap<String, Integer> mPendingPackageEvents
+            = new LinkedHashMap<String, Integer>();
+    long mPackageEventWindowStart;
+    int mPendingPackageEventCount;
+    // Totals for dump()
+    int mPackageEventCount;
+    int mMergedPackageEventCount;
+    int mPackageEventBatchCount;
+
     /**
      * Receives notifications when applications are added/removed.
      */
@@ -311,15 +438,15 @@ public class ApplicationsState {
              if (Intent.ACTION_PACKAGE_ADDED.equals(actionStr)) {
                  Uri data = intent.getData();
                  String pkgName = data.getEncodedSchemeSpecificPart();
-                 addPackage(pkgName);
+                 queuePackageEvent(pkgName, PACKAGE_ADDED);
              } else if (Intent.ACTION_PACKAGE_REMOVED.equals(actionStr)) {
                  Uri data = intent.getData();
                  String pkgName = data.getEncodedSchemeSpecificPart();
-                 removePackage(pkgName);
+                 queuePackageEvent(pkgName, PACKAGE_REMOVED);
              } else if (Intent.ACTION_PACKAGE_CHANGED.equals(actionStr)) {
                  Uri data = intent.getData();
                  String pkgName = data.getEncodedSchemeSpecificPart();
-                 invalidatePackage(pkgName);
+                 queuePackageEvent(pkgName, PACKAGE_CHANGED);
              } else if (Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE.equals(actionStr) ||
                      Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE.equals(actionStr)) {
                  // When applications become available or unavailable (perhaps because
@@ -336,7 +463,7 @@ public class ApplicationsState {
                  boolean avail = Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE.equals(actionStr);
                  if (avail) {
                      for (String pkgName : pkgList) {
-                         invalidatePackage(pkgName);
+                         queuePackageEvent(pkgName, PACKAGE_CHANGED);
                      }
                  }
              }
@@ -365,6 +492,7 @@ public class ApplicationsState {
         static final int MSG_PACKAGE_SIZE_CHANGED = 4;
         static final int MSG_ALL_SIZES_COMPUTED = 5;
         static final int MSG_RUNNING_STATE_CHANGED = 6;
+        static final int MSG_LIST_CHANGED = 7;
 
         @Override
         public void handleMessage(Message msg) {
@@ -372,8 +500,32 @@ public class ApplicationsState {
             switch (msg.what) {
                 case MSG_REBUILD_COMPLETE: {
                     Session s = (Session)msg.obj;
+                    synchronized (s.mRebuildSync) {
+                        s.mAppList = s.mLastAppList;
+                        s.mAppListGeneration = s.mLastGeneration;
+                    }
                     if (mActiveSessions.contains(s)) {
-                        s.mCallbacks.onRebuildComplete(s.mLastAppList);
+                        s.mCallbacks.onRebuildComplete(s.mAppList);
+                    }
+                } break;
+                case MSG_LIST_CHANGED: {
+                    // Always apply the change, so the list stays in sync with
+                    // the background thread's copy even if nobody listens.
+                    ListChange change = (ListChange)msg.obj;
+                    Session s = change.session;
+                    if (s.applyChange(change) && mActiveSessions.contains(s)) {
+                        switch (change.type) {
+                            case ListChange.INSERTED:
+                                s.mCallbacks.onEntryInserted(s.mAppList, change.toPosition);
+                                break;
+                            case ListChange.REMOVED:
+                                s.mCallbacks.onEntryRemoved(s.mAppList, change.fromPosition);
+                                break;
+                            case ListChange.MOVED:
+                                s.mCallbacks.onEntryMoved(s.mAppList, change.fromPosition,
+                                        change.toPosition);
+                                break;
+                        }
                     }
                 } break;
                 case MSG_PACKAGE_LIST_CHANGED: {
@@ -430,6 +582,30 @@ public class ApplicationsState {
                 Process.THREAD_PRIORITY_BACKGROUND);
         mThread.start();
         mBackgroundHandler = new BackgroundHandler(mThread.getLooper());
+        mIconCache = new AppIconCache(mContext);
+        mEntryCache = new AppEntryCache(mContext, mIconCache);
+        // Ahead of any entries the background thread creates
+        mBackgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mEntryCache.load();
+            }
+        });
+        mLoaderThreads = Runtime.getRuntime().availableProcessors();
+        mLoaderPool = Executors.newFixedThreadPool(mLoaderThreads, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread("ApplicationsState.Loader #" + mCount.getAndIncrement()) {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                };
+            }
+        });
 
         // Only the owner can see all apps.
         if (UserHandle.myUserId() == 0) {
@@ -463,6 +639,33 @@ public class ApplicationsState {
         }
     }
 
+    /**
+     * A single change to the sorted list of a session, made on the
+     * background thread and replayed on the main thread.
+     */
+    static class ListChange {
+        static final int INSERTED = 1;
+        static final int REMOVED = 2;
+        static final int MOVED = 3;
+
+        final Session session;
+        final int generation;
+        final int type;
+        final int fromPosition;
+        final int toPosition;
+        final AppEntry entry;
+
+        ListChange(Session session, int generation, int type, int fromPosition,
+                int toPosition, AppEntry entry) {
+            this.session = session;
+            this.generation = generation;
+            this.type = type;
+            this.fromPosition = fromPosition;
+            this.toPosition = toPosition;
+            this.entry = entry;
+        }
+    }
+
     public class Session {
         final Callbacks mCallbacks;
         boolean mResumed;
@@ -475,6 +678,20 @@ public class ApplicationsState {
         Comparator<AppEntry> mRebuildComparator;
         ArrayList<AppEntry> mRebuildResult;
         ArrayList<AppEntry> mLastAppList;
+        int mLastGeneration;
+
+        // The filtered, sorted list of the last rebuild, kept up to date as
+        // packages come and go or change their sort key.  Only touched by
+        // the background thread.
+        AppFilter mFilter;
+        Comparator<AppEntry> mComparator;
+        ArrayList<AppEntry> mSortedApps;
+        int mGeneration;
+
+        // Copy of mSortedApps as last handed out to the callbacks, following
+        // it through ListChanges.  Only touched by main thread.
+        ArrayList<AppEntry> mAppList;
+        int mAppListGeneration = -1;
 
         Session(Callbacks callbacks) {
             mCallbacks = callbacks;
@@ -538,6 +755,10 @@ public class ApplicationsState {
 
                 mRebuildAsync = true;
 
+                if (mRebuildResult != null) {
+                    mAppList = mRebuildResult;
+                    mAppListGeneration = mLastGeneration;
+                }
                 return mRebuildResult;
             }
         }
@@ -563,13 +784,12 @@ public class ApplicationsState {
                 filter.init();
             }
             
-            List<ApplicationInfo> apps;
-            synchronized (mEntriesMap) {
-                apps = new ArrayList<ApplicationInfo>(mApplications);
-            }
+            Snapshot snapshot = mSnapshot;
+            List<ApplicationInfo> apps = snapshot.applications;
 
             ArrayList<AppEntry> filteredApps = new ArrayList<AppEntry>();
             if (DEBUG) Log.i(TAG, "Rebuilding...");
+            boolean createdEntries = false;
             for (int i=0; i<apps.size(); i++) {
                 ApplicationInfo info = apps.get(i);
                 //protected app
@@ -577,14 +797,25 @@ public class ApplicationsState {
                     continue;
                 }
                 if (filter == null || filter.filterApp(info)) {
-                    synchronized (mEntriesMap) {
-                        if (DEBUG_LOCKING) Log.v(TAG, "rebuild acquired lock");
-                        AppEntry entry = getEntryLocked(info);
+                    AppEntry entry = snapshot.entriesMap.get(info.packageName);
+                    if (entry != null && entry.info == info) {
+                        // Only the entry needs to be locked for its label
                         entry.ensureLabel(mContext);
-                        if (DEBUG) Log.i(TAG, "Using " + info.packageName + ": " + entry);
-                        filteredApps.add(entry);
-                        if (DEBUG_LOCKING) Log.v(TAG, "rebuild releasing lock");
+                    } else {
+                        synchronized (mEntriesMap) {
+                            if (DEBUG_LOCKING) Log.v(TAG, "rebuild acquired lock");
+                            entry = getEntryLocked(info);
+                            createdEntries = true;
+                            if (DEBUG_LOCKING) Log.v(TAG, "rebuild releasing lock");
+                        }
                     }
+                    if (DEBUG) Log.i(TAG, "Using " + info.packageName + ": " + entry);
+                    filteredApps.add(entry);
+                }
+            }
+            if (createdEntries) {
+                synchronized (mEntriesMap) {
+                    publishSnapshotLocked();
                 }
             }
 
@@ -592,9 +823,15 @@ public class ApplicationsState {
 
             synchronized (mRebuildSync) {
                 if (!mRebuildRequested) {
-                    mLastAppList = filteredApps;
+                    mFilter = filter;
+                    mComparator = comparator;
+                    mSortedApps = filteredApps;
+                    mGeneration++;
+                    // The main thread gets its own copy to replay changes on
+                    mLastAppList = new ArrayList<AppEntry>(filteredApps);
+                    mLastGeneration = mGeneration;
                     if (!mRebuildAsync) {
-                        mRebuildResult = filteredApps;
+                        mRebuildResult = mLastAppList;
                         mRebuildSync.notifyAll();
                     } else {
                         if (!mMainHandler.hasMessages(MainHandler.MSG_REBUILD_COMPLETE, this)) {
@@ -609,6 +846,112 @@ public class ApplicationsState {
             Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
         }
 
+        // Called on the background thread when a package got added.
+        void handleEntryAdded(AppEntry entry) {
+            if (mSortedApps == null || entry.info.protect
+                    || (mFilter != null && !mFilter.filterApp(entry.info))) {
+                return;
+            }
+            if (indexOfEntry(entry) >= 0) {
+                // Already picked up by a rebuild
+                handleEntryChanged(entry);
+                return;
+            }
+            int position = getInsertPosition(entry);
+            mSortedApps.add(position, entry);
+            postChange(ListChange.INSERTED, -1, position, entry);
+        }
+
+        // Called on the background thread when a package got removed.
+        void handleEntryRemoved(AppEntry entry) {
+            if (mSortedApps == null) {
+                return;
+            }
+            int position = indexOfEntry(entry);
+            if (position >= 0) {
+                mSortedApps.remove(position);
+                postChange(ListChange.REMOVED, position, -1, entry);
+            }
+        }
+
+        // Called on the background thread when the sort key of an entry may
+        // have changed, e.g. because its size got computed.
+        void handleEntryChanged(AppEntry entry) {
+            if (mSortedApps == null) {
+                return;
+            }
+            // Its key may have changed, so it can't be searched for
+            int position = mSortedApps.indexOf(entry);
+            if (position < 0) {
+                return;
+            }
+            final int last = mSortedApps.size() - 1;
+            if ((position == 0
+                    || mComparator.compare(mSortedApps.get(position - 1), entry) <= 0)
+                    && (position == last
+                    || mComparator.compare(entry, mSortedApps.get(position + 1)) <= 0)) {
+                // Still in order
+                return;
+            }
+            mSortedApps.remove(position);
+            int newPosition = getInsertPosition(entry);
+            mSortedApps.add(newPosition, entry);
+            postChange(ListChange.MOVED, position, newPosition, entry);
+        }
+
+        private int indexOfEntry(AppEntry entry) {
+            int position = Collections.binarySearch(mSortedApps, entry, mComparator);
+            if (position >= 0) {
+                // Other entries may compare equal, look for this one around it
+                for (int i = position; i >= 0
+                        && mComparator.compare(mSortedApps.get(i), entry) == 0; i--) {
+                    if (mSortedApps.get(i) == entry) {
+                        return i;
+                    }
+                }
+                for (int i = position + 1; i < mSortedApps.size()
+                        && mComparator.compare(mSortedApps.get(i), entry) == 0; i++) {
+                    if (mSortedApps.get(i) == entry) {
+                        return i;
+                    }
+                }
+            }
+            // Its sort key changed since it was placed
+            return mSortedApps.indexOf(entry);
+        }
+
+        private int getInsertPosition(AppEntry entry) {
+            int position = Collections.binarySearch(mSortedApps, entry, mComparator);
+            return position >= 0 ? position : -(position + 1);
+        }
+
+        private void postChange(int type, int fromPosition, int toPosition, AppEntry entry) {
+            if (DEBUG) Log.i(TAG, "List change " + type + " " + fromPosition + " -> "
+                    + toPosition + ": " + entry.info.packageName);
+            ListChange change = new ListChange(this, mGeneration, type,
+                    fromPosition, toPosition, entry);
+            mMainHandler.sendMessage(mMainHandler.obtainMessage(
+                    MainHandler.MSG_LIST_CHANGED, change));
+        }
+
+        // Called on the main thread to replay a change on mAppList.
+        boolean applyChange(ListChange change) {
+            if (mAppList == null || change.generation != mAppListGeneration) {
+                // Made to a list that has been rebuilt since
+                return false;
+            }
+            // Change a copy, the old list may still be in use elsewhere
+            ArrayList<AppEntry> apps = new ArrayList<AppEntry>(mAppList);
+            if (change.fromPosition >= 0) {
+                apps.remove(change.fromPosition);
+            }
+            if (change.toPosition >= 0) {
+                apps.add(change.toPosition, change.entry);
+            }
+            mAppList = apps;
+            return true;
+        }
+
         public void release() {
             pause();
             synchronized (mEntriesMap) {
@@ -630,6 +973,7 @@ public class ApplicationsState {
             return;
         }
         mResumed = true;
+        mEntryCacheSaved = false;
         if (mPackageIntentReceiver == null) {
             mPackageIntentReceiver = new PackageIntentReceiver();
             mPackageIntentReceiver.registerReceiver();
@@ -638,12 +982,14 @@ public class ApplicationsState {
         if (mApplications == null) {
             mApplications = new ArrayList<ApplicationInfo>();
         }
+        mSnapshotDirty = true;
 
         if (mInterestingConfigChanges.applyNewConfig(mContext.getResources())) {
             // If an interesting part of the configuration has changed, we
             // should completely reload the app entries.
             mEntriesMap.clear();
             mAppEntries.clear();
+            mIconCache.clear();
         } else {
             for (int i=0; i<mAppEntries.size(); i++) {
                 mAppEntries.get(i).sizeStale = true;
@@ -668,12 +1014,25 @@ public class ApplicationsState {
                 entry.info = info;
             }
         }
-        mCurComputingSizePkg = null;
+        publishSnapshotLocked();
+        synchronized (mSizeRequests) {
+            mSizeRequests.clear();
+        }
         if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
             mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
         }
     }
 
+    ArrayList<Session> getResumedSessionsLocked() {
+        ArrayList<Session> sessions = new ArrayList<Session>();
+        for (int i=0; i<mSessions.size(); i++) {
+            if (mSessions.get(i).mResumed) {
+                sessions.add(mSessions.get(i));
+            }
+        }
+        return sessions;
+    }
+
     public boolean haveDisabledApps() {
         return mHaveDisabledApps;
     }
@@ -692,55 +1051,94 @@ public class ApplicationsState {
             mPackageIntentReceiver.unregisterReceiver();
             mPackageIntentReceiver = null;
         }
+        if (mEntryCacheDirty) {
+            mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_SAVE_ENTRY_CACHE);
+        }
     }
 
     AppEntry getEntry(String packageName) {
+        AppEntry entry = mSnapshot.entriesMap.get(packageName);
+        if (entry != null) {
+            if (entry.label == null) {
+                // Still waiting for the loader pool
+                entry.ensureLabel(mContext);
+            }
+            return entry;
+        }
+
         if (DEBUG_LOCKING) Log.v(TAG, "getEntry about to acquire lock...");
         synchronized (mEntriesMap) {
-            AppEntry entry = mEntriesMap.get(packageName);
+            entry = mEntriesMap.get(packageName);
             if (entry == null) {
                 for (int i=0; i<mApplications.size(); i++) {
                     ApplicationInfo info = mApplications.get(i);
                     if (packageName.equals(info.packageName)) {
                         entry = getEntryLocked(info);
+                        publishSnapshotLocked();
                         break;
                     }
                 }
+            } else {
+                entry.ensureLabel(mContext);
             }
             if (DEBUG_LOCKING) Log.v(TAG, "...getEntry releasing lock");
             return entry;
         }
     }
+
+    // Makes the current lists visible to readers of mSnapshot.
+    void publishSnapshotLocked() {
+        if (!mSnapshotDirty) {
+            return;
+        }
+        mSnapshotDirty = false;
+        mSnapshot = new Snapshot(mApplications, mEntriesMap, mAppEntries);
+    }
     
     void ensureIcon(AppEntry entry) {
-        if (entry.icon != null) {
+        // Also keeps the icon from being evicted soon
+        if (mIconCache.touch(entry) || entry.icon != null) {
             return;
         }
         synchronized (entry) {
-            entry.ensureIconLocked(mContext, mPm);
+            if (entry.hasCachedIcon) {
+                // Decoded by the background thread before any apk is loaded
+                return;
+            }
+            entry.ensureIconLocked(mContext, mPm, mIconCache);
+        }
+    }
+
+    void dump(String prefix, PrintWriter writer) {
+        mIconCache.dump(prefix, writer);
+        synchronized (mPendingPackageEvents) {
+            writer.print(prefix); writer.print("Package events: ");
+                    writer.print(mPackageEventCount); writer.print(" received, ");
+                    writer.print(mMergedPackageEventCount); writer.print(" merged, ");
+                    writer.print(mPackageEventBatchCount); writer.print(" batches, ");
+                    writer.print(mPendingPackageEventCount); writer.println(" pending");
         }
     }
     
     void requestSize(String packageName) {
-        if (DEBUG_LOCKING) Log.v(TAG, "requestSize about to acquire lock...");
-        synchronized (mEntriesMap) {
-            AppEntry entry = mEntriesMap.get(packageName);
-            if (entry != null) {
-                mPm.getPackageSizeInfo(packageName, mBackgroundHandler.mStatsObserver);
-            }
-            if (DEBUG_LOCKING) Log.v(TAG, "...requestSize releasing lock");
+        if (mSnapshot.entriesMap.get(packageName) != null) {
+            mPm.getPackageSizeInfo(packageName, mBackgroundHandler.mStatsObserver);
         }
     }
 
+    /**
+     * Hint which packages are currently on screen, so that their sizes get
+     * computed before those of the others.
+     */
+    void setSizePriority(List<String> packageNames) {
+        mSizePriority = new ArrayList<String>(packageNames);
+    }
+
     long sumCacheSizes() {
         long sum = 0;
-        if (DEBUG_LOCKING) Log.v(TAG, "sumCacheSizes about to acquire lock...");
-        synchronized (mEntriesMap) {
-            if (DEBUG_LOCKING) Log.v(TAG, "-> sumCacheSizes now has lock");
-            for (int i=mAppEntries.size()-1; i>=0; i--) {
-                sum += mAppEntries.get(i).cacheSize;
-            }
-            if (DEBUG_LOCKING) Log.v(TAG, "...sumCacheSizes releasing lock");
+        List<AppEntry> entries = mSnapshot.entries;
+        for (int i=entries.size()-1; i>=0; i--) {
+            sum += entries.get(i).cacheSize;
         }
         return sum;
     }
@@ -754,7 +1152,9 @@ public class ApplicationsState {
         return -1;
     }
 
-    void addPackage(String pkgName) {
+    // Returns whether the package got added; callers need to post
+    // MSG_PACKAGE_LIST_CHANGED.
+    boolean addPackage(String pkgName) {
         try {
             synchronized (mEntriesMap) {
                 if (DEBUG_LOCKING) Log.v(TAG, "addPackage acquired lock");
@@ -764,35 +1164,39 @@ public class ApplicationsState {
                     // next time we resume, so there is no reason to do work
                     // here.
                     if (DEBUG_LOCKING) Log.v(TAG, "addPackage release lock: not resumed");
-                    return;
+                    return false;
                 }
                 if (indexOfApplicationInfoLocked(pkgName) >= 0) {
                     if (DEBUG) Log.i(TAG, "Package already exists!");
                     if (DEBUG_LOCKING) Log.v(TAG, "addPackage release lock: already exists");
-                    return;
+                    return false;
                 }
                 ApplicationInfo info = mPm.getApplicationInfo(pkgName, mRetrieveFlags);
                 if (!info.enabled) {
                     if (info.enabledSetting
                             != PackageManager.COMPONENT_ENABLED_STATE_DISABLED_USER) {
-                        return;
+                        return false;
                     }
                     mHaveDisabledApps = true;
                 }
                 mApplications.add(info);
+                mSnapshotDirty = true;
+                mBackgroundHandler.sendMessage(mBackgroundHandler.obtainMessage(
+                        BackgroundHandler.MSG_ENTRY_ADDED, pkgName));
                 if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
                     mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
                 }
-                if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_LIST_CHANGED)) {
-                    mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_LIST_CHANGED);
-                }
                 if (DEBUG_LOCKING) Log.v(TAG, "addPackage releasing lock");
+                return true;
             }
         } catch (NameNotFoundException e) {
+            return false;
         }
     }
 
-    void removePackage(String pkgName) {
+    // Returns whether the package got removed; callers need to post
+    // MSG_PACKAGE_LIST_CHANGED.
+    boolean removePackage(String pkgName) {
         synchronized (mEntriesMap) {
             if (DEBUG_LOCKING) Log.v(TAG, "removePackage acquired lock");
             int idx = indexOfApplicationInfoLocked(pkgName);
@@ -803,9 +1207,13 @@ public class ApplicationsState {
                 if (entry != null) {
                     mEntriesMap.remove(pkgName);
                     mAppEntries.remove(entry);
+                    mIconCache.remove(entry);
+                    mBackgroundHandler.sendMessage(mBackgroundHandler.obtainMessage(
+                            BackgroundHandler.MSG_ENTRY_REMOVED, entry));
                 }
                 ApplicationInfo info = mApplications.get(idx);
                 mApplications.remove(idx);
+                mSnapshotDirty = true;
                 if (!info.enabled) {
                     mHaveDisabledApps = false;
                     for (int i=0; i<mApplications.size(); i++) {
@@ -815,30 +1223,98 @@ public class ApplicationsState {
                         }
                     }
                 }
-                if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_LIST_CHANGED)) {
-                    mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_LIST_CHANGED);
-                }
             }
             if (DEBUG_LOCKING) Log.v(TAG, "removePackage releasing lock");
+            return idx >= 0;
         }
     }
 
-    void invalidatePackage(String pkgName) {
-        removePackage(pkgName);
-        addPackage(pkgName);
+    void queuePackageEvent(String pkgName, int event) {
+        synchronized (mPendingPackageEvents) {
+            long now = SystemClock.uptimeMillis();
+            if (mPendingPackageEvents.isEmpty()) {
+                mPackageEventWindowStart = now;
+            }
+            Integer pending = mPendingPackageEvents.get(pkgName);
+            if (pending == null) {
+                mPendingPackageEvents.put(pkgName, event);
+            } else if (event == PACKAGE_REMOVED) {
+                mPendingPackageEvents.put(pkgName, PACKAGE_REMOVED);
+            } else if (pending != PACKAGE_ADDED || event != PACKAGE_ADDED) {
+                // Whatever happened before, it needs to be reloaded
+                mPendingPackageEvents.put(pkgName, PACKAGE_CHANGED);
+            }
+            mPendingPackageEventCount++;
+            mPackageEventCount++;
+
+            long delay = Math.min(PACKAGE_EVENT_DELAY,
+                    mPackageEventWindowStart + PACKAGE_EVENT_MAX_DELAY - now);
+            mBackgroundHandler.removeMessages(BackgroundHandler.MSG_PACKAGE_EVENTS);
+            mBackgroundHandler.sendEmptyMessageDelayed(BackgroundHandler.MSG_PACKAGE_EVENTS,
+                    Math.max(delay, 0));
+        }
+    }
+
+    void handlePackageEvents() {
+        ArrayList<String> pkgNames;
+        ArrayList<Integer> events;
+        synchronized (mPendingPackageEvents) {
+            pkgNames = new ArrayList<String>(mPendingPackageEvents.keySet());
+            events = new ArrayList<Integer>(mPendingPackageEvents.values());
+            mMergedPackageEventCount += mPendingPackageEventCount - events.size();
+            mPackageEventBatchCount++;
+            if (DEBUG) Log.i(TAG, "Applying " + events.size() + " package events for "
+                    + mPendingPackageEventCount + " broadcasts");
+            mPendingPackageEvents.clear();
+            mPendingPackageEventCount = 0;
+        }
+
+        boolean changed = false;
+        for (int i=0; i<pkgNames.size(); i++) {
+            String pkgName = pkgNames.get(i);
+            switch (events.get(i)) {
+                case PACKAGE_ADDED:
+                    changed |= addPackage(pkgName);
+                    break;
+                case PACKAGE_REMOVED:
+                    changed |= removePackage(pkgName);
+                    break;
+                case PACKAGE_CHANGED:
+                    changed |= removePackage(pkgName);
+                    changed |= addPackage(pkgName);
+                    break;
+            }
+        }
+        synchronized (mEntriesMap) {
+            publishSnapshotLocked();
+        }
+        if (changed && !mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_LIST_CHANGED)) {
+            mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_LIST_CHANGED);
+        }
     }
     
     AppEntry getEntryLocked(ApplicationInfo info) {
         AppEntry entry = mEntriesMap.get(info.packageName);
         if (DEBUG) Log.i(TAG, "Looking up entry of pkg " + info.packageName + ": " + entry);
         if (entry == null) {
-            if (DEBUG) Log.i(TAG, "Creating AppEntry for " + info.packageName);
-            entry = new AppEntry(mContext, info, mCurId++);
-            mEntriesMap.put(info.packageName, entry);
-            mAppEntries.add(entry);
+            entry = createEntryLocked(info);
         } else if (entry.info != info) {
             entry.info = info;
         }
+        entry.ensureLabel(mContext);
+        return entry;
+    }
+
+    // Adds an entry without loading its label; callers need to ensureLabel().
+    AppEntry createEntryLocked(ApplicationInfo info) {
+        if (DEBUG) Log.i(TAG, "Creating AppEntry for " + info.packageName);
+        AppEntry entry = new AppEntry(mContext, info, mCurId++);
+        if (!mEntryCache.apply(entry)) {
+            mEntryCacheDirty = true;
+        }
+        mEntriesMap.put(info.packageName, entry);
+        mAppEntries.add(entry);
+        mSnapshotDirty = true;
         return entry;
     }
 
@@ -876,61 +1352,69 @@ public class ApplicationsState {
         static final int MSG_LOAD_ENTRIES = 2;
         static final int MSG_LOAD_ICONS = 3;
         static final int MSG_LOAD_SIZES = 4;
+        static final int MSG_ENTRY_ADDED = 5;
+        static final int MSG_ENTRY_REMOVED = 6;
+        static final int MSG_ENTRY_CHANGED = 7;
+        static final int MSG_PACKAGE_EVENTS = 8;
+        static final int MSG_SAVE_ENTRY_CACHE = 9;
 
         boolean mRunning;
 
         final IPackageStatsObserver.Stub mStatsObserver = new IPackageStatsObserver.Stub() {
             public void onGetStatsCompleted(PackageStats stats, boolean succeeded) {
                 boolean sizeChanged = false;
-                synchronized (mEntriesMap) {
-                    if (DEBUG_LOCKING) Log.v(TAG, "onGetStatsCompleted acquired lock");
-                    AppEntry entry = mEntriesMap.get(stats.packageName);
-                    if (entry != null) {
-                        synchronized (entry) {
-                            entry.sizeStale = false;
-                            entry.sizeLoadStart = 0;
-                            long externalCodeSize = stats.externalCodeSize
-                                    + stats.externalObbSize;
-                            long externalDataSize = stats.externalDataSize
-                                    + stats.externalMediaSize;
-                            long newSize = externalCodeSize + externalDataSize
-                                    + getTotalInternalSize(stats);
-                            if (entry.size != newSize ||
-                                    entry.cacheSize != stats.cacheSize ||
-                                    entry.codeSize != stats.codeSize ||
-                                    entry.dataSize != stats.dataSize ||
-                                    entry.externalCodeSize != externalCodeSize ||
-                                    entry.externalDataSize != externalDataSize ||
-                                    entry.externalCacheSize != stats.externalCacheSize) {
-                                entry.size = newSize;
-                                entry.cacheSize = stats.cacheSize;
-                                entry.codeSize = stats.codeSize;
-                                entry.dataSize = stats.dataSize;
-                                entry.externalCodeSize = externalCodeSize;
-                                entry.externalDataSize = externalDataSize;
-                                entry.externalCacheSize = stats.externalCacheSize;
-                                entry.sizeStr = getSizeStr(entry.size);
-                                entry.internalSize = getTotalInternalSize(stats);
-                                entry.internalSizeStr = getSizeStr(entry.internalSize);
-                                entry.externalSize = getTotalExternalSize(stats);
-                                entry.externalSizeStr = getSizeStr(entry.externalSize);
-                                if (DEBUG) Log.i(TAG, "Set size of " + entry.label + " " + entry
-                                        + ": " + entry.sizeStr);
-                                sizeChanged = true;
-                            }
-                        }
-                        if (sizeChanged) {
-                            Message msg = mMainHandler.obtainMessage(
-                                    MainHandler.MSG_PACKAGE_SIZE_CHANGED, stats.packageName);
-                            mMainHandler.sendMessage(msg);
+                AppEntry entry = mSnapshot.entriesMap.get(stats.packageName);
+                // Only the entry itself needs to be locked while updating it
+                if (entry != null) {
+                    synchronized (entry) {
+                        entry.sizeStale = false;
+                        entry.sizeLoadStart = 0;
+                        long externalCodeSize = stats.externalCodeSize
+                                + stats.externalObbSize;
+                        long externalDataSize = stats.externalDataSize
+                                + stats.externalMediaSize;
+                        long newSize = externalCodeSize + externalDataSize
+                                + getTotalInternalSize(stats);
+                        if (entry.size != newSize ||
+                                entry.cacheSize != stats.cacheSize ||
+                                entry.codeSize != stats.codeSize ||
+                                entry.dataSize != stats.dataSize ||
+                                entry.externalCodeSize != externalCodeSize ||
+                                entry.externalDataSize != externalDataSize ||
+                                entry.externalCacheSize != stats.externalCacheSize) {
+                            entry.size = newSize;
+                            entry.cacheSize = stats.cacheSize;
+                            entry.codeSize = stats.codeSize;
+                            entry.dataSize = stats.dataSize;
+                            entry.externalCodeSize = externalCodeSize;
+                            entry.externalDataSize = externalDataSize;
+                            entry.externalCacheSize = stats.externalCacheSize;
+                            entry.sizeStr = getSizeStr(entry.size);
+                            entry.internalSize = getTotalInternalSize(stats);
+                            entry.internalSizeStr = getSizeStr(entry.internalSize);
+                            entry.externalSize = getTotalExternalSize(stats);
+                            entry.externalSizeStr = getSizeStr(entry.externalSize);
+                            if (DEBUG) Log.i(TAG, "Set size of " + entry.label + " " + entry
+                                    + ": " + entry.sizeStr);
+                            sizeChanged = true;
+                            mEntryCacheDirty = true;
                         }
                     }
-                    if (mCurComputingSizePkg == null
-                            || mCurComputingSizePkg.equals(stats.packageName)) {
-                        mCurComputingSizePkg = null;
-                        sendEmptyMessage(MSG_LOAD_SIZES);
+                    if (sizeChanged) {
+                        Message msg = mMainHandler.obtainMessage(
+                                MainHandler.MSG_PACKAGE_SIZE_CHANGED, stats.packageName);
+                        mMainHandler.sendMessage(msg);
+                        sendMessage(obtainMessage(MSG_ENTRY_CHANGED, entry));
+                    }
+                }
+                synchronized (mSizeRequests) {
+                    if (mSizeRequests.remove(stats.packageName) != null
+                            || mSizeRequests.isEmpty()) {
+                        // Refill the window
+                        if (!hasMessages(MSG_LOAD_SIZES)) {
+                            sendEmptyMessage(MSG_LOAD_SIZES);
+                        }
                     }
-                    if (DEBUG_LOCKING) Log.v(TAG, "onGetStatsCompleted releasing lock");
                 }
             }
         };
@@ -939,6 +1423,22 @@ public class ApplicationsState {
             super(looper);
         }
 
+        private void requestSizeIfNeededLocked(AppEntry entry, long now) {
+            if ((entry.size != SIZE_UNKNOWN && !entry.sizeStale)
+                    || mSizeRequests.containsKey(entry.info.packageName)) {
+                return;
+            }
+            if (!mRunning) {
+                mRunning = true;
+                Message m = mMainHandler.obtainMessage(
+                        MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
+                mMainHandler.sendMessage(m);
+            }
+            entry.sizeLoadStart = now;
+            mSizeRequests.put(entry.info.packageName, now);
+            mPm.getPackageSizeInfo(entry.info.packageName, mStatsObserver);
+        }
+
         @Override
         public void handleMessage(Message msg) {
             // Always try rebuilding list first thing, if needed.
@@ -958,11 +1458,59 @@ public class ApplicationsState {
             switch (msg.what) {
                 case MSG_REBUILD_LIST: {
                 } break;
+                case MSG_PACKAGE_EVENTS: {
+                    handlePackageEvents();
+                } break;
+                case MSG_SAVE_ENTRY_CACHE: {
+                    saveEntryCache();
+                } break;
+                case MSG_ENTRY_ADDED: {
+                    String pkgName = (String)msg.obj;
+                    AppEntry entry = null;
+                    ArrayList<Session> sessions;
+                    synchronized (mEntriesMap) {
+                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_ENTRY_ADDED acquired lock");
+                        int idx = indexOfApplicationInfoLocked(pkgName);
+                        if (idx >= 0) {
+                            entry = getEntryLocked(mApplications.get(idx));
+                            publishSnapshotLocked();
+                        }
+                        sessions = getResumedSessionsLocked();
+                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_ENTRY_ADDED releasing lock");
+                    }
+                    if (entry != null) {
+                        for (int i=0; i<sessions.size(); i++) {
+                            sessions.get(i).handleEntryAdded(entry);
+                        }
+                    }
+                } break;
+                case MSG_ENTRY_REMOVED: {
+                    ArrayList<Session> sessions;
+                    synchronized (mEntriesMap) {
+                        sessions = getResumedSessionsLocked();
+                    }
+                    for (int i=0; i<sessions.size(); i++) {
+                        sessions.get(i).handleEntryRemoved((AppEntry)msg.obj);
+                    }
+                } break;
+                case MSG_ENTRY_CHANGED: {
+                    ArrayList<Session> sessions;
+                    synchronized (mEntriesMap) {
+                        sessions = getResumedSessionsLocked();
+                    }
+                    for (int i=0; i<sessions.size(); i++) {
+                        sessions.get(i).handleEntryChanged((AppEntry)msg.obj);
+                    }
+                } break;
                 case MSG_LOAD_ENTRIES: {
-                    int numDone = 0;
+                    // Entries are created under the lock, but their labels
+                    // are loaded on the pool without holding it.
+                    ArrayList<AppEntry> newEntries = new ArrayList<AppEntry>();
+                    final int batchSize = 6 * mLoaderThreads;
                     synchronized (mEntriesMap) {
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ENTRIES acquired lock");
-                        for (int i=0; i<mApplications.size() && numDone<6; i++) {
+                        for (int i=0; i<mApplications.size() && newEntries.size()<batchSize;
+                                i++) {
                             if (!mRunning) {
                                 mRunning = true;
                                 Message m = mMainHandler.obtainMessage(
@@ -971,80 +1519,92 @@ public class ApplicationsState {
                             }
                             ApplicationInfo info = mApplications.get(i);
                             if (mEntriesMap.get(info.packageName) == null) {
-                                numDone++;
-                                getEntryLocked(info);
+                                newEntries.add(createEntryLocked(info));
                             }
                         }
+                        publishSnapshotLocked();
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ENTRIES releasing lock");
                     }
+                    loadInPool(newEntries, false);
 
-                    if (numDone >= 6) {
+                    if (newEntries.size() >= batchSize) {
                         sendEmptyMessage(MSG_LOAD_ENTRIES);
                     } else {
                         sendEmptyMessage(MSG_LOAD_ICONS);
                     }
                 } break;
                 case MSG_LOAD_ICONS: {
-                    int numDone = 0;
-                    synchronized (mEntriesMap) {
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ICONS acquired lock");
-                        for (int i=0; i<mAppEntries.size() && numDone<2; i++) {
-                            AppEntry entry = mAppEntries.get(i);
-                            if (entry.icon == null || !entry.mounted) {
-                                synchronized (entry) {
-                                    if (entry.ensureIconLocked(mContext, mPm)) {
-                                        if (!mRunning) {
-                                            mRunning = true;
-                                            Message m = mMainHandler.obtainMessage(
-                                                    MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                            mMainHandler.sendMessage(m);
-                                        }
-                                        numDone++;
-                                    }
-                                }
+                    ArrayList<AppEntry> iconEntries = new ArrayList<AppEntry>();
+                    final int batchSize = 2 * mLoaderThreads;
+                    List<AppEntry> entries = mSnapshot.entries;
+                    // Icons from AppEntryCache first, they are cheap to decode
+                    for (int i=0; i<entries.size() && iconEntries.size()<batchSize; i++) {
+                        AppEntry entry = entries.get(i);
+                        synchronized (entry) {
+                            if (entry.hasCachedIcon) {
+                                iconEntries.add(entry);
                             }
                         }
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ICONS releasing lock");
                     }
+                    final boolean decodeOnly = !iconEntries.isEmpty();
+                    for (int i=0; !decodeOnly && i<entries.size()
+                            && iconEntries.size()<batchSize; i++) {
+                        AppEntry entry = entries.get(i);
+                        // Same conditions ensureIconLocked() has work to do on,
+                        // but once the cache is full the rest, including evicted
+                        // icons, is loaded on demand when a row binds
+                        if ((entry.icon == null && !mIconCache.isFull())
+                                || entry.iconFromCache
+                                || (!entry.mounted && entry.apkFile.exists())) {
+                            iconEntries.add(entry);
+                        }
+                    }
+                    int numDone = loadInPool(iconEntries, true);
                     if (numDone > 0) {
+                        if (!mRunning) {
+                            mRunning = true;
+                            Message m = mMainHandler.obtainMessage(
+                                    MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
+                            mMainHandler.sendMessage(m);
+                        }
                         if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_ICON_CHANGED)) {
                             mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_ICON_CHANGED);
                         }
                     }
-                    if (numDone >= 2) {
+                    if (decodeOnly || iconEntries.size() >= batchSize) {
                         sendEmptyMessage(MSG_LOAD_ICONS);
                     } else {
                         sendEmptyMessage(MSG_LOAD_SIZES);
                     }
                 } break;
                 case MSG_LOAD_SIZES: {
-                    synchronized (mEntriesMap) {
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES acquired lock");
-                        if (mCurComputingSizePkg != null) {
-                            if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: currently computing");
-                            return;
+                    Snapshot snapshot = mSnapshot;
+                    synchronized (mSizeRequests) {
+                        long now = SystemClock.uptimeMillis();
+                        Iterator<Long> it = mSizeRequests.values().iterator();
+                        while (it.hasNext()) {
+                            if (it.next() < now - SIZE_REQUEST_TIMEOUT) {
+                                it.remove();
+                            }
                         }
 
-                        long now = SystemClock.uptimeMillis();
-                        for (int i=0; i<mAppEntries.size(); i++) {
-                            AppEntry entry = mAppEntries.get(i);
-                            if (entry.size == SIZE_UNKNOWN || entry.sizeStale) {
-                                if (entry.sizeLoadStart == 0 ||
-                                        (entry.sizeLoadStart < (now-20*1000))) {
-                                    if (!mRunning) {
-                                        mRunning = true;
-                                        Message m = mMainHandler.obtainMessage(
-                                                MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                        mMainHandler.sendMessage(m);
-                                    }
-                                    entry.sizeLoadStart = now;
-                                    mCurComputingSizePkg = entry.info.packageName;
-                                    mPm.getPackageSizeInfo(mCurComputingSizePkg, mStatsObserver);
-                                }
-                                if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: now computing");
-                                return;
+                        // Visible packages first, then the rest in list order
+                        List<String> priority = mSizePriority;
+                        for (int i=0; i<priority.size()
+                                && mSizeRequests.size()<MAX_SIZE_REQUESTS; i++) {
+                            AppEntry entry = snapshot.entriesMap.get(priority.get(i));
+                            if (entry != null) {
+                                requestSizeIfNeededLocked(entry, now);
                             }
                         }
+                        for (int i=0; i<snapshot.entries.size()
+                                && mSizeRequests.size()<MAX_SIZE_REQUESTS; i++) {
+                            requestSizeIfNeededLocked(snapshot.entries.get(i), now);
+                        }
+                        if (!mSizeRequests.isEmpty()) {
+                            return;
+                        }
+
                         if (!mMainHandler.hasMessages(MainHandler.MSG_ALL_SIZES_COMPUTED)) {
                             mMainHandler.sendEmptyMessage(MainHandler.MSG_ALL_SIZES_COMPUTED);
                             mRunning = false;
@@ -1052,11 +1612,81 @@ public class ApplicationsState {
                                     MainHandler.MSG_RUNNING_STATE_CHANGED, 0);
                             mMainHandler.sendMessage(m);
                         }
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing lock");
+                    }
+
+                    // Everything is loaded, persist it for the next start.
+                    // Later changes are written when pausing.
+                    if (!mEntryCacheSaved) {
+                        saveEntryCache();
                     }
                 } break;
             }
         }
 
+        private void saveEntryCache() {
+            if (mEntryCacheDirty) {
+                mEntryCacheDirty = false;
+                mEntryCacheSaved = true;
+                mEntryCache.save(mSnapshot.entries);
+            }
+        }
+
+        /**
+         * Loads the labels or icons of the given entries on the loader pool
+         * and waits for all of them.
+         * @return the number of entries whose icon was loaded
+         */
+        private int loadInPool(List<AppEntry> entries, final boolean icons) {
+            if (entries.isEmpty()) {
+                return 0;
+            }
+            ArrayList<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>(entries.size());
+            for (final AppEntry entry : entries) {
+                tasks.add(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        if (!icons) {
+                            entry.ensureLabel(mContext);
+                            return false;
+                        }
+                        boolean cached;
+                        synchronized (entry) {
+                            cached = entry.hasCachedIcon;
+                            entry.hasCachedIcon = false;
+                        }
+                        if (cached) {
+                            // Not under the entry lock, loadIcon() locks the cache
+                            Drawable icon = mEntryCache.loadIcon(entry);
+                            synchronized (entry) {
+                                if (icon != null && entry.icon == null) {
+                                    entry.icon = icon;
+                                    entry.iconFromCache = true;
+                                    return true;
+                                }
+                            }
+                        }
+                        synchronized (entry) {
+                            return entry.ensureIconLocked(mContext, mPm, mIconCache);
+                        }
+                    }
+                });
+            }
+
+            int numDone = 0;
+            try {
+                for (Future<Boolean> result : mLoaderPool.invokeAll(tasks)) {
+                    try {
+                        if (result.get()) {
+                            numDone++;
+                        }
+                    } catch (ExecutionException e) {
+                        Log.w(TAG, "Failed loading app entry", e.getCause());
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return numDone;
+        }
     }
 }
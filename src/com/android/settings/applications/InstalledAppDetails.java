@@ -718,6 +718,18 @@ public class InstalledAppDetails extends Fragment
     public void onRebuildComplete(ArrayList<AppEntry> apps) {
     }
 
+    @Override
+    public void onEntryInserted(ArrayList<AppEntry> apps, int position) {
+    }
+
+    @Override
+    public void onEntryRemoved(ArrayList<AppEntry> apps, int position) {
+    }
+
+    @Override
+    public void onEntryMoved(ArrayList<AppEntry> apps, int fromPosition, int toPosition) {
+    }
+
     @Override
     public void onPackageSizeChanged(String packageName) {
         if (packageName.equals(mAppEntry.info.packageName)) {
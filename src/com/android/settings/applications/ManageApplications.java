@@ -78,6 +78,8 @@ import com.android.settings.applications.ApplicationsState.AppEntry;
 import com.android.settings.deviceinfo.StorageMeasurement;
 import com.android.settings.Utils;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
@@ -268,6 +270,7 @@ public class ManageApplications extends Fragment implements
                 mApplications = new ApplicationsAdapter(mApplicationsState, this, mFilter);
                 mListView.setAdapter(mApplications);
                 mListView.setRecyclerListener(mApplications);
+                mListView.setOnScrollListener(mApplications);
                 mColorBar = (LinearColorBar)mListContainer.findViewById(R.id.storage_color_bar);
                 mStorageChartLabel = (TextView)mListContainer.findViewById(R.id.storageChartLabel);
                 mUsedStorageText = (TextView)mListContainer.findViewById(R.id.usedStorageText);
@@ -534,7 +537,8 @@ public class ManageApplications extends Fragment implements
      * The order of applications in the list is mirrored in mAppLocalList
      */
     static class ApplicationsAdapter extends BaseAdapter implements Filterable,
-            ApplicationsState.Callbacks, AbsListView.RecyclerListener {
+            ApplicationsState.Callbacks, AbsListView.RecyclerListener,
+            AbsListView.OnScrollListener {
         private final ApplicationsState mState;
         private final ApplicationsState.Session mSession;
         private final TabInfo mTab;
@@ -548,6 +552,10 @@ public class ManageApplications extends Fragment implements
         private boolean mWaitingForData;
         private int mWhichSize = SIZE_TOTAL;
         CharSequence mCurFilterPrefix;
+        // Rows last reported to ApplicationsState as visible
+        private ArrayList<ApplicationsState.AppEntry> mVisibleEntries;
+        private int mFirstVisible = -1;
+        private int mVisibleCount;
 
         private Filter mFilter = new Filter() {
             @Override
@@ -716,9 +724,35 @@ public class ManageApplications extends Fragment implements
             mTab.updateStorageUsage();
         }
 
+        @Override
+        public void onEntryInserted(ArrayList<AppEntry> apps, int position) {
+            onEntriesChanged(apps);
+        }
+
+        @Override
+        public void onEntryRemoved(ArrayList<AppEntry> apps, int position) {
+            onEntriesChanged(apps);
+        }
+
+        @Override
+        public void onEntryMoved(ArrayList<AppEntry> apps, int fromPosition, int toPosition) {
+            onEntriesChanged(apps);
+        }
+
+        private void onEntriesChanged(ArrayList<AppEntry> apps) {
+            if (mWaitingForData) {
+                // A new list is on its way
+                return;
+            }
+            mBaseEntries = apps;
+            mEntries = applyPrefixFilter(mCurFilterPrefix, mBaseEntries);
+            notifyDataSetChanged();
+            mTab.updateStorageUsage();
+        }
+
         @Override
         public void onPackageListChanged() {
-            rebuild(false);
+            // The session keeps the list up to date itself
         }
 
         @Override
@@ -735,14 +769,7 @@ public class ManageApplications extends Fragment implements
                     synchronized (holder.entry) {
                         holder.updateSizeText(mTab.mInvalidSizeStr, mWhichSize);
                     }
-                    if (holder.entry.info.packageName.equals(mTab.mOwner.mCurrentPkgName)
-                            && mLastSortMode == SORT_ORDER_SIZE) {
-                        // We got the size information for the last app the
-                        // user viewed, and are sorting by size...  they may
-                        // have cleared data, so we immediately want to resort
-                        // the list with the new size to reflect it to the user.
-                        rebuild(false);
-                    }
+                    // If sorted by size, the session moves the entry itself
                     mTab.updateStorageUsage();
                     return;
                 }
@@ -751,9 +778,6 @@ public class ManageApplications extends Fragment implements
 
         @Override
         public void onAllSizesComputed() {
-            if (mLastSortMode == SORT_ORDER_SIZE) {
-                rebuild(false);
-            }
             mTab.updateStorageUsage();
         }
         
@@ -822,6 +846,30 @@ public class ManageApplications extends Fragment implements
         public void onMovedToScrapHeap(View view) {
             mActive.remove(view);
         }
+
+        @Override
+        public void onScrollStateChanged(AbsListView view, int scrollState) {
+        }
+
+        @Override
+        public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                int totalItemCount) {
+            if (mEntries == null || (mEntries == mVisibleEntries
+                    && firstVisibleItem == mFirstVisible && visibleItemCount == mVisibleCount)) {
+                return;
+            }
+            mVisibleEntries = mEntries;
+            mFirstVisible = firstVisibleItem;
+            mVisibleCount = visibleItemCount;
+
+            // Have the sizes of the rows on screen computed first
+            ArrayList<String> packageNames = new ArrayList<String>(visibleItemCount);
+            int end = Math.min(firstVisibleItem + visibleItemCount, mEntries.size());
+            for (int i = Math.max(firstVisibleItem, 0); i < end; i++) {
+                packageNames.add(mEntries.get(i).info.packageName);
+            }
+            mState.setSizePriority(packageNames);
+        }
     }
     
     @Override
@@ -1074,6 +1122,12 @@ public class ManageApplications extends Fragment implements
         super.onDestroy();
     }
 
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        mApplicationsState.dump(prefix, writer);
+    }
+
     void updateOptionsMenu() {
         if (mOptionsMenu == null) {
             return;
@@ -0,0 +1,532 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.app.ActivityManager;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.content.pm.Signature;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.lang.ref.WeakReference;
+import java.text.CollationKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Process wide catalog of the installed packages and their launcher
+ * activities, shared by the app pickers.  Packages are queried and labelled
+ * once on a background thread and kept up to date from package broadcasts,
+ * so pickers only have to filter the pre-sorted lists.  Icons are rendered
+ * at list row size and kept in a cache bounded by their byte size.
+ */
+public class PackageCatalog {
+    private static final String TAG = "PackageCatalog";
+    private static final boolean DEBUG = false;
+
+    /**
+     * An installed package.
+     */
+    public static class Entry {
+        public final String packageName;
+        public final ApplicationInfo info;
+        public final CharSequence label;
+        /** Whether the package is signed with the platform certificate. */
+        public final boolean platformSigned;
+        /** Launcher activities of the package, sorted by label. */
+        public final List<ActivityEntry> activities;
+
+        final CollationKey labelKey;
+
+        Entry(PackageInfo pi, List<ResolveInfo> launchables, Signature platformCert,
+                PackageManager pm) {
+            packageName = pi.packageName;
+            info = pi.applicationInfo;
+            label = info.loadLabel(pm);
+            labelKey = ApplicationsState.getCollationKey(label.toString());
+            platformSigned = platformCert != null && pi.signatures != null
+                    && pi.signatures.length > 0 && platformCert.equals(pi.signatures[0]);
+
+            if (launchables == null || launchables.isEmpty()) {
+                activities = Collections.emptyList();
+            } else {
+                ArrayList<ActivityEntry> list = new ArrayList<ActivityEntry>(launchables.size());
+                for (ResolveInfo ri : launchables) {
+                    list.add(new ActivityEntry(this, ri, pm));
+                }
+                Collections.sort(list, ACTIVITY_COMPARATOR);
+                activities = Collections.unmodifiableList(list);
+            }
+        }
+
+        public boolean isLaunchable() {
+            return !activities.isEmpty();
+        }
+    }
+
+    /**
+     * A launcher activity of an installed package.
+     */
+    public static class ActivityEntry {
+        public final Entry owner;
+        public final ResolveInfo resolveInfo;
+        public final ComponentName componentName;
+        public final CharSequence label;
+
+        final CollationKey labelKey;
+
+        ActivityEntry(Entry owner, ResolveInfo ri, PackageManager pm) {
+            this.owner = owner;
+            resolveInfo = ri;
+            componentName = new ComponentName(ri.activityInfo.packageName, ri.activityInfo.name);
+            CharSequence label = ri.loadLabel(pm);
+            this.label = label != null ? label : ri.activityInfo.name;
+            labelKey = ApplicationsState.getCollationKey(this.label.toString());
+        }
+    }
+
+    /**
+     * Selects the packages shown by a picker.
+     */
+    public interface Filter {
+        boolean accept(Entry entry);
+    }
+
+    public static final Filter LAUNCHABLE = new Filter() {
+        @Override
+        public boolean accept(Entry entry) {
+            return entry.isLaunchable();
+        }
+    };
+
+    /**
+     * Called on the main thread when the catalog was loaded or changed.
+     */
+    public interface Listener {
+        void onPackageCatalogChanged();
+    }
+
+    static final Comparator<Entry> ENTRY_COMPARATOR = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry object1, Entry object2) {
+            int result = object1.labelKey.compareTo(object2.labelKey);
+            return result != 0 ? result : object1.packageName.compareTo(object2.packageName);
+        }
+    };
+
+    static final Comparator<ActivityEntry> ACTIVITY_COMPARATOR = new Comparator<ActivityEntry>() {
+        @Override
+        public int compare(ActivityEntry object1, ActivityEntry object2) {
+            int result = object1.labelKey.compareTo(object2.labelKey);
+            return result != 0 ? result : object1.componentName.compareTo(object2.componentName);
+        }
+    };
+
+    /**
+     * Immutable state of the catalog, replaced as a whole on every change.
+     */
+    private static final class Snapshot {
+        final List<Entry> entries;
+        final HashMap<String, Entry> entriesMap;
+        final List<ActivityEntry> activities;
+
+        Snapshot(HashMap<String, Entry> entriesMap) {
+            ArrayList<Entry> entries = new ArrayList<Entry>(entriesMap.values());
+            Collections.sort(entries, ENTRY_COMPARATOR);
+            ArrayList<ActivityEntry> activities = new ArrayList<ActivityEntry>();
+            for (Entry entry : entries) {
+                activities.addAll(entry.activities);
+            }
+            Collections.sort(activities, ACTIVITY_COMPARATOR);
+
+            this.entries = Collections.unmodifiableList(entries);
+            this.entriesMap = entriesMap;
+            this.activities = Collections.unmodifiableList(activities);
+        }
+    }
+
+    static final Object sLock = new Object();
+    static PackageCatalog sInstance;
+
+    public static PackageCatalog getInstance(Context context) {
+        synchronized (sLock) {
+            if (sInstance == null) {
+                sInstance = new PackageCatalog(context.getApplicationContext());
+            }
+            return sInstance;
+        }
+    }
+
+    private final Context mContext;
+    private final PackageManager mPm;
+    private final Handler mBackgroundHandler;
+    private final Handler mMainHandler;
+    private final int mIconSize;
+    private final LruCache<Object, BitmapDrawable> mIcons;
+    // Set once the icon cache had to evict, so preloading would only churn it
+    private volatile boolean mIconsFull;
+
+    // Guarded by itself
+    private final ArrayList<WeakReference<Listener>> mListeners =
+            new ArrayList<WeakReference<Listener>>();
+
+    // Only written on the background thread, guarded by 'this' for waitForLoad()
+    private volatile Snapshot mSnapshot;
+    private boolean mLoadQueued;
+
+    // Only used on the background thread
+    private Signature mPlatformCert;
+
+    private PackageCatalog(Context context) {
+        mContext = context;
+        mPm = context.getPackageManager();
+        HandlerThread thread = new HandlerThread("PackageCatalog.Loader",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mBackgroundHandler = new Handler(thread.getLooper());
+        mMainHandler = new Handler(Looper.getMainLooper());
+
+        mIconSize = context.getResources().getDimensionPixelSize(
+                android.R.dimen.app_icon_size);
+        ActivityManager am = (ActivityManager) context.getSystemService(
+                Context.ACTIVITY_SERVICE);
+        int maxBytes = am.getMemoryClass() * 1024 * 1024 / (am.isLowRamDevice() ? 32 : 16);
+        mIcons = new LruCache<Object, BitmapDrawable>(maxBytes) {
+            @Override
+            protected int sizeOf(Object key, BitmapDrawable icon) {
+                return icon.getBitmap().getByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, Object key,
+                    BitmapDrawable oldIcon, BitmapDrawable newIcon) {
+                if (evicted) {
+                    mIconsFull = true;
+                }
+            }
+        };
+    }
+
+    /**
+     * Start loading the catalog in the background, if that didn't happen yet.
+     */
+    public void load() {
+        synchronized (this) {
+            if (mLoadQueued) {
+                return;
+            }
+            mLoadQueued = true;
+        }
+        mBackgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+                filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+                filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+                filter.addDataScheme("package");
+                mContext.registerReceiver(mReceiver, filter, null, mBackgroundHandler);
+                IntentFilter sdFilter = new IntentFilter();
+                sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE);
+                sdFilter.addAction(Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE);
+                sdFilter.addAction(Intent.ACTION_LOCALE_CHANGED);
+                mContext.registerReceiver(mReceiver, sdFilter, null, mBackgroundHandler);
+
+                loadAll();
+                preloadIcons();
+            }
+        });
+    }
+
+    public boolean isLoaded() {
+        return mSnapshot != null;
+    }
+
+    /**
+     * Block until the catalog is loaded. Must not be called on the main thread.
+     */
+    public void waitForLoad() {
+        load();
+        synchronized (this) {
+            while (mSnapshot == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Register a listener and start loading the catalog. Listeners are
+     * only weakly referenced, so adapters without a lifecycle of their own
+     * don't need to unregister; the caller has to keep a reference though.
+     */
+    public void addListener(Listener listener) {
+        synchronized (mListeners) {
+            mListeners.add(new WeakReference<Listener>(listener));
+        }
+        load();
+    }
+
+    public void removeListener(Listener listener) {
+        synchronized (mListeners) {
+            for (int i = mListeners.size() - 1; i >= 0; i--) {
+                Listener l = mListeners.get(i).get();
+                if (l == null || l == listener) {
+                    mListeners.remove(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the packages accepted by the filter, sorted by label; empty
+     *         if the catalog is not loaded yet
+     */
+    public List<Entry> getEntries(Filter filter) {
+        Snapshot snapshot = mSnapshot;
+        if (snapshot == null) {
+            return new ArrayList<Entry>();
+        }
+        ArrayList<Entry> result = new ArrayList<Entry>(snapshot.entries.size());
+        for (Entry entry : snapshot.entries) {
+            if (filter == null || filter.accept(entry)) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the launcher activities of the packages accepted by the
+     *         filter, sorted by label; empty if the catalog is not loaded yet
+     */
+    public List<ActivityEntry> getActivities(Filter filter) {
+        Snapshot snapshot = mSnapshot;
+        if (snapshot == null) {
+            return new ArrayList<ActivityEntry>();
+        }
+        ArrayList<ActivityEntry> result =
+                new ArrayList<ActivityEntry>(snapshot.activities.size());
+        for (ActivityEntry activity : snapshot.activities) {
+            if (filter == null || filter.accept(activity.owner)) {
+                result.add(activity);
+            }
+        }
+        return result;
+    }
+
+    public Entry getEntry(String packageName) {
+        Snapshot snapshot = mSnapshot;
+        return snapshot != null ? snapshot.entriesMap.get(packageName) : null;
+    }
+
+    /**
+     * @return the icon of the package if it is cached, or null. Unlike
+     * {@link #getIcon(Entry)} this may be called on the main thread.
+     */
+    public Drawable peekIcon(Entry entry) {
+        return mIcons.get(entry);
+    }
+
+    /**
+     * @return the icon of the package, loading it if it is not cached
+     */
+    public Drawable getIcon(Entry entry) {
+        BitmapDrawable icon = mIcons.get(entry);
+        if (icon == null) {
+            icon = renderIcon(entry.info.loadIcon(mPm));
+            mIcons.put(entry, icon);
+        }
+        return icon;
+    }
+
+    /**
+     * @return the icon of the activity, loading it if it is not cached
+     */
+    public Drawable getIcon(ActivityEntry activity) {
+        if (activity.resolveInfo.getIconResource() == activity.owner.info.icon) {
+            return getIcon(activity.owner);
+        }
+        BitmapDrawable icon = mIcons.get(activity);
+        if (icon == null) {
+            icon = renderIcon(activity.resolveInfo.loadIcon(mPm));
+            mIcons.put(activity, icon);
+        }
+        return icon;
+    }
+
+    private BitmapDrawable renderIcon(Drawable icon) {
+        Bitmap bitmap = Bitmap.createBitmap(mIconSize, mIconSize, Bitmap.Config.ARGB_8888);
+        icon.setBounds(0, 0, mIconSize, mIconSize);
+        icon.draw(new Canvas(bitmap));
+        return new BitmapDrawable(mContext.getResources(), bitmap);
+    }
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String action = intent.getAction();
+            if (Intent.ACTION_LOCALE_CHANGED.equals(action)) {
+                loadAll();
+            } else if (Intent.ACTION_EXTERNAL_APPLICATIONS_AVAILABLE.equals(action)
+                    || Intent.ACTION_EXTERNAL_APPLICATIONS_UNAVAILABLE.equals(action)) {
+                String[] pkgList = intent.getStringArrayExtra(Intent.EXTRA_CHANGED_PACKAGE_LIST);
+                if (pkgList != null && pkgList.length > 0) {
+                    updatePackages(pkgList);
+                }
+            } else {
+                if (Intent.ACTION_PACKAGE_REMOVED.equals(action)
+                        && intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)) {
+                    // Followed by ACTION_PACKAGE_ADDED
+                    return;
+                }
+                updatePackages(new String[] { intent.getData().getEncodedSchemeSpecificPart() });
+            }
+        }
+    };
+
+    private void loadAll() {
+        long start = DEBUG ? System.currentTimeMillis() : 0;
+        try {
+            PackageInfo sysInfo = mPm.getPackageInfo("android", PackageManager.GET_SIGNATURES);
+            mPlatformCert = sysInfo.signatures[0];
+        } catch (PackageManager.NameNotFoundException e) {
+            mPlatformCert = null;
+        }
+
+        List<PackageInfo> packages = mPm.getInstalledPackages(PackageManager.GET_SIGNATURES);
+        HashMap<String, List<ResolveInfo>> launchables = new HashMap<String, List<ResolveInfo>>();
+        for (ResolveInfo ri : mPm.queryIntentActivities(getLauncherIntent(), 0)) {
+            List<ResolveInfo> list = launchables.get(ri.activityInfo.packageName);
+            if (list == null) {
+                list = new ArrayList<ResolveInfo>();
+                launchables.put(ri.activityInfo.packageName, list);
+            }
+            list.add(ri);
+        }
+
+        HashMap<String, Entry> entriesMap = new HashMap<String, Entry>(packages.size());
+        for (PackageInfo pi : packages) {
+            entriesMap.put(pi.packageName, new Entry(pi, launchables.get(pi.packageName),
+                    mPlatformCert, mPm));
+        }
+        mIcons.evictAll();
+        mIconsFull = false;
+        publish(new Snapshot(entriesMap));
+        if (DEBUG) Log.i(TAG, "Loaded " + entriesMap.size() + " packages in "
+                + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private void updatePackages(String[] packageNames) {
+        Snapshot snapshot = mSnapshot;
+        if (snapshot == null) {
+            // Still loading, which will see the change
+            return;
+        }
+        HashMap<String, Entry> entriesMap = new HashMap<String, Entry>(snapshot.entriesMap);
+        for (String packageName : packageNames) {
+            Entry old = entriesMap.remove(packageName);
+            if (old != null) {
+                mIcons.remove(old);
+                for (ActivityEntry activity : old.activities) {
+                    mIcons.remove(activity);
+                }
+            }
+            try {
+                PackageInfo pi = mPm.getPackageInfo(packageName, PackageManager.GET_SIGNATURES);
+                Intent intent = getLauncherIntent().setPackage(packageName);
+                entriesMap.put(packageName, new Entry(pi, mPm.queryIntentActivities(intent, 0),
+                        mPlatformCert, mPm));
+            } catch (PackageManager.NameNotFoundException e) {
+                // Removed or unavailable
+            }
+        }
+        if (DEBUG) Log.i(TAG, "Updated " + packageNames.length + " packages");
+        publish(new Snapshot(entriesMap));
+    }
+
+    /**
+     * Render the icons of launchable packages ahead of time, until the
+     * cache evicts the first one.  Trimming never brings the size back to
+     * exactly the maximum, so that is what tells it is full.
+     */
+    private void preloadIcons() {
+        Snapshot snapshot = mSnapshot;
+        for (ActivityEntry activity : snapshot.activities) {
+            if (mIconsFull) {
+                return;
+            }
+            getIcon(activity);
+        }
+    }
+
+    private void publish(Snapshot snapshot) {
+        synchronized (this) {
+            mSnapshot = snapshot;
+            notifyAll();
+        }
+        mMainHandler.post(mNotifyListeners);
+    }
+
+    private final Runnable mNotifyListeners = new Runnable() {
+        @Override
+        public void run() {
+            ArrayList<Listener> listeners = new ArrayList<Listener>();
+            synchronized (mListeners) {
+                for (int i = mListeners.size() - 1; i >= 0; i--) {
+                    Listener listener = mListeners.get(i).get();
+                    if (listener == null) {
+                        mListeners.remove(i);
+                    } else {
+                        listeners.add(0, listener);
+                    }
+                }
+            }
+            for (Listener listener : listeners) {
+                listener.onPackageCatalogChanged();
+            }
+        }
+    };
+
+    private static Intent getLauncherIntent() {
+        Intent intent = new Intent(Intent.ACTION_MAIN, null);
+        intent.addCategory(Intent.CATEGORY_LAUNCHER);
+        return intent;
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.pm.PackageManager;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+import com.android.internal.app.IProcessStats;
+import com.android.internal.app.ProcessMap;
+import com.android.internal.app.ProcessStats;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * Process stats over one duration, parsed once and kept for a while so
+ * that a recreated {@link ProcessStatsUi} showing that duration can reuse
+ * them.  The memory state totals are computed when the stats are read; the
+ * entry lists of each view (process state type, memory region, system and
+ * uss toggles) are aggregated on first use and kept, so switching back to a
+ * view doesn't walk the stats again.
+ *
+ * Everything but the getters of already computed data does IPC or walks
+ * the stats, so must not be called on the main thread.
+ */
+final class ProcessStatsModel {
+    private static final String TAG = "ProcessStatsModel";
+    private static final boolean DEBUG = ProcessStatsUi.DEBUG;
+
+    // How long parsed stats are handed out before they are read again
+    private static final long MAX_AGE = 60 * 1000;
+
+    // Only the duration looked at last is kept, and only while a
+    // ProcessStatsUi is around, see clear()
+    private static final Object sCacheLock = new Object();
+    // Guarded by sCacheLock
+    private static ProcessStatsModel sCached;
+
+    /**
+     * The entries shown for one combination of view options.
+     */
+    static final class StatsView {
+        /** Sorted entries worth listing, with their ui data retrieved */
+        final ArrayList<ProcStatsEntry> mEntries;
+        final long mMaxWeight;
+        final long mMemTotalTime;
+
+        StatsView(ArrayList<ProcStatsEntry> entries, long maxWeight, long memTotalTime) {
+            mEntries = entries;
+            mMaxWeight = maxWeight;
+            mMemTotalTime = memTotalTime;
+        }
+    }
+
+    final long mDuration;
+    final long mLoadTime;
+    final int mMemState;
+    final long mTimePeriod;
+    final long mTotalTime;
+    final long[] mMemTimes = new long[ProcessStats.ADJ_MEM_FACTOR_COUNT];
+
+    private final ProcessStats mStats;
+
+    // Guarded by 'this'
+    private final HashMap<Integer, StatsView> mViews = new HashMap<Integer, StatsView>();
+
+    private ProcessStatsModel(long duration, int memState, ProcessStats stats) {
+        mDuration = duration;
+        mLoadTime = SystemClock.elapsedRealtime();
+        mMemState = memState;
+        mStats = stats;
+        mTimePeriod = stats.mTimePeriodEndRealtime - stats.mTimePeriodStartRealtime;
+        mTotalTime = ProcessStats.dumpSingleTime(null, null, stats.mMemFactorDurations,
+                stats.mMemFactor, stats.mStartTime, SystemClock.uptimeMillis());
+        for (int iscreen=0; iscreen<ProcessStats.ADJ_COUNT; iscreen+=ProcessStats.ADJ_SCREEN_MOD) {
+            for (int imem=0; imem<ProcessStats.ADJ_MEM_FACTOR_COUNT; imem++) {
+                mMemTimes[imem] += stats.mMemFactorDurations[imem+iscreen];
+            }
+        }
+    }
+
+    /**
+     * @return the stats over the given duration if they were read recently,
+     * or null
+     */
+    static ProcessStatsModel getCached(long duration) {
+        synchronized (sCacheLock) {
+            if (sCached != null && sCached.isStale()) {
+                sCached = null;
+            }
+            return sCached != null && sCached.mDuration == duration ? sCached : null;
+        }
+    }
+
+    /**
+     * @return the stats over the given duration, read from the service if
+     * there are no recent ones, or null if they can't be read
+     */
+    static ProcessStatsModel get(IProcessStats service, long duration) {
+        ProcessStatsModel model = getCached(duration);
+        if (model != null) {
+            return model;
+        }
+        model = load(service, duration);
+        if (model != null) {
+            synchronized (sCacheLock) {
+                sCached = model;
+            }
+        }
+        return model;
+    }
+
+    /**
+     * Forget the stats over the given duration, the next get() reads them
+     * again.
+     */
+    static void invalidate(long duration) {
+        synchronized (sCacheLock) {
+            if (sCached != null && sCached.mDuration == duration) {
+                sCached = null;
+            }
+        }
+    }
+
+    /**
+     * Forget the cached stats, when the ui goes away or memory gets low.
+     */
+    static void clear() {
+        synchronized (sCacheLock) {
+            sCached = null;
+        }
+    }
+
+    private static ProcessStatsModel load(IProcessStats service, long duration) {
+        try {
+            int memState = service.getCurrentMemoryState();
+            ParcelFileDescriptor pfd = service.getStatsOverTime(duration);
+            ProcessStats stats = new ProcessStats(false);
+            InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+            stats.read(is);
+            try {
+                is.close();
+            } catch (IOException e) {
+            }
+            if (stats.mReadError != null) {
+                Log.w(TAG, "Failure reading process stats: " + stats.mReadError);
+            }
+            return new ProcessStatsModel(duration, memState, stats);
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException:", e);
+            return null;
+        }
+    }
+
+    private boolean isStale() {
+        return SystemClock.elapsedRealtime() - mLoadTime > MAX_AGE;
+    }
+
+    private static int makeKey(int statsType, boolean showSystem, boolean useUss,
+            int memRegion) {
+        if (statsType != ProcessStatsUi.MENU_TYPE_BACKGROUND) {
+            // Only the background view has system processes to hide
+            showSystem = false;
+        }
+        return statsType | (memRegion << 8) | (showSystem ? 1 << 16 : 0)
+                | (useUss ? 1 << 17 : 0);
+    }
+
+    /**
+     * @return the view if it was computed already, or null
+     */
+    synchronized StatsView getCachedView(int statsType, boolean showSystem, boolean useUss,
+            int memRegion) {
+        return mViews.get(makeKey(statsType, showSystem, useUss, memRegion));
+    }
+
+    /**
+     * @return the view, computing it if needed
+     */
+    StatsView getView(PackageManager pm, int statsType, boolean showSystem, boolean useUss,
+            int memRegion) {
+        final int key = makeKey(statsType, showSystem, useUss, memRegion);
+        synchronized (this) {
+            StatsView view = mViews.get(key);
+            if (view != null) {
+                return view;
+            }
+        }
+        // Views are computed by one loader at a time, at worst one is
+        // computed twice.
+        StatsView view = computeView(pm, statsType, showSystem, useUss, memRegion);
+        synchronized (this) {
+            mViews.put(key, view);
+        }
+        return view;
+    }
+
+    long getMemTotalTime(int memRegion) {
+        switch (memRegion) {
+            case LinearColorBar.REGION_RED:
+                return mMemTimes[ProcessStats.ADJ_MEM_FACTOR_CRITICAL];
+            case LinearColorBar.REGION_YELLOW:
+                return mMemTimes[ProcessStats.ADJ_MEM_FACTOR_CRITICAL]
+                        + mMemTimes[ProcessStats.ADJ_MEM_FACTOR_LOW]
+                        + mMemTimes[ProcessStats.ADJ_MEM_FACTOR_MODERATE];
+            default:
+                return mTotalTime;
+        }
+    }
+
+    private static int[] getMemStates(int memRegion) {
+        switch (memRegion) {
+            case LinearColorBar.REGION_RED:
+                return ProcessStatsUi.RED_MEM_STATES;
+            case LinearColorBar.REGION_YELLOW:
+                return ProcessStatsUi.YELLOW_MEM_STATES;
+            default:
+                return ProcessStats.ALL_MEM_ADJ;
+        }
+    }
+
+    private static int[] getProcStates(int statsType, boolean showSystem) {
+        if (statsType == ProcessStatsUi.MENU_TYPE_FOREGROUND) {
+            return ProcessStatsUi.FOREGROUND_PROC_STATES;
+        } else if (statsType == ProcessStatsUi.MENU_TYPE_CACHED) {
+            return ProcessStatsUi.CACHED_PROC_STATES;
+        }
+        return showSystem ? ProcessStatsUi.BACKGROUND_AND_SYSTEM_PROC_STATES
+                : ProcessStats.BACKGROUND_PROC_STATES;
+    }
+
+    private StatsView computeView(PackageManager pm, int statsType, boolean showSystem,
+            boolean useUss, int memRegion) {
+        final boolean background = statsType == ProcessStatsUi.MENU_TYPE_BACKGROUND;
+        final long memTotalTime = getMemTotalTime(memRegion);
+        ProcessStats.ProcessDataCollection totals = new ProcessStats.ProcessDataCollection(
+                ProcessStats.ALL_SCREEN_ADJ, getMemStates(memRegion),
+                getProcStates(statsType, showSystem));
+
+        ArrayList<ProcStatsEntry> entries = new ArrayList<ProcStatsEntry>();
+
+        if (DEBUG) Log.d(TAG, "-------------------- PULLING PROCESSES");
+
+        final ProcessMap<ProcStatsEntry> entriesMap = new ProcessMap<ProcStatsEntry>();
+        for (int ipkg=0, N=mStats.mPackages.getMap().size(); ipkg<N; ipkg++) {
+            final SparseArray<ProcessStats.PackageState> pkgUids
+                    = mStats.mPackages.getMap().valueAt(ipkg);
+            for (int iu=0; iu<pkgUids.size(); iu++) {
+                final ProcessStats.PackageState st = pkgUids.valueAt(iu);
+                for (int iproc=0; iproc<st.mProcesses.size(); iproc++) {
+                    final ProcessStats.ProcessState pkgProc = st.mProcesses.valueAt(iproc);
+                    final ProcessStats.ProcessState proc = mStats.mProcesses.get(pkgProc.mName,
+                            pkgProc.mUid);
+                    if (proc == null) {
+                        Log.w(TAG, "No process found for pkg " + st.mPackageName
+                                + "/" + st.mUid + " proc name " + pkgProc.mName);
+                        continue;
+                    }
+                    ProcStatsEntry ent = entriesMap.get(proc.mName, proc.mUid);
+                    if (ent == null) {
+                        ent = new ProcStatsEntry(proc, st.mPackageName, totals, useUss,
+                                background);
+                        if (ent.mDuration > 0) {
+                            if (DEBUG) Log.d(TAG, "Adding proc " + proc.mName + "/"
+                                    + proc.mUid + ": time=" + ent.mDuration + " ("
+                                    + ((((double)ent.mDuration) / memTotalTime) * 100) + "%)"
+                                    + " pss=" + ent.mAvgPss);
+                            entriesMap.put(proc.mName, proc.mUid, ent);
+                            entries.add(ent);
+                        }
+                    }  else {
+                        ent.addPackage(st.mPackageName);
+                    }
+                }
+            }
+        }
+
+        if (DEBUG) Log.d(TAG, "-------------------- MAPPING SERVICES");
+
+        // Add in service info.
+        if (background) {
+            for (int ip=0, N=mStats.mPackages.getMap().size(); ip<N; ip++) {
+                SparseArray<ProcessStats.PackageState> uids = mStats.mPackages.getMap().valueAt(ip);
+                for (int iu=0; iu<uids.size(); iu++) {
+                    ProcessStats.PackageState ps = uids.valueAt(iu);
+                    for (int is=0, NS=ps.mServices.size(); is<NS; is++) {
+                        ProcessStats.ServiceState ss = ps.mServices.valueAt(is);
+                        if (ss.mProcessName != null) {
+                            ProcStatsEntry ent = entriesMap.get(ss.mProcessName, uids.keyAt(iu));
+                            if (ent != null) {
+                                if (DEBUG) Log.d(TAG, "Adding service " + ps.mPackageName
+                                        + "/" + ss.mName + "/" + uids.keyAt(iu) + " to proc "
+                                        + ss.mProcessName);
+                                ent.addService(ss);
+                            } else {
+                                Log.w(TAG, "No process " + ss.mProcessName + "/" + uids.keyAt(iu)
+                                        + " for service " + ss.mName);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        Collections.sort(entries, ProcessStatsUi.sEntryCompare);
+
+        long maxWeight = 1;
+        for (int i=0, N=entries.size(); i<N; i++) {
+            ProcStatsEntry proc = entries.get(i);
+            if (maxWeight < proc.mWeight) {
+                maxWeight = proc.mWeight;
+            }
+        }
+
+        if (DEBUG) Log.d(TAG, "-------------------- RETRIEVING UI DATA");
+
+        // Only the entries that get listed need their target and label
+        ArrayList<ProcStatsEntry> shown = new ArrayList<ProcStatsEntry>();
+        for (int i=0, N=entries.size(); i<N; i++) {
+            ProcStatsEntry proc = entries.get(i);
+            final double percentOfWeight = (((double)proc.mWeight) / maxWeight) * 100;
+            final double percentOfTime = (((double)proc.mDuration) / memTotalTime) * 100;
+            if (percentOfWeight < 1 && percentOfTime < 33) {
+                if (DEBUG) Log.d(TAG, "Skipping " + proc.mName + " weight=" + percentOfWeight
+                        + " time=" + percentOfTime);
+                continue;
+            }
+            proc.evaluateTargetPackage(pm, mStats, totals, ProcessStatsUi.sEntryCompare, useUss,
+                    background);
+            proc.retrieveUiData(pm);
+            shown.add(proc);
+            if (shown.size() >= ProcessStatsUi.MAX_ITEMS_TO_LIST) {
+                if (DEBUG) Log.d(TAG, "Hit item limit!");
+                break;
+            }
+        }
+
+        return new StatsView(shown, maxWeight, memTotalTime);
+    }
+}
@@ -17,35 +17,28 @@
 package com.android.settings.applications;
 
 import android.content.Context;
+import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
+import android.graphics.drawable.Drawable;
+import android.os.AsyncTask;
 import android.os.Bundle;
-import android.os.ParcelFileDescriptor;
-import android.os.RemoteException;
 import android.os.ServiceManager;
-import android.os.SystemClock;
 import android.os.UserManager;
 import android.preference.Preference;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceFragment;
 import android.preference.PreferenceGroup;
 import android.preference.PreferenceScreen;
-import android.util.Log;
-import android.util.SparseArray;
-import android.util.TimeUtils;
+import android.util.ArrayMap;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.SubMenu;
 import com.android.internal.app.IProcessStats;
-import com.android.internal.app.ProcessMap;
 import com.android.internal.app.ProcessStats;
 import com.android.settings.R;
 import com.android.settings.fuelgauge.Utils;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Comparator;
 
 public class ProcessStatsUi extends PreferenceFragment
@@ -62,9 +55,9 @@ public class ProcessStatsUi extends PreferenceFragment
     private static final int MENU_DURATION = Menu.FIRST + 1;
     private static final int MENU_SHOW_SYSTEM = MENU_DURATION + NUM_DURATIONS;
     private static final int MENU_USE_USS = MENU_SHOW_SYSTEM + 1;
-    private static final int MENU_TYPE_BACKGROUND = MENU_USE_USS + 1;
-    private static final int MENU_TYPE_FOREGROUND = MENU_TYPE_BACKGROUND + 1;
-    private static final int MENU_TYPE_CACHED = MENU_TYPE_FOREGROUND + 1;
+    static final int MENU_TYPE_BACKGROUND = MENU_USE_USS + 1;
+    static final int MENU_TYPE_FOREGROUND = MENU_TYPE_BACKGROUND + 1;
+    static final int MENU_TYPE_CACHED = MENU_TYPE_FOREGROUND + 1;
     private static final int MENU_HELP = MENU_TYPE_CACHED + 1;
 
     static final int MAX_ITEMS_TO_LIST = 60;
@@ -85,15 +78,19 @@ public class ProcessStatsUi extends PreferenceFragment
         }
     };
 
-    private static ProcessStats sStatsXfer;
+    private static final int[] STATS_TYPES = new int[] {
+            MENU_TYPE_BACKGROUND, MENU_TYPE_FOREGROUND, MENU_TYPE_CACHED
+    };
+
+    private static final int[] MEM_REGIONS = new int[] {
+            LinearColorBar.REGION_GREEN, LinearColorBar.REGION_YELLOW, LinearColorBar.REGION_RED
+    };
 
     IProcessStats mProcessStats;
     UserManager mUm;
-    ProcessStats mStats;
-    int mMemState;
+    ProcessStatsModel mModel;
 
     private long mDuration;
-    private long mLastDuration;
     private boolean mShowSystem;
     private boolean mUseUss;
     private int mStatsType;
@@ -109,6 +106,10 @@ public class ProcessStatsUi extends PreferenceFragment
     private PreferenceGroup mAppListGroup;
     private Preference mMemStatusPref;
 
+    private LoadTask mLoadTask;
+    // Icons of the listed apps by package name, filled in by mLoadTask
+    private final ArrayMap<String, Drawable> mIcons = new ArrayMap<String, Drawable>();
+
     long mMaxWeight;
     long mTotalTime;
 
@@ -131,10 +132,6 @@ public class ProcessStatsUi extends PreferenceFragment
     public void onCreate(Bundle icicle) {
         super.onCreate(icicle);
 
-        if (icicle != null) {
-            mStats = sStatsXfer;
-        }
-
         addPreferencesFromResource(R.xml.process_stats_summary);
         mProcessStats = IProcessStats.Stub.asInterface(
                 ServiceManager.getService(ProcessStats.SERVICE_NAME));
@@ -175,11 +172,30 @@ public class ProcessStatsUi extends PreferenceFragment
     @Override
     public void onDestroy() {
         super.onDestroy();
-        if (getActivity().isChangingConfigurations()) {
-            sStatsXfer = mStats;
+        if (mLoadTask != null) {
+            mLoadTask.cancel(false);
+            mLoadTask = null;
+        }
+        // keep the stats for the instance recreated after a configuration change
+        if (!getActivity().isChangingConfigurations()) {
+            ProcessStatsModel.clear();
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= TRIM_MEMORY_BACKGROUND) {
+            ProcessStatsModel.clear();
         }
     }
 
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        ProcessStatsModel.clear();
+    }
+
     @Override
     public boolean onPreferenceTreeClick(PreferenceScreen preferenceScreen, Preference preference) {
         if (!(preference instanceof ProcessStatsPreference)) {
@@ -279,7 +295,8 @@ public class ProcessStatsUi extends PreferenceFragment
         final int id = item.getItemId();
         switch (id) {
             case MENU_STATS_REFRESH:
-                mStats = null;
+                ProcessStatsModel.invalidate(mDuration);
+                mModel = null;
                 refreshStats();
                 return true;
             case MENU_SHOW_SYSTEM:
@@ -344,30 +361,49 @@ public class ProcessStatsUi extends PreferenceFragment
             ProcessStats.ADJ_MEM_FACTOR_MODERATE
     };
 
-    private String makeDuration(long time) {
-        StringBuilder sb = new StringBuilder(32);
-        TimeUtils.formatDuration(time, sb);
-        return sb.toString();
-    }
-
     private void refreshStats() {
         updateMenus();
 
-        if (mStats == null || mLastDuration != mDuration) {
-            load();
+        if (mModel == null || mModel.mDuration != mDuration) {
+            mModel = ProcessStatsModel.getCached(mDuration);
+        }
+        ProcessStatsModel.StatsView view = mModel != null
+                ? mModel.getCachedView(mStatsType, mShowSystem, mUseUss, mMemRegion) : null;
+        if (view != null) {
+            bindStats(mModel, view);
+            if (hasAllIcons(view)) {
+                return;
+            }
+        }
+        // Keep showing the previous view until the new one is ready
+        if (mLoadTask != null) {
+            mLoadTask.cancel(false);
+        }
+        mLoadTask = new LoadTask(getActivity().getPackageManager(), mDuration, mStatsType,
+                mShowSystem, mUseUss, mMemRegion);
+        mLoadTask.execute();
+    }
+
+    private boolean hasAllIcons(ProcessStatsModel.StatsView view) {
+        synchronized (mIcons) {
+            for (int i=0, N=view.mEntries.size(); i<N; i++) {
+                ProcStatsEntry proc = view.mEntries.get(i);
+                if (proc.mUiTargetApp != null
+                        && !mIcons.containsKey(proc.mUiTargetApp.packageName)) {
+                    return false;
+                }
+            }
         }
+        return true;
+    }
 
-        int[] stats;
+    private void bindStats(ProcessStatsModel model, ProcessStatsModel.StatsView view) {
         int statsLabel;
         if (mStatsType == MENU_TYPE_FOREGROUND) {
-            stats = FOREGROUND_PROC_STATES;
             statsLabel = R.string.process_stats_type_foreground;
         } else if (mStatsType == MENU_TYPE_CACHED) {
-            stats = CACHED_PROC_STATES;
             statsLabel = R.string.process_stats_type_cached;
         } else {
-            stats = mShowSystem ? BACKGROUND_AND_SYSTEM_PROC_STATES
-                    : ProcessStats.BACKGROUND_PROC_STATES;
             statsLabel = R.string.process_stats_type_background;
         }
 
@@ -376,12 +412,11 @@ public class ProcessStatsUi extends PreferenceFragment
 
         mMemStatusPref.setOrder(-2);
         mAppListGroup.addPreference(mMemStatusPref);
-        String durationString = Utils.formatElapsedTime(getActivity(),
-                mStats.mTimePeriodEndRealtime-mStats.mTimePeriodStartRealtime, false);
+        String durationString = Utils.formatElapsedTime(getActivity(), model.mTimePeriod, false);
         CharSequence memString;
         CharSequence[] memStatesStr = getResources().getTextArray(R.array.ram_states);
-        if (mMemState >= 0 && mMemState < memStatesStr.length) {
-            memString = memStatesStr[mMemState];
+        if (model.mMemState >= 0 && model.mMemState < memStatesStr.length) {
+            memString = memStatesStr[model.mMemState];
         } else {
             memString = "?";
         }
@@ -389,35 +424,9 @@ public class ProcessStatsUi extends PreferenceFragment
                 getActivity().getString(statsLabel), durationString));
         mMemStatusPref.setSummary(getActivity().getString(R.string.process_stats_memory_status,
                         memString));
-        /*
-        mMemStatusPref.setTitle(DateFormat.format(DateFormat.getBestDateTimePattern(
-                getActivity().getResources().getConfiguration().locale,
-                "MMMM dd, yyyy h:mm a"), mStats.mTimePeriodStartClock));
-        */
-        /*
-        BatteryHistoryPreference hist = new BatteryHistoryPreference(getActivity(), mStats);
-        hist.setOrder(-1);
-        mAppListGroup.addPreference(hist);
-        */
-
-        long now = SystemClock.uptimeMillis();
 
-        final PackageManager pm = getActivity().getPackageManager();
-
-        mTotalTime = ProcessStats.dumpSingleTime(null, null, mStats.mMemFactorDurations,
-                mStats.mMemFactor, mStats.mStartTime, now);
-        if (DEBUG) Log.d(TAG, "Total time of stats: " + makeDuration(mTotalTime));
-
-        long[] memTimes = new long[ProcessStats.ADJ_MEM_FACTOR_COUNT];
-        for (int iscreen=0; iscreen<ProcessStats.ADJ_COUNT; iscreen+=ProcessStats.ADJ_SCREEN_MOD) {
-            for (int imem=0; imem<ProcessStats.ADJ_MEM_FACTOR_COUNT; imem++) {
-                int state = imem+iscreen;
-                memTimes[imem] += mStats.mMemFactorDurations[state];
-            }
-        }
-
-        long memTotalTime;
-        int[] memStates;
+        mTotalTime = model.mTotalTime;
+        final long[] memTimes = model.mMemTimes;
 
         LinearColorPreference colors = new LinearColorPreference(getActivity());
         colors.setOrder(-1);
@@ -425,21 +434,13 @@ public class ProcessStatsUi extends PreferenceFragment
         switch (mMemRegion) {
             case LinearColorBar.REGION_RED:
                 colors.setColoredRegions(LinearColorBar.REGION_RED);
-                memTotalTime = memTimes[ProcessStats.ADJ_MEM_FACTOR_CRITICAL];
-                memStates = RED_MEM_STATES;
                 break;
             case LinearColorBar.REGION_YELLOW:
                 colors.setColoredRegions(LinearColorBar.REGION_RED
                         | LinearColorBar.REGION_YELLOW);
-                memTotalTime = memTimes[ProcessStats.ADJ_MEM_FACTOR_CRITICAL]
-                        + memTimes[ProcessStats.ADJ_MEM_FACTOR_LOW]
-                        + memTimes[ProcessStats.ADJ_MEM_FACTOR_MODERATE];
-                memStates = YELLOW_MEM_STATES;
                 break;
             default:
                 colors.setColoredRegions(LinearColorBar.REGION_ALL);
-                memTotalTime = mTotalTime;
-                memStates = ProcessStats.ALL_MEM_ADJ;
                 break;
         }
         colors.setRatios(memTimes[ProcessStats.ADJ_MEM_FACTOR_CRITICAL] / (float)mTotalTime,
@@ -448,165 +449,113 @@ public class ProcessStatsUi extends PreferenceFragment
                 memTimes[ProcessStats.ADJ_MEM_FACTOR_NORMAL] / (float)mTotalTime);
         mAppListGroup.addPreference(colors);
 
-        ProcessStats.ProcessDataCollection totals = new ProcessStats.ProcessDataCollection(
-                ProcessStats.ALL_SCREEN_ADJ, memStates, stats);
-
-        ArrayList<ProcStatsEntry> entries = new ArrayList<ProcStatsEntry>();
+        mMaxWeight = view.mMaxWeight;
 
-        /*
-        ArrayList<ProcessStats.ProcessState> rawProcs = mStats.collectProcessesLocked(
-                ProcessStats.ALL_SCREEN_ADJ, ProcessStats.ALL_MEM_ADJ,
-                ProcessStats.BACKGROUND_PROC_STATES, now, null);
-        for (int i=0, N=(rawProcs != null ? rawProcs.size() : 0); i<N; i++) {
-            procs.add(new ProcStatsEntry(rawProcs.get(i), totals));
-        }
-        */
-
-        if (DEBUG) Log.d(TAG, "-------------------- PULLING PROCESSES");
-
-        final ProcessMap<ProcStatsEntry> entriesMap = new ProcessMap<ProcStatsEntry>();
-        for (int ipkg=0, N=mStats.mPackages.getMap().size(); ipkg<N; ipkg++) {
-            final SparseArray<ProcessStats.PackageState> pkgUids
-                    = mStats.mPackages.getMap().valueAt(ipkg);
-            for (int iu=0; iu<pkgUids.size(); iu++) {
-                final ProcessStats.PackageState st = pkgUids.valueAt(iu);
-                for (int iproc=0; iproc<st.mProcesses.size(); iproc++) {
-                    final ProcessStats.ProcessState pkgProc = st.mProcesses.valueAt(iproc);
-                    final ProcessStats.ProcessState proc = mStats.mProcesses.get(pkgProc.mName,
-                            pkgProc.mUid);
-                    if (proc == null) {
-                        Log.w(TAG, "No process found for pkg " + st.mPackageName
-                                + "/" + st.mUid + " proc name " + pkgProc.mName);
-                        continue;
-                    }
-                    ProcStatsEntry ent = entriesMap.get(proc.mName, proc.mUid);
-                    if (ent == null) {
-                        ent = new ProcStatsEntry(proc, st.mPackageName, totals, mUseUss,
-                                mStatsType == MENU_TYPE_BACKGROUND);
-                        if (ent.mDuration > 0) {
-                            if (DEBUG) Log.d(TAG, "Adding proc " + proc.mName + "/"
-                                    + proc.mUid + ": time=" + makeDuration(ent.mDuration) + " ("
-                                    + ((((double)ent.mDuration) / memTotalTime) * 100) + "%)"
-                                    + " pss=" + ent.mAvgPss);
-                            entriesMap.put(proc.mName, proc.mUid, ent);
-                            entries.add(ent);
-                        }
-                    }  else {
-                        ent.addPackage(st.mPackageName);
-                    }
+        for (int i=0, N=view.mEntries.size(); i<N; i++) {
+            ProcStatsEntry proc = view.mEntries.get(i);
+            final double percentOfWeight = (((double)proc.mWeight) / view.mMaxWeight) * 100;
+            final double percentOfTime = (((double)proc.mDuration) / view.mMemTotalTime) * 100;
+            Drawable icon = null;
+            if (proc.mUiTargetApp != null) {
+                synchronized (mIcons) {
+                    icon = mIcons.get(proc.mUiTargetApp.packageName);
                 }
             }
+            ProcessStatsPreference pref = new ProcessStatsPreference(getActivity(), icon, proc);
+            pref.setTitle(proc.mUiLabel);
+            pref.setOrder(i);
+            pref.setPercent(percentOfWeight, percentOfTime);
+            mAppListGroup.addPreference(pref);
         }
+    }
 
-        if (DEBUG) Log.d(TAG, "-------------------- MAPPING SERVICES");
-
-        // Add in service info.
-        if (mStatsType == MENU_TYPE_BACKGROUND) {
-            for (int ip=0, N=mStats.mPackages.getMap().size(); ip<N; ip++) {
-                SparseArray<ProcessStats.PackageState> uids = mStats.mPackages.getMap().valueAt(ip);
-                for (int iu=0; iu<uids.size(); iu++) {
-                    ProcessStats.PackageState ps = uids.valueAt(iu);
-                    for (int is=0, NS=ps.mServices.size(); is<NS; is++) {
-                        ProcessStats.ServiceState ss = ps.mServices.valueAt(is);
-                        if (ss.mProcessName != null) {
-                            ProcStatsEntry ent = entriesMap.get(ss.mProcessName, uids.keyAt(iu));
-                            if (ent != null) {
-                                if (DEBUG) Log.d(TAG, "Adding service " + ps.mPackageName
-                                        + "/" + ss.mName + "/" + uids.keyAt(iu) + " to proc "
-                                        + ss.mProcessName);
-                                ent.addService(ss);
-                            } else {
-                                Log.w(TAG, "No process " + ss.mProcessName + "/" + uids.keyAt(iu)
-                                        + " for service " + ss.mName);
-                            }
-                        }
+    /**
+     * Reads the stats if needed and computes the requested view, then the
+     * other process state types and memory regions with the same toggles,
+     * so switching between those doesn't have to wait.
+     */
+    private class LoadTask extends AsyncTask<Void, Void, Void> {
+        private final PackageManager mPm;
+        private final long mTaskDuration;
+        private final int mTaskStatsType;
+        private final boolean mTaskShowSystem;
+        private final boolean mTaskUseUss;
+        private final int mTaskMemRegion;
+
+        private ProcessStatsModel mTaskModel;
+
+        LoadTask(PackageManager pm, long duration, int statsType, boolean showSystem,
+                boolean useUss, int memRegion) {
+            mPm = pm;
+            mTaskDuration = duration;
+            mTaskStatsType = statsType;
+            mTaskShowSystem = showSystem;
+            mTaskUseUss = useUss;
+            mTaskMemRegion = memRegion;
+        }
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            mTaskModel = ProcessStatsModel.get(mProcessStats, mTaskDuration);
+            if (mTaskModel == null || isCancelled()) {
+                return null;
+            }
+            loadIcons(mTaskModel.getView(mPm, mTaskStatsType, mTaskShowSystem, mTaskUseUss,
+                    mTaskMemRegion));
+            publishProgress();
+
+            for (int statsType : STATS_TYPES) {
+                for (int memRegion : MEM_REGIONS) {
+                    if (isCancelled()) {
+                        return null;
                     }
+                    loadIcons(mTaskModel.getView(mPm, statsType, mTaskShowSystem, mTaskUseUss,
+                            memRegion));
                 }
             }
+            return null;
         }
 
-        /*
-        SparseArray<ArrayMap<String, ProcStatsEntry>> processes
-                = new SparseArray<ArrayMap<String, ProcStatsEntry>>();
-        for (int ip=0, N=mStats.mProcesses.getMap().size(); ip<N; ip++) {
-            SparseArray<ProcessStats.ProcessState> uids = mStats.mProcesses.getMap().valueAt(ip);
-            for (int iu=0; iu<uids.size(); iu++) {
-                ProcessStats.ProcessState st = uids.valueAt(iu);
-                ProcStatsEntry ent = new ProcStatsEntry(st, totals, mUseUss,
-                        mStatsType == MENU_TYPE_BACKGROUND);
-                if (ent.mDuration > 0) {
-                    if (DEBUG) Log.d(TAG, "Adding proc " + st.mName + "/" + st.mUid + ": time="
-                            + makeDuration(ent.mDuration) + " ("
-                            + ((((double)ent.mDuration) / memTotalTime) * 100) + "%)");
-                    procs.add(ent);
-                    ArrayMap<String, ProcStatsEntry> uidProcs = processes.get(ent.mUid);
-                    if (uidProcs == null) {
-                        uidProcs = new ArrayMap<String, ProcStatsEntry>();
-                        processes.put(ent.mUid, uidProcs);
+        private void loadIcons(ProcessStatsModel.StatsView view) {
+            for (int i=0, N=view.mEntries.size(); i<N; i++) {
+                ProcStatsEntry proc = view.mEntries.get(i);
+                ApplicationInfo app = proc.mUiTargetApp;
+                if (app == null) {
+                    continue;
+                }
+                synchronized (mIcons) {
+                    if (mIcons.containsKey(app.packageName)) {
+                        continue;
                     }
-                    uidProcs.put(ent.mName, ent);
+                }
+                Drawable icon = app.loadIcon(mPm);
+                synchronized (mIcons) {
+                    mIcons.put(app.packageName, icon);
                 }
             }
         }
-        */
-
-        Collections.sort(entries, sEntryCompare);
 
-        long maxWeight = 1;
-        for (int i=0, N=(entries != null ? entries.size() : 0); i<N; i++) {
-            ProcStatsEntry proc = entries.get(i);
-            if (maxWeight < proc.mWeight) {
-                maxWeight = proc.mWeight;
-            }
-        }
-        mMaxWeight = maxWeight;
-
-        if (DEBUG) Log.d(TAG, "-------------------- BUILDING UI");
-
-        for (int i=0, N=(entries != null ? entries.size() : 0); i<N; i++) {
-            ProcStatsEntry proc = entries.get(i);
-            final double percentOfWeight = (((double)proc.mWeight) / maxWeight) * 100;
-            final double percentOfTime = (((double)proc.mDuration) / memTotalTime) * 100;
-            if (percentOfWeight < 1 && percentOfTime < 33) {
-                if (DEBUG) Log.d(TAG, "Skipping " + proc.mName + " weight=" + percentOfWeight
-                        + " time=" + percentOfTime);
-                continue;
-            }
-            ProcessStatsPreference pref = new ProcessStatsPreference(getActivity(), null, proc);
-            proc.evaluateTargetPackage(pm, mStats, totals, sEntryCompare, mUseUss,
-                    mStatsType == MENU_TYPE_BACKGROUND);
-            proc.retrieveUiData(pm);
-            pref.setTitle(proc.mUiLabel);
-            if (proc.mUiTargetApp != null) {
-                pref.setIcon(proc.mUiTargetApp.loadIcon(pm));
-            }
-            pref.setOrder(i);
-            pref.setPercent(percentOfWeight, percentOfTime);
-            mAppListGroup.addPreference(pref);
-            if (mAppListGroup.getPreferenceCount() > (MAX_ITEMS_TO_LIST+1)) {
-                if (DEBUG) Log.d(TAG, "Done with UI, hit item limit!");
-                break;
+        @Override
+        protected void onProgressUpdate(Void... values) {
+            if (isCancelled() || mTaskDuration != mDuration || mTaskStatsType != mStatsType
+                    || mTaskShowSystem != mShowSystem || mTaskUseUss != mUseUss
+                    || mTaskMemRegion != mMemRegion) {
+                return;
             }
+            mModel = mTaskModel;
+            bindStats(mTaskModel, mTaskModel.getCachedView(mStatsType, mShowSystem, mUseUss,
+                    mMemRegion));
         }
-    }
 
-    private void load() {
-        try {
-            mLastDuration = mDuration;
-            mMemState = mProcessStats.getCurrentMemoryState();
-            ParcelFileDescriptor pfd = mProcessStats.getStatsOverTime(mDuration);
-            mStats = new ProcessStats(false);
-            InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
-            mStats.read(is);
-            try {
-                is.close();
-            } catch (IOException e) {
+        @Override
+        protected void onPostExecute(Void result) {
+            if (mLoadTask == this) {
+                mLoadTask = null;
             }
-            if (mStats.mReadError != null) {
-                Log.w(TAG, "Failure reading process stats: " + mStats.mReadError);
+            if (mTaskModel == null && mTaskDuration == mDuration && mModel == null) {
+                mAppListGroup.removeAll();
+                addNotAvailableMessage();
             }
-        } catch (RemoteException e) {
-            Log.e(TAG, "RemoteException:", e);
         }
     }
 }
@@ -6,9 +6,7 @@ import android.content.ComponentName;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.pm.ActivityInfo;
 import android.content.pm.PackageManager;
-import android.content.pm.ResolveInfo;
 import android.content.res.Configuration;
 import android.graphics.drawable.Drawable;
 import android.os.AsyncTask;
@@ -28,7 +26,6 @@ import com.android.settings.R;
 import com.android.settings.cyanogenmod.ProtectedAppsReceiver;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -41,7 +38,7 @@ public class ProtectedAppsActivity extends Activity {
     private static final int MENU_RESET = 0;
     private static final int MENU_RESET_LOCK = 1;
 
-    private PackageManager mPackageManager;
+    private PackageCatalog mCatalog;
 
     private AppsAdapter mAppsAdapter;
 
@@ -56,7 +53,7 @@ public class ProtectedAppsActivity extends Activity {
         setTitle(R.string.protected_apps);
         setContentView(R.layout.hidden_apps_list);
 
-        mPackageManager = getPackageManager();
+        mCatalog = PackageCatalog.getInstance(this);
         mAppsAdapter = new AppsAdapter(this, R.layout.hidden_apps_list_item);
         mAppsAdapter.setNotifyOnChange(true);
 
@@ -205,12 +202,10 @@ public class ProtectedAppsActivity extends Activity {
     }
 
     private List<AppEntry> refreshApps() {
-        Intent mainIntent = new Intent(Intent.ACTION_MAIN, null);
-        mainIntent.addCategory(Intent.CATEGORY_LAUNCHER);
-        List<ResolveInfo> apps = mPackageManager.queryIntentActivities(mainIntent, 0);
-        Collections.sort(apps, new ResolveInfo.DisplayNameComparator(mPackageManager));
+        mCatalog.waitForLoad();
+        List<PackageCatalog.ActivityEntry> apps = mCatalog.getActivities(null);
         List<AppEntry> appEntries = new ArrayList<AppEntry>(apps.size());
-        for (ResolveInfo info : apps) {
+        for (PackageCatalog.ActivityEntry info : apps) {
             appEntries.add(new AppEntry(info));
         }
         return appEntries;
@@ -236,11 +231,12 @@ public class ProtectedAppsActivity extends Activity {
     private final class AppEntry {
         public final ComponentName componentName;
         public final String title;
+        public final PackageCatalog.Entry owner;
 
-        public AppEntry(ResolveInfo info) {
-            ActivityInfo aInfo = info.activityInfo;
-            componentName = new ComponentName(aInfo.packageName, aInfo.name);
-            title = info.loadLabel(mPackageManager).toString();
+        public AppEntry(PackageCatalog.ActivityEntry info) {
+            componentName = info.componentName;
+            title = info.label.toString();
+            owner = info.owner;
         }
     }
 
@@ -392,17 +388,12 @@ public class ProtectedAppsActivity extends Activity {
             @Override
             protected Void doInBackground(AppEntry... apps) {
                 for (AppEntry app : apps) {
-                    try {
-                        String packageName = app.componentName.getPackageName();
-                        if (mIcons.containsKey(packageName)) {
-                            continue;
-                        }
-                        Drawable icon = mPackageManager.getApplicationIcon(packageName);
-                        mIcons.put(packageName, icon);
-                        publishProgress();
-                    } catch (PackageManager.NameNotFoundException e) {
-                        // ignored; app will show up with default image
+                    String packageName = app.componentName.getPackageName();
+                    if (mIcons.containsKey(packageName)) {
+                        continue;
                     }
+                    mIcons.put(packageName, mCatalog.getIcon(app.owner));
+                    publishProgress();
                 }
 
                 return null;
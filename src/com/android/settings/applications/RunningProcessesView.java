@@ -27,11 +27,13 @@ import android.content.Context;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.preference.PreferenceActivity;
 import android.text.format.DateUtils;
 import android.text.format.Formatter;
 import android.util.AttributeSet;
+import android.view.Gravity;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -47,11 +49,16 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
 
 public class RunningProcessesView extends FrameLayout
         implements AdapterView.OnItemClickListener, RecyclerListener,
         RunningState.OnRefreshUiListener {
     
+    // Set to show how often and at what cost the state gets updated.
+    static final String DEBUG_OVERLAY_PROPERTY = "debug.settings.running_stats";
+
     final int mMyUserId;
 
     long SECONDARY_SERVER_MEM;
@@ -75,6 +82,7 @@ public class RunningProcessesView extends FrameLayout
     LinearColorBar mColorBar;
     TextView mBackgroundProcessText;
     TextView mForegroundProcessText;
+    TextView mDebugOverlay;
     
     int mLastNumBackgroundProcesses = -1;
     int mLastNumForegroundProcesses = -1;
@@ -453,6 +461,27 @@ public class RunningProcessesView extends FrameLayout
         ActivityManager.MemoryInfo memInfo = new ActivityManager.MemoryInfo();
         mAm.getMemoryInfo(memInfo);
         SECONDARY_SERVER_MEM = memInfo.secondaryServerThreshold;
+
+        if (SystemProperties.getBoolean(DEBUG_OVERLAY_PROPERTY, false)) {
+            mDebugOverlay = new TextView(getContext());
+            mDebugOverlay.setBackgroundColor(0xc0000000);
+            mDebugOverlay.setTextColor(0xffffffff);
+            mDebugOverlay.setTextSize(10);
+            addView(mDebugOverlay, new FrameLayout.LayoutParams(
+                    LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT,
+                    Gravity.TOP | Gravity.END));
+        }
+    }
+
+    void updateDebugOverlay() {
+        if (mDebugOverlay == null) {
+            return;
+        }
+        synchronized (mState.mLock) {
+            mDebugOverlay.setText("every " + mState.mUpdateDelay + "ms, took "
+                    + mState.mLastUpdateDuration + "ms\npss sampled "
+                    + mState.mLastPssSampled + "/" + mState.mLastPssTotal);
+        }
     }
     
     public void doPause() {
@@ -487,8 +516,25 @@ public class RunningProcessesView extends FrameLayout
         }
     }
 
+    @Override
+    public void onItemsChanged(Set<RunningState.BaseItem> items) {
+        Iterator<Map.Entry<View, ActiveItem>> it = mActiveItems.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<View, ActiveItem> entry = it.next();
+            ActiveItem ai = entry.getValue();
+            if (ai.mRootView.getWindowToken() == null) {
+                it.remove();
+                continue;
+            }
+            if (items.contains(ai.mItem)) {
+                entry.setValue(ai.mHolder.bind(mState, ai.mItem, mBuilder));
+            }
+        }
+    }
+
     @Override
     public void onRefreshUi(int what) {
+        updateDebugOverlay();
         switch (what) {
             case REFRESH_TIME:
                 updateTimes();
@@ -42,6 +42,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Set;
 
 public class RunningServiceDetails extends Fragment
         implements RunningState.OnRefreshUiListener {
@@ -627,6 +628,18 @@ public class RunningServiceDetails extends Fragment
         }
     }
 
+    @Override
+    public void onItemsChanged(Set<RunningState.BaseItem> items) {
+        if (getActivity() == null || mMergedItem == null) return;
+        boolean changed = items.contains(mMergedItem);
+        for (int i=0; !changed && i<mMergedItem.mServices.size(); i++) {
+            changed = items.contains(mMergedItem.mServices.get(i));
+        }
+        if (changed) {
+            refreshUi(true);
+        }
+    }
+
     @Override
     public void onRefreshUi(int what) {
         if (getActivity() == null) return;
@@ -38,18 +38,24 @@ import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
+import android.text.TextUtils;
 import android.text.format.Formatter;
 import android.util.Log;
 import android.util.SparseArray;
+import android.util.SparseLongArray;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Singleton for retrieving and monitoring the state about all running
@@ -68,7 +74,13 @@ public class RunningState {
     static final int MSG_UPDATE_TIME = 4;
 
     static final long TIME_UPDATE_DELAY = 1000;
-    static final long CONTENTS_UPDATE_DELAY = 2000;
+    // Contents are polled quickly while rows change, backing off
+    // while nothing does.
+    static final long MIN_CONTENTS_UPDATE_DELAY = 1000;
+    static final long MAX_CONTENTS_UPDATE_DELAY = 8000;
+
+    // How long a sampled pss stays valid.
+    static final long PSS_MAX_AGE = 6000;
 
     static final int MAX_SERVICES = 100;
 
@@ -136,6 +148,72 @@ public class RunningState {
     // Temporary structure used when updating above information.
     final SparseArray<AppProcessInfo> mTmpAppProcesses = new SparseArray<AppProcessInfo>();
 
+    /**
+     * Pss of the processes by pid, so that each pass only has to sample
+     * the processes that are new or whose value got too old, with a
+     * single query.
+     */
+    static final class PssCache {
+        private SparseLongArray mPss = new SparseLongArray();
+        private SparseLongArray mTimes = new SparseLongArray();
+        private SparseLongArray mNewPss = new SparseLongArray();
+        private SparseLongArray mNewTimes = new SparseLongArray();
+
+        // Number of pids sampled by the last call to get()
+        int mLastSampled;
+
+        /**
+         * @return the pss in kB of the given pids; entries of all other
+         *         pids are dropped
+         */
+        long[] get(int[] pids, long now) throws RemoteException {
+            final int N = pids.length;
+            long[] pss = new long[N];
+            int[] stalePids = new int[N];
+            int[] staleIndex = new int[N];
+            int numStale = 0;
+            mNewPss.clear();
+            mNewTimes.clear();
+            for (int i=0; i<N; i++) {
+                int index = mTimes.indexOfKey(pids[i]);
+                if (index >= 0 && now - mTimes.valueAt(index) < PSS_MAX_AGE) {
+                    pss[i] = mPss.get(pids[i]);
+                    mNewPss.put(pids[i], pss[i]);
+                    mNewTimes.put(pids[i], mTimes.valueAt(index));
+                } else {
+                    stalePids[numStale] = pids[i];
+                    staleIndex[numStale] = i;
+                    numStale++;
+                }
+            }
+            if (numStale > 0) {
+                long[] sampled = ActivityManagerNative.getDefault().getProcessPss(
+                        Arrays.copyOf(stalePids, numStale));
+                for (int i=0; i<numStale; i++) {
+                    pss[staleIndex[i]] = sampled[i];
+                    mNewPss.put(stalePids[i], sampled[i]);
+                    mNewTimes.put(stalePids[i], now);
+                }
+            }
+            SparseLongArray tmp = mPss;
+            mPss = mNewPss;
+            mNewPss = tmp;
+            tmp = mTimes;
+            mTimes = mNewTimes;
+            mNewTimes = tmp;
+            mLastSampled = numStale;
+            return pss;
+        }
+
+        void clear() {
+            mPss.clear();
+            mTimes.clear();
+        }
+    }
+
+    // Only used on the background thread.
+    final PssCache mPssCache = new PssCache();
+
     int mSequence = 0;
 
     final Comparator<RunningState.MergedItem> mBackgroundComparator
@@ -217,6 +295,12 @@ public class RunningState {
     int mNumServiceProcesses;
     long mServiceProcessMemory;
 
+    // Cadence of the updates and what the last one cost, for debugging.
+    long mUpdateDelay = MIN_CONTENTS_UPDATE_DELAY;
+    long mLastUpdateDuration;
+    int mLastPssSampled;
+    int mLastPssTotal;
+
     // ----- BACKGROUND MONITORING THREAD -----
 
     final HandlerThread mBackgroundThread;
@@ -237,12 +321,28 @@ public class RunningState {
                             return;
                         }
                     }
+                    final long start = SystemClock.uptimeMillis();
+                    ArrayList<BaseItem> changedItems = new ArrayList<BaseItem>();
+                    boolean structureChanged = update(mApplicationContext, mAm, changedItems);
                     Message cmd = mHandler.obtainMessage(MSG_REFRESH_UI);
-                    cmd.arg1 = update(mApplicationContext, mAm) ? 1 : 0;
+                    cmd.arg1 = structureChanged ? 1 : 0;
+                    cmd.obj = changedItems;
                     mHandler.sendMessage(cmd);
+
+                    long delay;
+                    synchronized (mLock) {
+                        if (structureChanged || !changedItems.isEmpty()) {
+                            mUpdateDelay = MIN_CONTENTS_UPDATE_DELAY;
+                        } else {
+                            mUpdateDelay = Math.min(mUpdateDelay * 2,
+                                    MAX_CONTENTS_UPDATE_DELAY);
+                        }
+                        mLastUpdateDuration = SystemClock.uptimeMillis() - start;
+                        delay = mUpdateDelay;
+                    }
                     removeMessages(MSG_UPDATE_CONTENTS);
                     msg = obtainMessage(MSG_UPDATE_CONTENTS);
-                    sendMessageDelayed(msg, CONTENTS_UPDATE_DELAY);
+                    sendMessageDelayed(msg, delay);
                     break;
             }
         }
@@ -252,14 +352,20 @@ public class RunningState {
 
     final Handler mHandler = new Handler() {
         int mNextUpdate = OnRefreshUiListener.REFRESH_TIME;
+        final HashSet<BaseItem> mChangedItems = new HashSet<BaseItem>();
 
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case MSG_REFRESH_UI:
-                    mNextUpdate = msg.arg1 != 0
-                            ? OnRefreshUiListener.REFRESH_STRUCTURE
-                            : OnRefreshUiListener.REFRESH_DATA;
+                    if (msg.arg1 != 0) {
+                        // Everything gets rebound anyway.
+                        mNextUpdate = OnRefreshUiListener.REFRESH_STRUCTURE;
+                        mChangedItems.clear();
+                    } else if (mNextUpdate != OnRefreshUiListener.REFRESH_STRUCTURE) {
+                        mNextUpdate = OnRefreshUiListener.REFRESH_DATA;
+                        mChangedItems.addAll((ArrayList<BaseItem>) msg.obj);
+                    }
                     break;
                 case MSG_UPDATE_TIME:
                     synchronized (mLock) {
@@ -274,6 +380,10 @@ public class RunningState {
                     if (mRefreshUiListener != null) {
                         //Log.i("foo", "Refresh UI: " + mNextUpdate
                         //        + " @ " + SystemClock.uptimeMillis());
+                        if (!mChangedItems.isEmpty()) {
+                            mRefreshUiListener.onItemsChanged(mChangedItems);
+                            mChangedItems.clear();
+                        }
                         mRefreshUiListener.onRefreshUi(mNextUpdate);
                         mNextUpdate = OnRefreshUiListener.REFRESH_TIME;
                     }
@@ -290,6 +400,14 @@ public class RunningState {
         public static final int REFRESH_STRUCTURE = 2;
 
         public void onRefreshUi(int what);
+
+        /**
+         * Called ahead of a REFRESH_DATA with the items whose label,
+         * description or start time changed since the last refresh.  The
+         * lists themselves are unchanged, so only these rows need rebinding;
+         * sizes and times are picked up by {@link RunningProcessesView.ActiveItem#updateTime}.
+         */
+        public void onItemsChanged(Set<BaseItem> items);
     }
 
     static class UserState {
@@ -591,7 +709,14 @@ public class RunningState {
             }
         }
 
+        /**
+         * @return whether anything shown for the item changed
+         */
         boolean update(Context context, boolean background) {
+            final CharSequence oldLabel = mDisplayLabel;
+            final String oldDescription = mDescription;
+            final long oldActiveSince = mActiveSince;
+            final boolean oldBackground = mBackground;
             mBackground = background;
 
             if (mUser != null) {
@@ -637,7 +762,9 @@ public class RunningState {
                 }
             }
 
-            return false;
+            return !TextUtils.equals(oldLabel, mDisplayLabel)
+                    || !TextUtils.equals(oldDescription, mDescription)
+                    || oldActiveSince != mActiveSince || oldBackground != mBackground;
         }
         
         boolean updateSize(Context context) {
@@ -751,6 +878,7 @@ public class RunningState {
         synchronized (mLock) {
             mResumed = true;
             mRefreshUiListener = listener;
+            mUpdateDelay = MIN_CONTENTS_UPDATE_DELAY;
             if (mInterestingConfigChanges.applyNewConfig(mApplicationContext.getResources())) {
                 mHaveData = false;
                 mBackgroundHandler.removeMessages(MSG_RESET_CONTENTS);
@@ -766,6 +894,7 @@ public class RunningState {
 
     void updateNow() {
         synchronized (mLock) {
+            mUpdateDelay = MIN_CONTENTS_UPDATE_DELAY;
             mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
             mBackgroundHandler.sendEmptyMessage(MSG_UPDATE_CONTENTS);
         }
@@ -818,6 +947,7 @@ public class RunningState {
         mProcessItems.clear();
         mAllProcessItems.clear();
         mUsers.clear();
+        mPssCache.clear();
     }
 
     private void addOtherUserItem(Context context, ArrayList<MergedItem> newMergedItems,
@@ -854,12 +984,20 @@ public class RunningState {
         userItem.mChildren.add(newItem);
     }
 
-    private boolean update(Context context, ActivityManager am) {
+    /**
+     * Diff the running services and processes against the previous pass,
+     * reusing the items of everything that is still around.
+     * @param changedItems filled with the items whose shown data changed
+     * @return whether the lists of items changed
+     */
+    private boolean update(Context context, ActivityManager am,
+            ArrayList<BaseItem> changedItems) {
         final PackageManager pm = context.getPackageManager();
         
         mSequence++;
         
         boolean changed = false;
+        boolean structureChanged = false;
 
         // Retrieve list of services, filtering out anything that definitely
         // won't be shown in the UI.
@@ -980,7 +1118,13 @@ public class RunningState {
                 proc.mDependentProcesses.clear();
                 proc.mCurSeq = mSequence;
             }
-            changed |= proc.updateService(context, si);
+            if (proc.updateService(context, si)) {
+                changed = true;
+                ServiceItem item = proc.mServices.get(si.service);
+                if (item != null) {
+                    changedItems.add(item);
+                }
+            }
         }
         
         // Now update the map of other processes that are running (but
@@ -1163,7 +1307,7 @@ public class RunningState {
                 
                 // Now add the services running in it.
                 MergedItem mergedItem = null;
-                boolean haveAllMerged = false;
+                boolean haveAllMerged = true;
                 boolean needDivider = false;
                 for (ServiceItem si : pi.mServices.values()) {
                     si.mNeedDivider = needDivider;
@@ -1179,7 +1323,7 @@ public class RunningState {
                     }
                 }
                 
-                if (!haveAllMerged || mergedItem == null
+                if (!haveAllMerged || mergedItem == null || mergedItem.mProcess != pi
                         || mergedItem.mServices.size() != pi.mServices.size()) {
                     // Whoops, we need to build a new MergedItem!
                     mergedItem = new MergedItem(pi.mUserId);
@@ -1188,13 +1332,26 @@ public class RunningState {
                         si.mMergedItem = mergedItem;
                     }
                     mergedItem.mProcess = pi;
+                }
+
+                // The processes it depends on may have changed either way.
+                int lastProc = mProcessItems.size() - 1;
+                boolean sameProcesses = mergedItem.mOtherProcesses.size() == lastProc - firstProc;
+                for (int mpi=firstProc; sameProcesses && mpi<lastProc; mpi++) {
+                    sameProcesses = mergedItem.mOtherProcesses.get(mpi - firstProc)
+                            == mProcessItems.get(mpi);
+                }
+                if (!sameProcesses) {
                     mergedItem.mOtherProcesses.clear();
-                    for (int mpi=firstProc; mpi<(mProcessItems.size()-1); mpi++) {
+                    for (int mpi=firstProc; mpi<lastProc; mpi++) {
                         mergedItem.mOtherProcesses.add(mProcessItems.get(mpi));
                     }
+                    changedItems.add(mergedItem);
+                }
+
+                if (mergedItem.update(context, false)) {
+                    changedItems.add(mergedItem);
                 }
-                
-                mergedItem.update(context, false);
                 if (mergedItem.mUserId != mMyUserId) {
                     addOtherUserItem(context, newMergedItems, mOtherUserMergedItems, mergedItem);
                 } else {
@@ -1212,7 +1369,9 @@ public class RunningState {
                         proc.mMergedItem = new MergedItem(proc.mUserId);
                         proc.mMergedItem.mProcess = proc;
                     }
-                    proc.mMergedItem.update(context, false);
+                    if (proc.mMergedItem.update(context, false)) {
+                        changedItems.add(proc.mMergedItem);
+                    }
                     if (proc.mMergedItem.mUserId != mMyUserId) {
                         addOtherUserItem(context, newMergedItems, mOtherUserMergedItems,
                                 proc.mMergedItem);
@@ -1228,14 +1387,19 @@ public class RunningState {
             final int NU = mOtherUserMergedItems.size();
             for (int i=0; i<NU; i++) {
                 MergedItem user = mOtherUserMergedItems.valueAt(i);
-                if (user.mCurSeq == mSequence) {
-                    user.update(context, false);
+                if (user.mCurSeq == mSequence && user.update(context, false)) {
+                    changedItems.add(user);
                 }
             }
 
+            // Items are reused across passes, so if nothing moved the
+            // current lists can be kept and only changed rows get rebound.
             synchronized (mLock) {
-                mItems = newItems;
-                mMergedItems = newMergedItems;
+                if (!newItems.equals(mItems) || !newMergedItems.equals(mMergedItems)) {
+                    mItems = newItems;
+                    mMergedItems = newMergedItems;
+                    structureChanged = true;
+                }
             }
         }
         
@@ -1281,8 +1445,11 @@ public class RunningState {
             for (int i=0; i<numProc; i++) {
                 pids[i] = mAllProcessItems.get(i).mPid;
             }
-            long[] pss = ActivityManagerNative.getDefault()
-                    .getProcessPss(pids);
+            long[] pss = mPssCache.get(pids, SystemClock.uptimeMillis());
+            synchronized (mLock) {
+                mLastPssSampled = mPssCache.mLastSampled;
+                mLastPssTotal = numProc;
+            }
             int bgIndex = 0;
             for (int i=0; i<pids.length; i++) {
                 ProcessItem proc = mAllProcessItems.get(i);
@@ -1294,8 +1461,7 @@ public class RunningState {
                     backgroundProcessMemory += proc.mSize;
                     MergedItem mergedItem;
                     if (newBackgroundItems != null) {
-                        mergedItem = proc.mMergedItem = new MergedItem(proc.mUserId);
-                        proc.mMergedItem.mProcess = proc;
+                        mergedItem = getBackgroundItem(proc);
                         diffUsers |= mergedItem.mUserId != mMyUserId;
                         newBackgroundItems.add(mergedItem);
                     } else {
@@ -1307,15 +1473,16 @@ public class RunningState {
                                 diffUsers |= mergedItem.mUserId != mMyUserId;
                                 newBackgroundItems.add(mergedItem);
                             }
-                            mergedItem = proc.mMergedItem = new MergedItem(proc.mUserId);
-                            proc.mMergedItem.mProcess = proc;
+                            mergedItem = getBackgroundItem(proc);
                             diffUsers |= mergedItem.mUserId != mMyUserId;
                             newBackgroundItems.add(mergedItem);
                         } else {
                             mergedItem = mBackgroundItems.get(bgIndex);
                         }
                     }
-                    mergedItem.update(context, true);
+                    if (mergedItem.update(context, true)) {
+                        changedItems.add(mergedItem);
+                    }
                     mergedItem.updateSize(context);
                     bgIndex++;
                 } else if (proc.mRunningProcessInfo.importance <=
@@ -1364,7 +1531,9 @@ public class RunningState {
                 for (int i=0; i<NU; i++) {
                     MergedItem user = mOtherUserBackgroundItems.valueAt(i);
                     if (user.mCurSeq == mSequence) {
-                        user.update(context, true);
+                        if (user.update(context, true)) {
+                            changedItems.add(user);
+                        }
                         user.updateSize(context);
                     }
                 }
@@ -1382,11 +1551,12 @@ public class RunningState {
             mBackgroundProcessMemory = backgroundProcessMemory;
             mForegroundProcessMemory = foregroundProcessMemory;
             mServiceProcessMemory = serviceProcessMemory;
-            if (newBackgroundItems != null) {
+            if (newBackgroundItems != null && (!newBackgroundItems.equals(mBackgroundItems)
+                    || !newUserBackgroundItems.equals(mUserBackgroundItems))) {
                 mBackgroundItems = newBackgroundItems;
                 mUserBackgroundItems = newUserBackgroundItems;
                 if (mWatchingBackgroundItems) {
-                    changed = true;
+                    structureChanged = true;
                 }
             }
             if (!mHaveData) {
@@ -1395,7 +1565,21 @@ public class RunningState {
             }
         }
         
-        return changed;
+        return structureChanged;
+    }
+
+    /**
+     * Merged item showing a cached process; reused as long as the process
+     * stays around, so its row keeps the same id.
+     */
+    private MergedItem getBackgroundItem(ProcessItem proc) {
+        MergedItem mergedItem = proc.mMergedItem;
+        if (mergedItem == null || mergedItem.mProcess != proc
+                || mergedItem.mServices.size() > 0) {
+            mergedItem = proc.mMergedItem = new MergedItem(proc.mUserId);
+            mergedItem.mProcess = proc;
+        }
+        return mergedItem;
     }
     
     ArrayList<BaseItem> getCurrentItems() {
@@ -17,13 +17,8 @@
 package com.android.settings.cyanogenmod;
 
 import android.content.Context;
-import android.content.Intent;
-import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageManager;
-import android.content.pm.ResolveInfo;
 import android.graphics.drawable.Drawable;
-import android.os.Handler;
-import android.os.Message;
+import android.os.AsyncTask;
 import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -33,35 +28,34 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import com.android.settings.R;
+import com.android.settings.applications.PackageCatalog;
 
-import java.util.Collections;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.TreeSet;
 
-public class PackageListAdapter extends BaseAdapter implements Runnable {
-    private PackageManager mPm;
+public class PackageListAdapter extends BaseAdapter implements PackageCatalog.Listener {
+    private PackageCatalog mCatalog;
     private LayoutInflater mInflater;
-    private List<PackageItem> mInstalledPackages = new LinkedList<PackageItem>();
+    private List<PackageItem> mInstalledPackages = new ArrayList<PackageItem>();
+    private Drawable mDefaultImg;
+    // Icons being loaded in the background, only used on the main thread
+    private final HashSet<PackageCatalog.Entry> mLoadingIcons =
+            new HashSet<PackageCatalog.Entry>();
 
     // Packages which don't have launcher icons, but which we want to show nevertheless
-    private static final String[] PACKAGE_WHITELIST = new String[] {
+    private static final HashSet<String> PACKAGE_WHITELIST = new HashSet<String>(Arrays.asList(
         "android",                          /* system server */
         "com.android.systemui",             /* system UI */
         "com.android.providers.downloads"   /* download provider */
-    };
+    ));
 
-    private final Handler mHandler = new Handler() {
+    private static final PackageCatalog.Filter FILTER = new PackageCatalog.Filter() {
         @Override
-        public void handleMessage(Message msg) {
-            PackageItem item = (PackageItem) msg.obj;
-            int index = Collections.binarySearch(mInstalledPackages, item);
-            if (index < 0) {
-                mInstalledPackages.add(-index - 1, item);
-            } else {
-                mInstalledPackages.get(index).activityTitles.addAll(item.activityTitles);
-            }
-            notifyDataSetChanged();
+        public boolean accept(PackageCatalog.Entry entry) {
+            return entry.isLaunchable() || PACKAGE_WHITELIST.contains(entry.packageName);
         }
     };
 
@@ -69,12 +63,15 @@ public class PackageListAdapter extends BaseAdapter implements Runnable {
         public final String packageName;
         public final CharSequence title;
         private final TreeSet<CharSequence> activityTitles = new TreeSet<CharSequence>();
-        public final Drawable icon;
-
-        PackageItem(String packageName, CharSequence title, Drawable icon) {
-            this.packageName = packageName;
-            this.title = title;
-            this.icon = icon;
+        private final PackageCatalog.Entry entry;
+
+        PackageItem(PackageCatalog.Entry entry) {
+            this.packageName = entry.packageName;
+            this.title = entry.label;
+            this.entry = entry;
+            for (PackageCatalog.ActivityEntry activity : entry.activities) {
+                activityTitles.add(activity.label);
+            }
         }
 
         @Override
@@ -85,8 +82,16 @@ public class PackageListAdapter extends BaseAdapter implements Runnable {
     }
 
     public PackageListAdapter(Context context) {
-        mPm = context.getPackageManager();
+        mCatalog = PackageCatalog.getInstance(context);
         mInflater = LayoutInflater.from(context);
+        // shown until the actual app icon is loaded in the background
+        mDefaultImg = context.getResources().getDrawable(android.R.mipmap.sym_def_app_icon);
+        mCatalog.addListener(this);
+        reloadList();
+    }
+
+    @Override
+    public void onPackageCatalogChanged() {
         reloadList();
     }
 
@@ -128,7 +133,14 @@ public class PackageListAdapter extends BaseAdapter implements Runnable {
 
         PackageItem applicationInfo = getItem(position);
         holder.title.setText(applicationInfo.title);
-        holder.icon.setImageDrawable(applicationInfo.icon);
+        Drawable icon = mCatalog.peekIcon(applicationInfo.entry);
+        if (icon == null) {
+            icon = mDefaultImg;
+            if (mLoadingIcons.add(applicationInfo.entry)) {
+                new LoadIconTask(applicationInfo.entry).execute();
+            }
+        }
+        holder.icon.setImageDrawable(icon);
 
         boolean needSummary = applicationInfo.activityTitles.size() > 0;
         if (applicationInfo.activityTitles.size() == 1) {
@@ -148,33 +160,37 @@ public class PackageListAdapter extends BaseAdapter implements Runnable {
     }
 
     private void reloadList() {
-        mInstalledPackages.clear();
-        new Thread(this).start();
+        List<PackageItem> packages = new ArrayList<PackageItem>();
+        for (PackageCatalog.Entry entry : mCatalog.getEntries(FILTER)) {
+            packages.add(new PackageItem(entry));
+        }
+        synchronized (mInstalledPackages) {
+            mInstalledPackages.clear();
+            mInstalledPackages.addAll(packages);
+        }
+        notifyDataSetChanged();
     }
 
-    @Override
-    public void run() {
-        final Intent mainIntent = new Intent(Intent.ACTION_MAIN, null);
-        mainIntent.addCategory(Intent.CATEGORY_LAUNCHER);
-        List<ResolveInfo> installedAppsInfo = mPm.queryIntentActivities(mainIntent, 0);
-
-        for (ResolveInfo info : installedAppsInfo) {
-            ApplicationInfo appInfo = info.activityInfo.applicationInfo;
-            final PackageItem item = new PackageItem(appInfo.packageName,
-                    appInfo.loadLabel(mPm), appInfo.loadIcon(mPm));
-            item.activityTitles.add(info.loadLabel(mPm));
-            mHandler.obtainMessage(0, item).sendToTarget();
+    /**
+     * Loads the icon of a package into the catalog, then rebinds the rows.
+     */
+    private class LoadIconTask extends AsyncTask<Void, Void, Void> {
+        private final PackageCatalog.Entry mEntry;
+
+        LoadIconTask(PackageCatalog.Entry entry) {
+            mEntry = entry;
         }
 
-        for (String packageName : PACKAGE_WHITELIST) {
-            try {
-                ApplicationInfo appInfo = mPm.getApplicationInfo(packageName, 0);
-                final PackageItem item = new PackageItem(appInfo.packageName,
-                        appInfo.loadLabel(mPm), appInfo.loadIcon(mPm));
-                mHandler.obtainMessage(0, item).sendToTarget();
-            } catch (PackageManager.NameNotFoundException ignored) {
-                // package not present, so nothing to add -> ignore it
-            }
+        @Override
+        protected Void doInBackground(Void... params) {
+            mCatalog.getIcon(mEntry);
+            return null;
+        }
+
+        @Override
+        protected void onPostExecute(Void result) {
+            mLoadingIcons.remove(mEntry);
+            notifyDataSetChanged();
         }
     }
 
@@ -18,8 +18,9 @@ package com.android.settings.mahdi.lsn;
 import android.app.AlertDialog;
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageManager;
 import android.content.res.TypedArray;
+import android.graphics.drawable.Drawable;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.preference.DialogPreference;
 import android.util.AttributeSet;
@@ -33,11 +34,9 @@ import android.widget.ImageView;
 import android.widget.ListView;
 import android.widget.TextView;
 import com.android.settings.R;
+import com.android.settings.applications.PackageCatalog;
 
-import java.text.Collator;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -49,6 +48,7 @@ import java.util.Set;
 */
 public class AppMultiSelectListPreference extends DialogPreference {
     private final List<MyApplicationInfo> mPackageInfoList = new ArrayList<MyApplicationInfo>();
+    private final PackageCatalog mCatalog;
     private CharSequence[] mEntries;
     private CharSequence[] mEntryValues;
     private Set<String> mValues = new HashSet<String>();
@@ -61,27 +61,24 @@ public class AppMultiSelectListPreference extends DialogPreference {
 
     public AppMultiSelectListPreference(Context context, AttributeSet attrs) {
         super(context, attrs);
-        List<ApplicationInfo> pkgs = context.getPackageManager()
-                .getInstalledApplications(PackageManager.PERMISSION_GRANTED);
-        for (int i=0; i<pkgs.size(); i++) {
-            ApplicationInfo ai = pkgs.get(i);
-            if(context.getPackageManager().getLaunchIntentForPackage(ai.packageName) == null) {
-                continue;
-            }
-            MyApplicationInfo info = new MyApplicationInfo();
-            info.info = ai;
-            info.label = info.info.loadLabel(getContext().getPackageManager()).toString();
-            mPackageInfoList.add(info);
-        }
+        mCatalog = PackageCatalog.getInstance(context);
+        mCatalog.load();
+        loadPackageInfoList();
+    }
 
+    private void loadPackageInfoList() {
+        mPackageInfoList.clear();
         List<CharSequence> entries = new ArrayList<CharSequence>();
         List<CharSequence> entryValues = new ArrayList<CharSequence>();
-        Collections.sort(mPackageInfoList, sDisplayNameComparator);
-        for (MyApplicationInfo info : mPackageInfoList) {
+        for (PackageCatalog.Entry entry : mCatalog.getEntries(PackageCatalog.LAUNCHABLE)) {
+            MyApplicationInfo info = new MyApplicationInfo();
+            info.entry = entry;
+            info.info = entry.info;
+            info.label = entry.label;
+            mPackageInfoList.add(info);
             entries.add(info.label);
             entryValues.add(info.info.packageName);
         }
-        MyApplicationInfo info = new MyApplicationInfo();
         mEntries = new CharSequence[entries.size()];
         mEntryValues = new CharSequence[entries.size()];
         entries.toArray(mEntries);
@@ -132,6 +129,7 @@ public class AppMultiSelectListPreference extends DialogPreference {
     @Override
     protected void onPrepareDialogBuilder(AlertDialog.Builder builder) {
         super.onPrepareDialogBuilder(builder);
+        loadPackageInfoList();
         builder.setAdapter(new AppListAdapter(getContext()), null);
         mNewValues.clear();
         mNewValues.addAll(mValues);
@@ -196,15 +194,33 @@ public class AppMultiSelectListPreference extends DialogPreference {
     class MyApplicationInfo {
         ApplicationInfo info;
         CharSequence label;
+        PackageCatalog.Entry entry;
     }
 
-    public class AppListAdapter extends ArrayAdapter<MyApplicationInfo> {
+    public class AppListAdapter extends ArrayAdapter<MyApplicationInfo>
+            implements PackageCatalog.Listener {
         private final LayoutInflater mInflater;
+        private final Drawable mDefaultIcon;
+        // Icons being loaded in the background, only used on the main thread
+        private final HashSet<PackageCatalog.Entry> mLoadingIcons =
+                new HashSet<PackageCatalog.Entry>();
 
         public AppListAdapter(Context context) {
             super(context, 0);
             mInflater = (LayoutInflater)context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+            // shown until the actual app icon is loaded in the background
+            mDefaultIcon = context.getResources().getDrawable(android.R.mipmap.sym_def_app_icon);
             addAll(mPackageInfoList);
+            mCatalog.addListener(this);
+        }
+
+        @Override
+        public void onPackageCatalogChanged() {
+            loadPackageInfoList();
+            setNotifyOnChange(false);
+            clear();
+            addAll(mPackageInfoList);
+            notifyDataSetChanged();
         }
 
         @Override
@@ -216,7 +232,14 @@ public class AppMultiSelectListPreference extends DialogPreference {
             MyApplicationInfo info = getItem(position);
             holder.appName.setText(info.label);
             if (info.info != null) {
-                holder.appIcon.setImageDrawable(info.info.loadIcon(getContext().getPackageManager()));
+                Drawable icon = mCatalog.peekIcon(info.entry);
+                if (icon == null) {
+                    icon = mDefaultIcon;
+                    if (mLoadingIcons.add(info.entry)) {
+                        new LoadIconTask(info.entry).execute();
+                    }
+                }
+                holder.appIcon.setImageDrawable(icon);
             } else {
                 holder.appIcon.setImageDrawable(null);
             }
@@ -228,6 +251,29 @@ public class AppMultiSelectListPreference extends DialogPreference {
         public MyApplicationInfo getItem(int position) {
             return mPackageInfoList.get(position);
         }
+
+        /**
+         * Loads the icon of a package into the catalog, then rebinds the rows.
+         */
+        private class LoadIconTask extends AsyncTask<Void, Void, Void> {
+            private final PackageCatalog.Entry mEntry;
+
+            LoadIconTask(PackageCatalog.Entry entry) {
+                mEntry = entry;
+            }
+
+            @Override
+            protected Void doInBackground(Void... params) {
+                mCatalog.getIcon(mEntry);
+                return null;
+            }
+
+            @Override
+            protected void onPostExecute(Void result) {
+                mLoadingIcons.remove(mEntry);
+                notifyDataSetChanged();
+            }
+        }
     }
 
     public static class AppViewHolder {
@@ -256,14 +302,4 @@ public class AppMultiSelectListPreference extends DialogPreference {
             }
         }
     }
-
-    private final static Comparator<MyApplicationInfo> sDisplayNameComparator
-            = new Comparator<MyApplicationInfo>() {
-        public final int
-        compare(MyApplicationInfo a, MyApplicationInfo b) {
-            return collator.compare(a.label, b.label);
-        }
-
-        private final Collator collator = Collator.getInstance();
-    };
 }
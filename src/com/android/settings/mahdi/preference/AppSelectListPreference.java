@@ -19,7 +19,6 @@ import android.app.AlertDialog;
 import android.app.Dialog;
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.content.pm.ActivityInfo;
 import android.content.res.TypedArray;
@@ -41,11 +40,9 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.graphics.drawable.Drawable;
 import com.android.settings.R;
+import com.android.settings.applications.PackageCatalog;
 
-import java.text.Collator;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -71,6 +68,7 @@ import java.util.Set;
  */
 public class AppSelectListPreference extends DialogPreference {
     private final List<MyApplicationInfo> mPackageInfoList = new ArrayList<MyApplicationInfo>();
+    private final PackageCatalog mCatalog;
     private AppListAdapter mAdapter;
     private CharSequence mReturnValue;
     private CharSequence mNeutralButtonText;
@@ -90,18 +88,20 @@ public class AppSelectListPreference extends DialogPreference {
 
         setValuesFromXml(attrs);
 
-        final Intent mainIntent = new Intent(Intent.ACTION_MAIN, null);
-        mainIntent.addCategory(Intent.CATEGORY_LAUNCHER);
-        List<ResolveInfo> installedAppsInfo = getContext().getPackageManager().queryIntentActivities(
-                mainIntent, 0);
+        // The list is only needed once the dialog is shown
+        mCatalog = PackageCatalog.getInstance(context);
+        mCatalog.load();
+    }
 
-        for (ResolveInfo info : installedAppsInfo) {
+    private void loadPackageInfoList() {
+        mPackageInfoList.clear();
+        for (PackageCatalog.ActivityEntry activity : mCatalog.getActivities(null)) {
             MyApplicationInfo myInfo = new MyApplicationInfo();
-            myInfo.resolveInfo = info;
-            myInfo.label = getResolveInfoTitle(info);
+            myInfo.activity = activity;
+            myInfo.resolveInfo = activity.resolveInfo;
+            myInfo.label = activity.label;
             mPackageInfoList.add(myInfo);
         }
-        Collections.sort(mPackageInfoList, sDisplayNameComparator);
     }
 
     private void setValuesFromXml(AttributeSet attrs) {
@@ -143,12 +143,6 @@ public class AppSelectListPreference extends DialogPreference {
         builder.setAdapter(mAdapter, null);
     }
 
-    private String getResolveInfoTitle(ResolveInfo info) {
-        CharSequence label = info.loadLabel(getContext().getPackageManager());
-        if (label == null) label = info.activityInfo.name;
-        return label != null ? label.toString() : null;
-    }
-
     private Intent getIntentForResolveInfo(ResolveInfo info, String action) {
         Intent intent = new Intent(action);
         ActivityInfo ai = info.activityInfo;
@@ -204,15 +198,28 @@ public class AppSelectListPreference extends DialogPreference {
         ApplicationInfo info;
         CharSequence label;
         ResolveInfo resolveInfo;
+        PackageCatalog.ActivityEntry activity;
     }
 
-    public class AppListAdapter extends ArrayAdapter<MyApplicationInfo> {
+    public class AppListAdapter extends ArrayAdapter<MyApplicationInfo>
+            implements PackageCatalog.Listener {
         private final LayoutInflater mInflater;
 
         public AppListAdapter(Context context) {
             super(context, 0);
             mInflater = (LayoutInflater)context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+            loadPackageInfoList();
             addAll(mPackageInfoList);
+            mCatalog.addListener(this);
+        }
+
+        @Override
+        public void onPackageCatalogChanged() {
+            loadPackageInfoList();
+            setNotifyOnChange(false);
+            clear();
+            addAll(mPackageInfoList);
+            notifyDataSetChanged();
         }
 
         @Override
@@ -223,7 +230,7 @@ public class AppSelectListPreference extends DialogPreference {
             convertView = holder.rootView;
             MyApplicationInfo info = getItem(position);
             holder.appName.setText(info.label);
-            Drawable icon = info.resolveInfo.loadIcon(getContext().getPackageManager());
+            Drawable icon = mCatalog.getIcon(info.activity);
             if (icon != null) {
                 holder.appIcon.setImageDrawable(icon);
             } else {
@@ -263,16 +270,6 @@ public class AppSelectListPreference extends DialogPreference {
         }
     }
 
-    private final static Comparator<MyApplicationInfo> sDisplayNameComparator
-            = new Comparator<MyApplicationInfo>() {
-
-        private final Collator collator = Collator.getInstance();
-
-        public final int compare(MyApplicationInfo a, MyApplicationInfo b) {
-            return collator.compare(a.label, b.label);
-        }
-    };
-
     protected Dialog createDialog() {
         super.createDialog();
         Context context = getContext();
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import static android.net.TrafficStats.UID_REMOVED;
+import static android.net.TrafficStats.UID_TETHERING;
+
+import android.net.NetworkStats;
+import android.os.UserHandle;
+import android.util.SparseIntArray;
+
+import com.android.settings.DataUsageSummary.AppItem;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Folds {@link NetworkStats} entries into per-app totals, the way the data
+ * usage list shows them: apps of the current user by uid, other users as a
+ * whole, removed apps and tethering on their own, everything else as the
+ * system.  Totals are kept in primitive arrays; {@link AppItem}s are only
+ * created for the positions asked for, a page at a time, by taking the
+ * largest remaining totals off a heap that is built on the first read.  So
+ * only the rows that get shown are ever sorted.
+ */
+public class AppUsageAggregator {
+    private static final int PAGE_SIZE = 32;
+
+    private final int mCurrentUserId;
+
+    private final SparseIntArray mKeyToIndex = new SparseIntArray();
+    private final SparseIntArray mUidToIndex = new SparseIntArray();
+    private int[] mKeys = new int[PAGE_SIZE];
+    private long[] mTotals = new long[PAGE_SIZE];
+    private boolean[] mRestricted = new boolean[PAGE_SIZE];
+    private int mSize;
+
+    // Uids of each item, as a linked list through mUids and mNextUid
+    private int[] mFirstUid = new int[PAGE_SIZE];
+    private int[] mUids = new int[PAGE_SIZE];
+    private int[] mNextUid = new int[PAGE_SIZE];
+    private int mUidCount;
+
+    // Items handed out so far, ordered by total descending
+    private final ArrayList<AppItem> mSorted = new ArrayList<AppItem>();
+    // Max-heap of the items not handed out yet
+    private int[] mHeap;
+    private int mHeapSize;
+
+    public AppUsageAggregator(int currentUserId) {
+        mCurrentUserId = currentUserId;
+    }
+
+    /**
+     * Add the usage of all entries. Must not be called once items were read.
+     */
+    public void addStats(NetworkStats stats) {
+        NetworkStats.Entry entry = null;
+        final int size = stats != null ? stats.size() : 0;
+        for (int i = 0; i < size; i++) {
+            entry = stats.getValues(i, entry);
+
+            // Decide how to collapse items together
+            final int uid = entry.uid;
+            final int collapseKey;
+            if (UserHandle.isApp(uid)) {
+                if (UserHandle.getUserId(uid) == mCurrentUserId) {
+                    collapseKey = uid;
+                } else {
+                    collapseKey = UidDetailProvider.buildKeyForUser(UserHandle.getUserId(uid));
+                }
+            } else if (uid == UID_REMOVED || uid == UID_TETHERING) {
+                collapseKey = uid;
+            } else {
+                collapseKey = android.os.Process.SYSTEM_UID;
+            }
+
+            int index = mKeyToIndex.get(collapseKey, -1);
+            if (index < 0) {
+                index = newItem(collapseKey);
+            }
+            if (mUidToIndex.indexOfKey(uid) < 0) {
+                mUidToIndex.put(uid, index);
+                addUid(index, uid);
+            }
+            mTotals[index] += entry.rxBytes + entry.txBytes;
+        }
+    }
+
+    /**
+     * Mark the apps with restricted background data, adding those without
+     * usage. Must not be called once items were read.
+     */
+    public void addRestricted(int[] restrictedUids) {
+        for (int uid : restrictedUids) {
+            // Only splice in restricted state for current user
+            if (UserHandle.getUserId(uid) != mCurrentUserId) continue;
+
+            int index = mKeyToIndex.get(uid, -1);
+            if (index < 0) {
+                index = newItem(uid);
+                mTotals[index] = -1;
+            }
+            mRestricted[index] = true;
+        }
+    }
+
+    private int newItem(int key) {
+        if (mSize == mKeys.length) {
+            final int capacity = mSize * 2;
+            mKeys = Arrays.copyOf(mKeys, capacity);
+            mTotals = Arrays.copyOf(mTotals, capacity);
+            mRestricted = Arrays.copyOf(mRestricted, capacity);
+            mFirstUid = Arrays.copyOf(mFirstUid, capacity);
+        }
+        final int index = mSize++;
+        mKeys[index] = key;
+        mFirstUid[index] = -1;
+        mKeyToIndex.put(key, index);
+        return index;
+    }
+
+    private void addUid(int index, int uid) {
+        if (mUidCount == mUids.length) {
+            final int capacity = mUidCount * 2;
+            mUids = Arrays.copyOf(mUids, capacity);
+            mNextUid = Arrays.copyOf(mNextUid, capacity);
+        }
+        final int node = mUidCount++;
+        mUids[node] = uid;
+        mNextUid[node] = mFirstUid[index];
+        mFirstUid[index] = node;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return the item at the given position when ordered by total,
+     * descending
+     */
+    public AppItem get(int position) {
+        while (mSorted.size() <= position) {
+            if (!addNextPage()) {
+                throw new IndexOutOfBoundsException("position " + position + ", size " + mSize);
+            }
+        }
+        return mSorted.get(position);
+    }
+
+    /**
+     * @return the largest total, or 0 if there are no items
+     */
+    public long getLargest() {
+        return mSize > 0 ? get(0).total : 0;
+    }
+
+    private boolean addNextPage() {
+        if (mHeap == null) {
+            mHeap = new int[mSize];
+            for (int i = 0; i < mSize; i++) {
+                mHeap[i] = i;
+            }
+            mHeapSize = mSize;
+            for (int pos = mHeapSize / 2 - 1; pos >= 0; pos--) {
+                siftDown(pos);
+            }
+        }
+        if (mHeapSize == 0) {
+            return false;
+        }
+
+        final int count = Math.min(PAGE_SIZE, mHeapSize);
+        for (int n = 0; n < count; n++) {
+            final int index = mHeap[0];
+            mHeap[0] = mHeap[--mHeapSize];
+            siftDown(0);
+            mSorted.add(buildItem(index));
+        }
+        return true;
+    }
+
+    private AppItem buildItem(int index) {
+        final AppItem item = new AppItem(mKeys[index]);
+        item.total = mTotals[index];
+        item.restricted = mRestricted[index];
+        for (int node = mFirstUid[index]; node >= 0; node = mNextUid[node]) {
+            item.addUid(mUids[node]);
+        }
+        return item;
+    }
+
+    /**
+     * Order by total; on equal totals, items seen first go first.
+     */
+    private boolean isLess(int a, int b) {
+        if (mTotals[a] != mTotals[b]) {
+            return mTotals[a] < mTotals[b];
+        }
+        return a > b;
+    }
+
+    private void siftDown(int pos) {
+        final int[] heap = mHeap;
+        while (true) {
+            final int left = pos * 2 + 1;
+            if (left >= mHeapSize) break;
+            final int right = left + 1;
+            int largest = left;
+            if (right < mHeapSize && isLess(heap[left], heap[right])) {
+                largest = right;
+            }
+            if (!isLess(heap[pos], heap[largest])) break;
+            swap(heap, pos, largest);
+            pos = largest;
+        }
+    }
+
+    private static void swap(int[] heap, int a, int b) {
+        final int tmp = heap[a];
+        heap[a] = heap[b];
+        heap[b] = tmp;
+    }
+}
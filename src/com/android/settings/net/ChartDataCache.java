@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import android.net.NetworkStats;
+import android.net.NetworkTemplate;
+import android.util.LruCache;
+
+import com.android.internal.util.Objects;
+import com.android.settings.DataUsageSummary.AppItem;
+
+import java.util.Arrays;
+
+/**
+ * In-process cache of the history loaded by {@link ChartDataLoader} and
+ * the summaries loaded by {@link SummaryForAllUidLoader}, so flipping
+ * between networks, apps and cycles that were shown before redraws right
+ * away instead of querying the stats service again.  The cached stats are
+ * only dropped when the service was asked to poll fresh ones, see
+ * {@link #invalidate()}.
+ *
+ * Cached objects are shared by all their users and must not be modified.
+ */
+public class ChartDataCache {
+    private static final int MAX_CHART_DATA = 10;
+    private static final int MAX_SUMMARIES = 6;
+
+    private static final Object sLock = new Object();
+
+    // Guarded by sLock
+    private static final LruCache<Key, ChartData> sChartData =
+            new LruCache<Key, ChartData>(MAX_CHART_DATA);
+    private static final LruCache<Key, NetworkStats> sSummaries =
+            new LruCache<Key, NetworkStats>(MAX_SUMMARIES);
+    private static int sGeneration;
+
+    private static final class Key {
+        final NetworkTemplate template;
+        final int[] uids;
+        final int fields;
+        final long start;
+        final long end;
+        final int hashCode;
+
+        Key(NetworkTemplate template, int[] uids, int fields, long start, long end) {
+            this.template = template;
+            this.uids = uids;
+            this.fields = fields;
+            this.start = start;
+            this.end = end;
+            hashCode = Objects.hashCode(template, Arrays.hashCode(uids), fields, start, end);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof Key) {
+                final Key other = (Key) obj;
+                return Objects.equal(template, other.template) && Arrays.equals(uids, other.uids)
+                        && fields == other.fields && start == other.start && end == other.end;
+            }
+            return false;
+        }
+    }
+
+    private static Key buildChartKey(NetworkTemplate template, AppItem app, int fields) {
+        int[] uids = null;
+        if (app != null) {
+            // The uids are what gets loaded, the key of the item only groups them
+            uids = new int[app.uids.size()];
+            for (int i = 0; i < uids.length; i++) {
+                uids[i] = app.uids.keyAt(i);
+            }
+        }
+        return new Key(template, uids, fields, 0, 0);
+    }
+
+    /**
+     * @return the generation to pass along with results loaded from now on
+     */
+    public static int getGeneration() {
+        synchronized (sLock) {
+            return sGeneration;
+        }
+    }
+
+    /**
+     * Drop everything cached, because the stats service polled fresh stats.
+     * Results of loads that were already running are not cached either.
+     */
+    public static void invalidate() {
+        synchronized (sLock) {
+            sGeneration++;
+            sChartData.evictAll();
+            sSummaries.evictAll();
+        }
+    }
+
+    public static ChartData getChartData(NetworkTemplate template, AppItem app, int fields) {
+        synchronized (sLock) {
+            return sChartData.get(buildChartKey(template, app, fields));
+        }
+    }
+
+    public static void putChartData(int generation, NetworkTemplate template, AppItem app,
+            int fields, ChartData data) {
+        synchronized (sLock) {
+            if (generation == sGeneration) {
+                sChartData.put(buildChartKey(template, app, fields), data);
+            }
+        }
+    }
+
+    public static NetworkStats getSummary(NetworkTemplate template, long start, long end) {
+        synchronized (sLock) {
+            return sSummaries.get(new Key(template, null, 0, start, end));
+        }
+    }
+
+    public static void putSummary(int generation, NetworkTemplate template, long start, long end,
+            NetworkStats stats) {
+        synchronized (sLock) {
+            if (generation == sGeneration) {
+                sSummaries.put(new Key(template, null, 0, start, end), stats);
+            }
+        }
+    }
+}
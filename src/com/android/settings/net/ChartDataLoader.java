@@ -65,7 +65,16 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
     @Override
     protected void onStartLoading() {
         super.onStartLoading();
-        forceLoad();
+
+        final NetworkTemplate template = mArgs.getParcelable(KEY_TEMPLATE);
+        final AppItem app = mArgs.getParcelable(KEY_APP);
+        final int fields = mArgs.getInt(KEY_FIELDS);
+        final ChartData cached = ChartDataCache.getChartData(template, app, fields);
+        if (cached != null) {
+            deliverResult(cached);
+        } else {
+            forceLoad();
+        }
     }
 
     @Override
@@ -75,7 +84,10 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
         final int fields = mArgs.getInt(KEY_FIELDS);
 
         try {
-            return loadInBackground(template, app, fields);
+            final int generation = ChartDataCache.getGeneration();
+            final ChartData data = loadInBackground(template, app, fields);
+            ChartDataCache.putChartData(generation, template, app, fields, data);
+            return data;
         } catch (RemoteException e) {
             // since we can't do much without history, and we don't want to
             // leave with half-baked UI, we bail hard.
@@ -49,7 +49,16 @@ public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
     @Override
     protected void onStartLoading() {
         super.onStartLoading();
-        forceLoad();
+
+        final NetworkTemplate template = mArgs.getParcelable(KEY_TEMPLATE);
+        final long start = mArgs.getLong(KEY_START);
+        final long end = mArgs.getLong(KEY_END);
+        final NetworkStats cached = ChartDataCache.getSummary(template, start, end);
+        if (cached != null) {
+            deliverResult(cached);
+        } else {
+            forceLoad();
+        }
     }
 
     @Override
@@ -59,7 +68,10 @@ public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
         final long end = mArgs.getLong(KEY_END);
 
         try {
-            return mSession.getSummaryForAllUid(template, start, end, false);
+            final int generation = ChartDataCache.getGeneration();
+            final NetworkStats stats = mSession.getSummaryForAllUid(template, start, end, false);
+            ChartDataCache.putSummary(generation, template, start, end, stats);
+            return stats;
         } catch (RemoteException e) {
             return null;
         }
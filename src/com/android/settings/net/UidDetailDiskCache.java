@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.AtomicFile;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * On-disk cache of the {@link UidDetail}s of apps, so the data usage list
+ * can be labeled without loading labels and icons from the packages again
+ * after the process starts.  Records are keyed by uid and a stamp of the
+ * versions of the packages sharing it, the whole file is tied to the
+ * locale it was written in.  Icons are stored at list row size.
+ *
+ * The file is memory mapped; records are only decoded when looked up.
+ * New records are kept in memory until {@link #save()}.
+ */
+class UidDetailDiskCache {
+    private static final String TAG = "UidDetailDiskCache";
+
+    private static final String FILE_NAME = "uid_details.cache";
+    private static final int MAGIC = 0x55494443; // "UIDC"
+    private static final int VERSION = 1;
+
+    private static final int MAX_RECORDS = 256;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Context mContext;
+    private final AtomicFile mFile;
+    private final int mIconSize;
+
+    // Guarded by 'this'
+    private boolean mLoaded;
+    private ByteBuffer mBuffer;
+    private String mLocale;
+    private final SparseIntArray mOffsets = new SparseIntArray();
+    private final SparseIntArray mLengths = new SparseIntArray();
+    private final SparseArray<byte[]> mPending = new SparseArray<byte[]>();
+    private String mPendingLocale;
+
+    UidDetailDiskCache(Context context) {
+        mContext = context;
+        mFile = new AtomicFile(new File(context.getCacheDir(), FILE_NAME));
+        mIconSize = context.getResources().getDimensionPixelSize(
+                android.R.dimen.app_icon_size);
+    }
+
+    /**
+     * @return the icon drawn at list row size, which is what gets cached
+     */
+    Drawable scaleIcon(Drawable icon) {
+        Bitmap bitmap = Bitmap.createBitmap(mIconSize, mIconSize, Bitmap.Config.ARGB_8888);
+        icon.setBounds(0, 0, mIconSize, mIconSize);
+        icon.draw(new Canvas(bitmap));
+        return new BitmapDrawable(mContext.getResources(), bitmap);
+    }
+
+    /**
+     * @return the cached detail of the uid if its stamp matches, or null.
+     * Must not be called on the main thread.
+     */
+    synchronized UidDetail get(int uid, String stamp) {
+        loadLocked();
+        dropStalePendingLocked();
+        byte[] pending = mPending.get(uid);
+        ByteBuffer buffer;
+        if (pending != null) {
+            buffer = ByteBuffer.wrap(pending);
+        } else {
+            int offset = mOffsets.get(uid, -1);
+            if (offset < 0 || !getLocale().equals(mLocale)) {
+                return null;
+            }
+            buffer = mBuffer.duplicate();
+            buffer.position(offset);
+        }
+
+        try {
+            buffer.getInt();
+            if (!stamp.equals(readString(buffer))) {
+                return null;
+            }
+            UidDetail detail = new UidDetail();
+            detail.label = readString(buffer);
+            int count = readCount(buffer, 4);
+            if (count >= 0) {
+                detail.detailLabels = new CharSequence[count];
+                for (int i = 0; i < count; i++) {
+                    detail.detailLabels[i] = readString(buffer);
+                }
+            }
+            int iconLength = readCount(buffer, 1);
+            if (iconLength > 0) {
+                byte[] data = new byte[iconLength];
+                buffer.get(data);
+                Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, iconLength);
+                if (bitmap != null) {
+                    detail.icon = new BitmapDrawable(mContext.getResources(), bitmap);
+                }
+            }
+            return detail.icon != null ? detail : null;
+        } catch (BufferUnderflowException e) {
+            Log.w(TAG, "Ignoring corrupt cache, record of " + uid + " is truncated");
+            if (pending == null) {
+                // don't trust the other records either; the next save
+                // writes a new file
+                mBuffer = null;
+                mOffsets.clear();
+                mLengths.clear();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Remember the detail of the uid, to be written with the next save.
+     */
+    void put(int uid, String stamp, UidDetail detail) {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(record);
+        try {
+            out.writeInt(uid);
+            writeString(out, stamp);
+            writeString(out, detail.label);
+            if (detail.detailLabels == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(detail.detailLabels.length);
+                for (CharSequence label : detail.detailLabels) {
+                    writeString(out, label);
+                }
+            }
+            byte[] icon = compressIcon(detail.icon);
+            out.writeInt(icon != null ? icon.length : 0);
+            if (icon != null) {
+                out.write(icon);
+            }
+            out.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to serialize detail of " + uid, e);
+            return;
+        }
+
+        synchronized (this) {
+            dropStalePendingLocked();
+            mPending.put(uid, record.toByteArray());
+        }
+    }
+
+    /**
+     * Write the new records, followed by as many of the previous ones as
+     * fit.  Must not be called on the main thread.
+     */
+    synchronized void save() {
+        dropStalePendingLocked();
+        if (mPending.size() == 0) {
+            return;
+        }
+        loadLocked();
+        String locale = getLocale();
+
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, locale);
+
+            int count = Math.min(mPending.size(), MAX_RECORDS);
+            boolean keepOld = mBuffer != null && locale.equals(mLocale);
+            if (keepOld) {
+                for (int i = 0; i < mOffsets.size() && count < MAX_RECORDS; i++) {
+                    if (mPending.indexOfKey(mOffsets.keyAt(i)) < 0) {
+                        count++;
+                    }
+                }
+            }
+            out.writeInt(count);
+
+            int written = 0;
+            for (int i = 0; i < mPending.size() && written < count; i++, written++) {
+                out.write(mPending.valueAt(i));
+            }
+            if (keepOld) {
+                for (int i = 0; i < mOffsets.size() && written < count; i++) {
+                    int uid = mOffsets.keyAt(i);
+                    if (mPending.indexOfKey(uid) >= 0) {
+                        continue;
+                    }
+                    byte[] data = new byte[mLengths.get(uid)];
+                    ByteBuffer buffer = mBuffer.duplicate();
+                    buffer.position(mOffsets.valueAt(i));
+                    buffer.get(data);
+                    out.write(data);
+                    written++;
+                }
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write " + FILE_NAME, e);
+            mFile.failWrite(fos);
+            return;
+        }
+
+        // Records are read from the new file from now on
+        mPending.clear();
+        mLoaded = false;
+    }
+
+    /**
+     * Forget new records loaded in another locale than the current one.
+     */
+    private void dropStalePendingLocked() {
+        String locale = getLocale();
+        if (!locale.equals(mPendingLocale)) {
+            mPending.clear();
+            mPendingLocale = locale;
+        }
+    }
+
+    /**
+     * Map the cache file and index its records, once.
+     */
+    private void loadLocked() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        mBuffer = null;
+        mOffsets.clear();
+        mLengths.clear();
+
+        FileInputStream in = null;
+        try {
+            in = mFile.openRead();
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return;
+            }
+            String locale = readString(buffer);
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                int offset = buffer.position();
+                int uid = buffer.getInt();
+                // stamp, label, detail labels and icon
+                skipString(buffer);
+                skipString(buffer);
+                int labels = readCount(buffer, 4);
+                for (int j = 0; j < labels; j++) {
+                    skipString(buffer);
+                }
+                int iconLength = readCount(buffer, 1);
+                buffer.position(buffer.position() + Math.max(iconLength, 0));
+                mOffsets.put(uid, offset);
+                mLengths.put(uid, buffer.position() - offset);
+            }
+            mBuffer = buffer;
+            mLocale = locale;
+        } catch (IOException e) {
+            // No cache yet
+        } catch (BufferUnderflowException e) {
+            Log.w(TAG, "Ignoring corrupt cache");
+            mOffsets.clear();
+            mLengths.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignored, the mapping stays valid
+                }
+            }
+        }
+    }
+
+    private byte[] compressIcon(Drawable icon) {
+        if (!(icon instanceof BitmapDrawable)) {
+            return null;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((BitmapDrawable) icon).getBitmap().compress(Bitmap.CompressFormat.PNG, 100, out);
+        return out.toByteArray();
+    }
+
+    private String getLocale() {
+        return mContext.getResources().getConfiguration().locale.toString();
+    }
+
+    private static void writeString(DataOutputStream out, CharSequence s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] data = s.toString().getBytes(UTF_8);
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    /**
+     * Read the length of what follows, as a count of elements of the given
+     * minimum size; -1 stands for null.
+     * @throws BufferUnderflowException if the buffer can't hold that many,
+     *         so corrupt data never gets us to allocate or skip past the end
+     */
+    private static int readCount(ByteBuffer buffer, int elementSize) {
+        int count = buffer.getInt();
+        if (count < -1 || count > buffer.remaining() / elementSize) {
+            throw new BufferUnderflowException();
+        }
+        return count;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = readCount(buffer, 1);
+        if (length < 0) {
+            return null;
+        }
+        byte[] data = new byte[length];
+        buffer.get(data);
+        return new String(data, UTF_8);
+    }
+
+    private static void skipString(ByteBuffer buffer) {
+        int length = readCount(buffer, 1);
+        if (length > 0) {
+            buffer.position(buffer.position() + length);
+        }
+    }
+}
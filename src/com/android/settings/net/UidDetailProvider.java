@@ -16,6 +16,7 @@
 
 package com.android.settings.net;
 
+import android.app.ActivityManager;
 import android.content.Context;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
@@ -26,9 +27,12 @@ import android.content.res.Resources;
 import android.graphics.drawable.Drawable;
 import android.net.ConnectivityManager;
 import android.net.TrafficStats;
+import android.os.AsyncTask;
+import android.os.UserHandle;
 import android.os.UserManager;
 import android.text.TextUtils;
-import android.util.SparseArray;
+import android.util.LruCache;
+import android.util.SparseBooleanArray;
 
 import com.android.settings.R;
 import com.android.settings.Utils;
@@ -37,10 +41,37 @@ import com.android.settings.users.UserUtils;
 /**
  * Return details about a specific UID, handling special cases like
  * {@link TrafficStats#UID_TETHERING} and {@link UserInfo}.
+ *
+ * Details are kept in a bounded cache shared by all providers, and those of
+ * apps also on disk, see {@link UidDetailDiskCache}.  Each provider checks a
+ * shared detail against the installed package versions once before handing
+ * it out from a blocking call, so a new screen picks up updated apps.
  */
 public class UidDetailProvider {
+    private static final Object sLock = new Object();
+
+    // Guarded by sLock
+    private static LruCache<Integer, CachedDetail> sMemoryCache;
+    private static UidDetailDiskCache sDiskCache;
+
+    private static final class CachedDetail {
+        final UidDetail detail;
+        // Versions of the packages of the uid, null if not an app
+        final String stamp;
+        // Labels are only valid in the locale they were loaded in
+        final String locale;
+
+        CachedDetail(UidDetail detail, String stamp, String locale) {
+            this.detail = detail;
+            this.stamp = stamp;
+            this.locale = locale;
+        }
+    }
+
     private final Context mContext;
-    private final SparseArray<UidDetail> mUidDetailCache;
+    private final LruCache<Integer, CachedDetail> mMemoryCache;
+    private final UidDetailDiskCache mDiskCache;
+    private final SparseBooleanArray mVerified = new SparseBooleanArray();
 
     public static int buildKeyForUser(int userHandle) {
         return -(2000 + userHandle);
@@ -48,40 +79,136 @@ public class UidDetailProvider {
 
     public UidDetailProvider(Context context) {
         mContext = context.getApplicationContext();
-        mUidDetailCache = new SparseArray<UidDetail>();
+
+        synchronized (sLock) {
+            if (sMemoryCache == null) {
+                final ActivityManager am = (ActivityManager) mContext.getSystemService(
+                        Context.ACTIVITY_SERVICE);
+                final int maxBytes = am.getMemoryClass() * 1024 * 1024
+                        / (am.isLowRamDevice() ? 32 : 16);
+                sMemoryCache = new LruCache<Integer, CachedDetail>(maxBytes) {
+                    @Override
+                    protected int sizeOf(Integer uid, CachedDetail cached) {
+                        final Drawable icon = cached.detail.icon;
+                        if (icon == null) {
+                            return 1;
+                        }
+                        return Math.max(1, icon.getIntrinsicWidth() * icon.getIntrinsicHeight()
+                                * 4);
+                    }
+                };
+                sDiskCache = new UidDetailDiskCache(mContext);
+            }
+            mMemoryCache = sMemoryCache;
+            mDiskCache = sDiskCache;
+        }
     }
 
+    /**
+     * Forget which details were checked against the installed packages, and
+     * write the details loaded since the last save to disk.
+     */
     public void clearCache() {
-        synchronized (mUidDetailCache) {
-            mUidDetailCache.clear();
+        synchronized (mVerified) {
+            mVerified.clear();
         }
+
+        final UidDetailDiskCache diskCache = mDiskCache;
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                diskCache.save();
+            }
+        });
     }
 
     /**
      * Resolve best descriptive label for the given UID.
      */
     public UidDetail getUidDetail(int uid, boolean blocking) {
-        UidDetail detail;
+        final String locale = mContext.getResources().getConfiguration().locale.toString();
+        CachedDetail cached = mMemoryCache.get(uid);
+        if (cached != null && !locale.equals(cached.locale)) {
+            mMemoryCache.remove(uid);
+            cached = null;
+        }
 
-        synchronized (mUidDetailCache) {
-            detail = mUidDetailCache.get(uid);
+        if (!blocking) {
+            // Possibly not checked yet, which only a blocking call can do
+            return cached != null ? cached.detail : null;
         }
 
-        if (detail != null) {
-            return detail;
-        } else if (!blocking) {
-            return null;
+        synchronized (mVerified) {
+            if (cached != null && mVerified.get(uid)) {
+                return cached.detail;
+            }
         }
 
-        detail = buildUidDetail(uid);
+        final String stamp = buildStamp(uid);
+        UidDetail detail = null;
+        if (cached != null && stamp != null && stamp.equals(cached.stamp)) {
+            detail = cached.detail;
+        } else if (stamp != null) {
+            detail = mDiskCache.get(uid, stamp);
+        }
 
-        synchronized (mUidDetailCache) {
-            mUidDetailCache.put(uid, detail);
+        if (detail == null) {
+            detail = buildUidDetail(uid);
+            if (stamp != null) {
+                mDiskCache.put(uid, stamp, detail);
+            }
+        }
+
+        if (cached == null || cached.detail != detail) {
+            mMemoryCache.put(uid, new CachedDetail(detail, stamp, locale));
+        }
+        synchronized (mVerified) {
+            mVerified.put(uid, true);
         }
 
         return detail;
     }
 
+    /**
+     * Resolve the details of the given UIDs, typically the first rows of a
+     * list, and write them to the disk cache so they can be shown right away
+     * next time.  Must not be called on the main thread.
+     */
+    public void prefetch(int[] uids) {
+        for (int uid : uids) {
+            getUidDetail(uid, true);
+        }
+        mDiskCache.save();
+    }
+
+    /**
+     * Build the stamp identifying the installed versions of the packages
+     * of an app UID, or null for other UIDs and keys.
+     */
+    private String buildStamp(int uid) {
+        if (!UserHandle.isApp(uid)) {
+            return null;
+        }
+
+        final PackageManager pm = mContext.getPackageManager();
+        final String[] packageNames = pm.getPackagesForUid(uid);
+        if (packageNames == null || packageNames.length == 0) {
+            return null;
+        }
+
+        final StringBuilder stamp = new StringBuilder();
+        try {
+            for (String packageName : packageNames) {
+                final PackageInfo packageInfo = pm.getPackageInfo(packageName, 0);
+                stamp.append(packageName).append(':').append(packageInfo.versionCode)
+                        .append(':').append(packageInfo.lastUpdateTime).append(';');
+            }
+        } catch (NameNotFoundException e) {
+            return null;
+        }
+        return stamp.toString();
+    }
+
     /**
      * Build {@link UidDetail} object, blocking until all {@link Drawable}
      * lookup is finished.
@@ -133,7 +260,7 @@ public class UidDetailProvider {
             if (length == 1) {
                 final ApplicationInfo info = pm.getApplicationInfo(packageNames[0], 0);
                 detail.label = info.loadLabel(pm).toString();
-                detail.icon = info.loadIcon(pm);
+                detail.icon = mDiskCache.scaleIcon(info.loadIcon(pm));
             } else if (length > 1) {
                 detail.detailLabels = new CharSequence[length];
                 for (int i = 0; i < length; i++) {
@@ -145,7 +272,7 @@ public class UidDetailProvider {
                     if (packageInfo.sharedUserLabel != 0) {
                         detail.label = pm.getText(packageName, packageInfo.sharedUserLabel,
                                 packageInfo.applicationInfo).toString();
-                        detail.icon = appInfo.loadIcon(pm);
+                        detail.icon = mDiskCache.scaleIcon(appInfo.loadIcon(pm));
                     }
                 }
             }
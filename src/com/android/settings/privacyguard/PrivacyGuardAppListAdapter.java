@@ -17,7 +17,6 @@
 package com.android.settings.privacyguard;
 
 import android.content.Context;
-import android.content.pm.PackageManager;
 import android.graphics.drawable.Drawable;
 import android.os.AsyncTask;
 import android.view.LayoutInflater;
@@ -29,8 +28,10 @@ import android.widget.SectionIndexer;
 import android.widget.TextView;
 
 import com.android.settings.R;
+import com.android.settings.applications.PackageCatalog;
 import com.android.settings.privacyguard.PrivacyGuardManager.AppInfo;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
@@ -38,7 +39,7 @@ import java.util.concurrent.ConcurrentHashMap;
 public class PrivacyGuardAppListAdapter extends BaseAdapter implements SectionIndexer {
 
     private LayoutInflater mInflater;
-    private PackageManager mPm;
+    private PackageCatalog mCatalog;
 
     private List<AppInfo> mApps;
     private String[] mSections;
@@ -53,20 +54,37 @@ public class PrivacyGuardAppListAdapter extends BaseAdapter implements SectionIn
             List<String> sections, List<Integer> positions) {
         mContext = context;
         mInflater = LayoutInflater.from(mContext);
-        mPm = context.getPackageManager();
+        mCatalog = PackageCatalog.getInstance(context);
 
+        // set the default icon till the actual app icon is loaded in async task
+        mDefaultImg = mContext.getResources().getDrawable(android.R.mipmap.sym_def_app_icon);
+        mIcons = new ConcurrentHashMap<String, Drawable>();
+
+        setApps(apps, sections, positions);
+    }
+
+    /**
+     * Replace the list, e.g. when more rows were loaded. Icons that were
+     * loaded already are kept.
+     */
+    public void setApps(List<AppInfo> apps, List<String> sections, List<Integer> positions) {
         mApps = apps;
         mSections = sections.toArray(new String[sections.size()]);
         mPositions = new int[positions.size()];
         for (int i = 0; i < positions.size(); i++) {
             mPositions[i] = positions.get(i);
         }
+        notifyDataSetChanged();
 
-        // set the default icon till the actual app icon is loaded in async task
-        mDefaultImg = mContext.getResources().getDrawable(android.R.mipmap.sym_def_app_icon);
-        mIcons = new ConcurrentHashMap<String, Drawable>();
-
-        new LoadIconsTask().execute(apps.toArray(new PrivacyGuardManager.AppInfo[]{}));
+        ArrayList<AppInfo> missing = new ArrayList<AppInfo>();
+        for (AppInfo app : apps) {
+            if (!mIcons.containsKey(app.packageName)) {
+                missing.add(app);
+            }
+        }
+        if (!missing.isEmpty()) {
+            new LoadIconsTask().execute(missing.toArray(new PrivacyGuardManager.AppInfo[]{}));
+        }
     }
 
     @Override
@@ -156,13 +174,13 @@ public class PrivacyGuardAppListAdapter extends BaseAdapter implements SectionIn
         @Override
         protected Void doInBackground(PrivacyGuardManager.AppInfo... apps) {
             for (PrivacyGuardManager.AppInfo app : apps) {
-                try {
-                    Drawable icon = mPm.getApplicationIcon(app.packageName);
-                    mIcons.put(app.packageName, icon);
-                    publishProgress();
-                } catch (PackageManager.NameNotFoundException e) {
-                    // ignored; app will show up with default image
+                PackageCatalog.Entry entry = mCatalog.getEntry(app.packageName);
+                if (entry == null) {
+                    // removed meanwhile; app will show up with default image
+                    continue;
                 }
+                mIcons.put(app.packageName, mCatalog.getIcon(entry));
+                publishProgress();
             }
 
             return null;
@@ -28,11 +28,9 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageInfo;
-import android.content.pm.PackageManager;
-import android.content.pm.Signature;
 import android.content.SharedPreferences;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceManager;
@@ -55,24 +53,46 @@ import com.android.settings.Settings.AppOpsSummaryActivity;
 import com.android.settings.applications.AppOpsDetails;
 import com.android.settings.applications.AppOpsState;
 import com.android.settings.applications.AppOpsState.OpsTemplate;
+import com.android.settings.applications.PackageCatalog;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 
 public class PrivacyGuardManager extends Fragment
-        implements OnItemClickListener, OnItemLongClickListener {
+        implements OnItemClickListener, OnItemLongClickListener, PackageCatalog.Listener {
 
     private static final String TAG = "PrivacyGuardManager";
 
+    // Rows shown at a time while the list is loaded the first time
+    private static final int LOAD_BATCH_SIZE = 20;
+
+    // The ops the framework checks for the privacy guard setting of a package.
+    // Only used to read them in bulk; packages whose recorded ops are not
+    // exactly these are still left to the framework to decide.
+    private static final int[] PRIVACY_GUARD_OPS = new int[] {
+            AppOpsManager.OP_COARSE_LOCATION,
+            AppOpsManager.OP_READ_CALL_LOG,
+            AppOpsManager.OP_READ_CONTACTS,
+            AppOpsManager.OP_READ_CALENDAR,
+            AppOpsManager.OP_READ_SMS
+    };
+
+    // The last loaded list, shown right away on the next visit. Only copies
+    // are handed out, the shown rows get modified.
+    private static List<AppInfo> sCachedApps;
+    private static boolean sCachedShowSystemApps;
+
     private TextView mNoUserAppsInstalled;
     private ListView mAppsList;
     private PrivacyGuardAppListAdapter mAdapter;
     private List<AppInfo> mApps;
 
-    private PackageManager mPm;
+    private PackageCatalog mCatalog;
     private Activity mActivity;
+    private LoadAppsTask mLoadTask;
 
     private SharedPreferences mPreferences;
     private AppOpsManager mAppOps;
@@ -91,6 +111,25 @@ public class PrivacyGuardManager extends Fragment
         boolean enabled;
         boolean privacyGuardEnabled;
         int uid;
+
+        AppInfo() {
+        }
+
+        AppInfo(AppInfo other) {
+            title = other.title;
+            packageName = other.packageName;
+            enabled = other.enabled;
+            privacyGuardEnabled = other.privacyGuardEnabled;
+            uid = other.uid;
+        }
+    }
+
+    private static List<AppInfo> copyApps(List<AppInfo> apps) {
+        List<AppInfo> copy = new ArrayList<AppInfo>(apps.size());
+        for (AppInfo app : apps) {
+            copy.add(new AppInfo(app));
+        }
+        return copy;
     }
 
     @Override
@@ -98,7 +137,7 @@ public class PrivacyGuardManager extends Fragment
             Bundle savedInstanceState) {
 
         mActivity = getActivity();
-        mPm = mActivity.getPackageManager();
+        mCatalog = PackageCatalog.getInstance(mActivity);
         mAppOps = (AppOpsManager)getActivity().getSystemService(Context.APP_OPS_SERVICE);
 
         return inflater.inflate(R.layout.privacy_guard_manager, container, false);
@@ -107,6 +146,11 @@ public class PrivacyGuardManager extends Fragment
     @Override
     public void onDestroyView() {
         super.onDestroyView();
+        if (mLoadTask != null) {
+            mLoadTask.cancel(false);
+            mLoadTask = null;
+        }
+        mAdapter = null;
         FragmentManager fm = getFragmentManager();
         Fragment f = fm.findFragmentById(R.id.privacy_guard_prefs);
         if (f != null && !fm.isDestroyed()) {
@@ -139,9 +183,7 @@ public class PrivacyGuardManager extends Fragment
             mSavedFirstItemOffset = 0;
         }
 
-        // load apps and construct the list
-        loadApps();
-
+        // apps are loaded in onResume()
         setHasOptionsMenu(true);
     }
 
@@ -168,6 +210,8 @@ public class PrivacyGuardManager extends Fragment
         mSavedFirstVisiblePosition = mAppsList.getFirstVisiblePosition();
         View firstChild = mAppsList.getChildAt(0);
         mSavedFirstItemOffset = (firstChild == null) ? 0 : firstChild.getTop();
+
+        mCatalog.removeListener(this);
     }
 
     @Override
@@ -175,34 +219,69 @@ public class PrivacyGuardManager extends Fragment
         super.onResume();
 
         // rebuild the list; the user might have changed settings inbetween
+        mCatalog.addListener(this);
         loadApps();
+    }
 
-        if (mSavedFirstVisiblePosition != AdapterView.INVALID_POSITION) {
-            mAppsList.setSelectionFromTop(mSavedFirstVisiblePosition, mSavedFirstItemOffset);
-            mSavedFirstVisiblePosition = AdapterView.INVALID_POSITION;
-        }
+    @Override
+    public void onPackageCatalogChanged() {
+        loadApps();
     }
 
+    /**
+     * Show the cached list if there is one, and load the current one in the
+     * background.
+     */
     private void loadApps() {
-        mApps = loadInstalledApps();
+        if (mLoadTask != null) {
+            mLoadTask.cancel(false);
+            mLoadTask = null;
+        }
+        if (!mCatalog.isLoaded()) {
+            // onPackageCatalogChanged() follows
+            return;
+        }
+        boolean showSystemApps = shouldShowSystemApps();
+        boolean haveCached = sCachedApps != null && sCachedShowSystemApps == showSystemApps;
+        if (haveCached) {
+            showApps(copyApps(sCachedApps), true);
+        } else {
+            showApps(new ArrayList<AppInfo>(), false);
+        }
+        mLoadTask = new LoadAppsTask(showSystemApps, !haveCached);
+        mLoadTask.execute();
+    }
+
+    /**
+     * @param complete whether more rows are still to come
+     */
+    private void showApps(List<AppInfo> apps, boolean complete) {
+        mApps = apps;
 
         // if app list is empty inform the user
         // else go ahead and construct the list
-        if (mApps == null || mApps.isEmpty()) {
+        if (mApps.isEmpty()) {
             mNoUserAppsInstalled.setText(R.string.privacy_guard_no_user_apps);
-            mNoUserAppsInstalled.setVisibility(View.VISIBLE);
+            mNoUserAppsInstalled.setVisibility(complete ? View.VISIBLE : View.GONE);
             mAppsList.setVisibility(View.GONE);
             mAppsList.setAdapter(null);
-        } else {
-            mNoUserAppsInstalled.setVisibility(View.GONE);
-            mAppsList.setVisibility(View.VISIBLE);
-            mAdapter = createAdapter();
-            mAppsList.setAdapter(mAdapter);
-            mAppsList.setFastScrollEnabled(true);
+            mAdapter = null;
+            return;
+        }
+
+        mNoUserAppsInstalled.setVisibility(View.GONE);
+        mAppsList.setVisibility(View.VISIBLE);
+        updateAdapter();
+
+        // Restore the scroll position once the row it points at is there
+        if (mSavedFirstVisiblePosition != AdapterView.INVALID_POSITION
+                && (complete || mSavedFirstVisiblePosition < mApps.size())) {
+            mAppsList.setSelectionFromTop(mSavedFirstVisiblePosition, mSavedFirstItemOffset);
+            mSavedFirstVisiblePosition = AdapterView.INVALID_POSITION;
         }
     }
 
-    private PrivacyGuardAppListAdapter createAdapter() {
+    private void updateAdapter() {
         String lastSectionIndex = null;
         ArrayList<String> sections = new ArrayList<String>();
         ArrayList<Integer> positions = new ArrayList<Integer>();
@@ -231,7 +310,13 @@ public class PrivacyGuardManager extends Fragment
             offset++;
         }
 
-        return new PrivacyGuardAppListAdapter(mActivity, mApps, sections, positions);
+        if (mAdapter == null) {
+            mAdapter = new PrivacyGuardAppListAdapter(mActivity, mApps, sections, positions);
+            mAppsList.setAdapter(mAdapter);
+            mAppsList.setFastScrollEnabled(true);
+        } else {
+            mAdapter.setApps(mApps, sections, positions);
+        }
     }
 
     private void resetPrivacyGuard() {
@@ -267,32 +352,21 @@ public class PrivacyGuardManager extends Fragment
     }
 
     /**
-    * Uses the package manager to query for all currently installed apps
-    * for the list.
+    * Uses the package catalog to query for all currently installed apps
+    * for the list. Their privacy guard state is not filled in.
     *
     * @return the complete List off installed applications (@code PrivacyGuardAppInfo)
     */
-    private List<AppInfo> loadInstalledApps() {
+    private List<AppInfo> loadInstalledApps(boolean showSystemApps) {
         List<AppInfo> apps = new ArrayList<AppInfo>();
-        List<PackageInfo> packages = mPm.getInstalledPackages(
-            PackageManager.GET_PERMISSIONS | PackageManager.GET_SIGNATURES);
-        boolean showSystemApps = shouldShowSystemApps();
-        Signature platformCert;
-
-        try {
-            PackageInfo sysInfo = mPm.getPackageInfo("android", PackageManager.GET_SIGNATURES);
-            platformCert = sysInfo.signatures[0];
-        } catch (PackageManager.NameNotFoundException e) {
-            platformCert = null;
-        }
+        List<PackageCatalog.Entry> packages = mCatalog.getEntries(null);
 
-        for (PackageInfo info : packages) {
-            final ApplicationInfo appInfo = info.applicationInfo;
+        for (PackageCatalog.Entry info : packages) {
+            final ApplicationInfo appInfo = info.info;
 
             // hide apps signed with the platform certificate to avoid the user
             // shooting himself in the foot
-            if (platformCert != null && info.signatures != null
-                    && platformCert.equals(info.signatures[0])) {
+            if (info.platformSigned) {
                 continue;
             }
 
@@ -302,12 +376,10 @@ public class PrivacyGuardManager extends Fragment
             }
 
             AppInfo app = new AppInfo();
-            app.title = appInfo.loadLabel(mPm).toString();
+            app.title = info.label.toString();
             app.packageName = info.packageName;
             app.enabled = appInfo.enabled;
-            app.uid = info.applicationInfo.uid;
-            app.privacyGuardEnabled = mAppOps.getPrivacyGuardSettingForPackage(
-                    app.uid, app.packageName);
+            app.uid = appInfo.uid;
             apps.add(app);
         }
 
@@ -325,6 +397,111 @@ public class PrivacyGuardManager extends Fragment
         return apps;
     }
 
+    /**
+     * Read the recorded modes of the privacy guard ops of all packages.
+     */
+    private HashMap<String, AppOpsManager.PackageOps> loadPrivacyGuardOps() {
+        HashMap<String, AppOpsManager.PackageOps> result =
+                new HashMap<String, AppOpsManager.PackageOps>();
+        List<AppOpsManager.PackageOps> pkgs = mAppOps.getPackagesForOps(PRIVACY_GUARD_OPS);
+        if (pkgs != null) {
+            for (AppOpsManager.PackageOps pkgOps : pkgs) {
+                result.put(pkgOps.getPackageName(), pkgOps);
+            }
+        }
+        return result;
+    }
+
+    private boolean isPrivacyGuardEnabled(AppInfo app,
+            HashMap<String, AppOpsManager.PackageOps> ops) {
+        AppOpsManager.PackageOps pkgOps = ops.get(app.packageName);
+        if (pkgOps != null && pkgOps.getUid() == app.uid && hasAllPrivacyGuardOps(pkgOps)) {
+            for (AppOpsManager.OpEntry op : pkgOps.getOps()) {
+                if (op.getMode() != AppOpsManager.MODE_ALLOWED
+                        && op.getMode() != AppOpsManager.MODE_IGNORED) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        // Ops without a record are in their default mode, let the framework decide
+        return mAppOps.getPrivacyGuardSettingForPackage(app.uid, app.packageName);
+    }
+
+    /**
+     * @return whether exactly the privacy guard ops have a record
+     */
+    private static boolean hasAllPrivacyGuardOps(AppOpsManager.PackageOps pkgOps) {
+        List<AppOpsManager.OpEntry> entries = pkgOps.getOps();
+        if (entries.size() != PRIVACY_GUARD_OPS.length) {
+            return false;
+        }
+        for (int op : PRIVACY_GUARD_OPS) {
+            boolean found = false;
+            for (AppOpsManager.OpEntry entry : entries) {
+                if (entry.getOp() == op) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Builds the app list off the main thread. When nothing is shown yet,
+     * the rows are published in batches as their state is read; otherwise
+     * the shown list is replaced once the new one is complete.
+     */
+    private class LoadAppsTask extends AsyncTask<Void, Integer, List<AppInfo>> {
+        private final boolean mShowSystemApps;
+        private final boolean mStream;
+        private List<AppInfo> mLoadedApps;
+
+        LoadAppsTask(boolean showSystemApps, boolean stream) {
+            mShowSystemApps = showSystemApps;
+            mStream = stream;
+        }
+
+        @Override
+        protected List<AppInfo> doInBackground(Void... params) {
+            mLoadedApps = loadInstalledApps(mShowSystemApps);
+            HashMap<String, AppOpsManager.PackageOps> ops = loadPrivacyGuardOps();
+            for (int i = 0; i < mLoadedApps.size(); i++) {
+                if (isCancelled()) {
+                    return null;
+                }
+                AppInfo app = mLoadedApps.get(i);
+                app.privacyGuardEnabled = isPrivacyGuardEnabled(app, ops);
+                if (mStream && (i + 1) % LOAD_BATCH_SIZE == 0) {
+                    publishProgress(i + 1);
+                }
+            }
+            return mLoadedApps;
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... values) {
+            if (isCancelled() || mLoadTask != this) {
+                return;
+            }
+            showApps(new ArrayList<AppInfo>(mLoadedApps.subList(0, values[0])), false);
+        }
+
+        @Override
+        protected void onPostExecute(List<AppInfo> apps) {
+            sCachedApps = copyApps(apps);
+            sCachedShowSystemApps = mShowSystemApps;
+            if (mLoadTask == this) {
+                mLoadTask = null;
+                showApps(apps, true);
+            }
+        }
+    }
+
     private boolean shouldShowSystemApps() {
         return mPreferences.getBoolean("show_system_apps", false);
     }
@@ -369,7 +546,14 @@ public class PrivacyGuardManager extends Fragment
                                     app.privacyGuardEnabled = false;
                                 }
                                 mAppOps.resetAllModes();
-                                mAdapter.notifyDataSetChanged();
+                                // nothing is bound until the first batch was loaded
+                                if (mAdapter != null) {
+                                    mAdapter.notifyDataSetChanged();
+                                }
+                                // a load in flight may have read the old modes
+                                if (mLoadTask != null) {
+                                    loadApps();
+                                }
                         }
                     })
                     .setNegativeButton(R.string.cancel,
@@ -25,6 +25,10 @@ public final class DatabaseContract {
 
     public static final String TABLE_NAME = "settings";
 
+    public static final String FTS_TABLE_NAME = "settings_fts";
+
+    public static final String SUBTREE_TABLE_NAME = "subtrees";
+
     private DatabaseContract() {}
 
     public static class Settings implements BaseColumns {
@@ -41,5 +45,32 @@ public final class DatabaseContract {
         public static String ACTION_PARENT_TITLE = "parent_title";
 
         public static String ACTION_KEY = "key";
+
+        public static String ACTION_SUBTREE = "subtree";
+    }
+
+    public static class SettingsFts {
+        public static String DOCID = "docid";
+
+        // lower cased title, tokenized on word boundaries
+        public static String TITLE_TOKENS = "title_tokens";
+
+        // lower cased title with all non alphanumeric characters stripped,
+        // so that e.g. "wifi" matches "Wi-Fi"
+        public static String TITLE_NORMALIZED = "title_normalized";
+    }
+
+    public static class Subtrees implements BaseColumns {
+        // identifies the top level header the subtree belongs to
+        public static String SUBTREE_KEY = "subtree_key";
+
+        // combined CRC of all xml files parsed for the subtree
+        public static String SUBTREE_CHECKSUM = "checksum";
+
+        // comma separated apk paths of the xml files parsed for the subtree
+        public static String SUBTREE_FILES = "files";
+
+        // 1 if the subtree has titles in common with another subtree
+        public static String SUBTREE_SHARES_TITLES = "shares_titles";
     }
 }
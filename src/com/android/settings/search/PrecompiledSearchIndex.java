@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.util.SparseArray;
+
+/**
+ * Preference xml files pre-parsed at build time by tools/SearchIndexCompiler,
+ * which generates the SearchIndexData class.  Titles and included xml files
+ * are stored as resource ids, so the data doesn't depend on the locale and
+ * nothing has to be looked up by name at runtime.  Files which can't be
+ * represented faithfully (e.g. ones with configuration specific variants)
+ * are left out and still parsed from the resources.
+ */
+class PrecompiledSearchIndex {
+    static class Preference {
+        final boolean excludeFromSearch;
+        // string resource of the title, or 0 if the title is a literal
+        final int titleRes;
+        final String title;
+        final String key;
+        final String fragment;
+        // xml resource to include, or 0
+        final int includeXmlRes;
+
+        Preference(boolean excludeFromSearch, int titleRes, String title, String key,
+                String fragment, int includeXmlRes) {
+            this.excludeFromSearch = excludeFromSearch;
+            this.titleRes = titleRes;
+            this.title = title;
+            this.key = key;
+            this.fragment = fragment;
+            this.includeXmlRes = includeXmlRes;
+        }
+    }
+
+    private final SparseArray<Preference[]> mFiles = new SparseArray<Preference[]>();
+
+    private PrecompiledSearchIndex() {
+    }
+
+    /**
+     * @return the preferences of the given xml file in document order,
+     *         or null if the file was not precompiled
+     */
+    Preference[] get(int xmlResId) {
+        return mFiles.get(xmlResId);
+    }
+
+    static PrecompiledSearchIndex load() {
+        PrecompiledSearchIndex index = new PrecompiledSearchIndex();
+        SearchIndexData.load(index.mFiles);
+        return index;
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Parcel;
+import android.os.SystemClock;
+import android.preference.PreferenceActivity.Header;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Batched writer for the search index. Everything written between
+ * creation and {@link #close()} goes into a single transaction, using
+ * statements that are compiled once and rebound for every row.
+ */
+public class SearchIndexWriter {
+    private static final String TAG = SearchIndexWriter.class.getSimpleName();
+
+    private final SQLiteDatabase mDatabase;
+    private final SQLiteStatement mInsertEntry;
+    private final SQLiteStatement mDeleteReplacedFts;
+    private final SQLiteStatement mInsertFts;
+    private final SQLiteStatement mInsertSubtree;
+
+    private boolean mSuccessful;
+    private int mRowCount;
+    private long mStartTime;
+
+    SearchIndexWriter(SQLiteDatabase database) {
+        mDatabase = database;
+        mStartTime = SystemClock.elapsedRealtime();
+
+        mDatabase.beginTransaction();
+        mInsertEntry = mDatabase.compileStatement("INSERT INTO " +
+                DatabaseContract.TABLE_NAME + "(" +
+                DatabaseContract.Settings.ACTION_HEADER + "," +
+                DatabaseContract.Settings.ACTION_TITLE + "," +
+                DatabaseContract.Settings.ACTION_LEVEL + "," +
+                DatabaseContract.Settings.ACTION_ICON + "," +
+                DatabaseContract.Settings.ACTION_FRAGMENT + "," +
+                DatabaseContract.Settings.ACTION_PARENT_TITLE + "," +
+                DatabaseContract.Settings.ACTION_KEY + "," +
+                DatabaseContract.Settings.ACTION_SUBTREE +
+                ") VALUES (?,?,?,?,?,?,?,?)");
+        // The title is unique and an earlier row with it gets replaced,
+        // which does not reach its row of the full text index
+        mDeleteReplacedFts = mDatabase.compileStatement("DELETE FROM " +
+                DatabaseContract.FTS_TABLE_NAME + " WHERE " +
+                DatabaseContract.SettingsFts.DOCID + " IN (SELECT " +
+                DatabaseContract.Settings._ID + " FROM " + DatabaseContract.TABLE_NAME +
+                " WHERE " + DatabaseContract.Settings.ACTION_TITLE + " = ?)");
+        // Replacing, in case a stale row still holds a reused docid
+        mInsertFts = mDatabase.compileStatement("INSERT OR REPLACE INTO " +
+                DatabaseContract.FTS_TABLE_NAME + "(" +
+                DatabaseContract.SettingsFts.DOCID + "," +
+                DatabaseContract.SettingsFts.TITLE_TOKENS + "," +
+                DatabaseContract.SettingsFts.TITLE_NORMALIZED +
+                ") VALUES (?,?,?)");
+        mInsertSubtree = mDatabase.compileStatement("INSERT INTO " +
+                DatabaseContract.SUBTREE_TABLE_NAME + "(" +
+                DatabaseContract.Subtrees.SUBTREE_KEY + "," +
+                DatabaseContract.Subtrees.SUBTREE_CHECKSUM + "," +
+                DatabaseContract.Subtrees.SUBTREE_FILES + "," +
+                DatabaseContract.Subtrees.SUBTREE_SHARES_TITLES +
+                ") VALUES (?,?,?,?)");
+    }
+
+    /**
+     * Write out all entries collected for a subtree.
+     */
+    public void insertEntries(Entries entries) {
+        for (Entry entry : entries.mEntries) {
+            mDeleteReplacedFts.bindString(1, entry.title);
+            mDeleteReplacedFts.executeUpdateDelete();
+
+            bindBlobOrNull(mInsertEntry, 1, entry.header);
+            mInsertEntry.bindString(2, entry.title);
+            mInsertEntry.bindLong(3, entry.level);
+            mInsertEntry.bindLong(4, entry.iconRes);
+            bindStringOrNull(mInsertEntry, 5, entry.fragment);
+            mInsertEntry.bindLong(6, entry.parentTitle);
+            bindStringOrNull(mInsertEntry, 7, entry.key);
+            bindStringOrNull(mInsertEntry, 8, entries.mSubtree);
+            long id = mInsertEntry.executeInsert();
+            if (id < 0) {
+                continue;
+            }
+
+            mInsertFts.bindLong(1, id);
+            mInsertFts.bindString(2, entry.title.toLowerCase());
+            mInsertFts.bindString(3, SettingsSearchDatabaseHelper.normalizeTitle(entry.title));
+            mInsertFts.executeInsert();
+            mRowCount++;
+        }
+    }
+
+    public void insertSubtree(String subtree, long checksum, String files,
+            boolean sharesTitles) {
+        mInsertSubtree.bindString(1, subtree);
+        mInsertSubtree.bindLong(2, checksum);
+        bindStringOrNull(mInsertSubtree, 3, files);
+        mInsertSubtree.bindLong(4, sharesTitles ? 1 : 0);
+        mInsertSubtree.executeInsert();
+    }
+
+    /**
+     * Mark the batch as complete, so that it is committed on {@link #close()}.
+     */
+    public void setSuccessful() {
+        mDatabase.setTransactionSuccessful();
+        mSuccessful = true;
+    }
+
+    /**
+     * End the batch. Unless {@link #setSuccessful()} was called before,
+     * everything written through this writer is rolled back.
+     */
+    public void close() {
+        mInsertEntry.close();
+        mDeleteReplacedFts.close();
+        mInsertFts.close();
+        mInsertSubtree.close();
+        mDatabase.endTransaction();
+
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            long duration = Math.max(1, SystemClock.elapsedRealtime() - mStartTime);
+            Log.d(TAG, (mSuccessful ? "Committed " : "Rolled back ") + mRowCount
+                    + " rows in " + duration + "ms ("
+                    + (mRowCount * 1000L / duration) + " rows/s)");
+        }
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    private static void bindBlobOrNull(SQLiteStatement statement, int index, byte[] value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindBlob(index, value);
+        }
+    }
+
+    private static class Entry {
+        byte[] header;
+        String title;
+        int level;
+        int iconRes;
+        String fragment;
+        int parentTitle;
+        String key;
+    }
+
+    /**
+     * Entries of one subtree, collected without touching the database so
+     * that subtrees can be parsed on any thread.
+     */
+    public static class Entries {
+        private final Context mContext;
+        private final String mSubtree;
+        private final ArrayList<Entry> mEntries = new ArrayList<Entry>();
+
+        public Entries(Context context, String subtree) {
+            mContext = context;
+            mSubtree = subtree;
+        }
+
+        public String getSubtree() {
+            return mSubtree;
+        }
+
+        public ArrayList<String> getTitles() {
+            ArrayList<String> titles = new ArrayList<String>(mEntries.size());
+            for (Entry entry : mEntries) {
+                titles.add(entry.title);
+            }
+            return titles;
+        }
+
+        public void insertHeader(Header header) {
+            insertHeader(header, 0, null);
+        }
+
+        public void insertHeader(Header header, int parentTitle, String key) {
+            if (header == null) {
+                return;
+            }
+            String title = null;
+            if (!TextUtils.isEmpty(header.title)) {
+                title = header.title.toString();
+            } else if (header.titleRes != 0) {
+                title = mContext.getString(header.titleRes);
+            }
+            if (TextUtils.isEmpty(title)) {
+                return;
+            }
+            insertEntry(header, title, 0, null, header.iconRes, parentTitle, key);
+        }
+
+        public void insertEntry(String title, int level, String fragment,
+                int iconRes, int parentTitle, String key) {
+            if (TextUtils.isEmpty(title)) {
+                return;
+            }
+            insertEntry(null, title, level, fragment, iconRes, parentTitle, key);
+        }
+
+        private void insertEntry(Header header, String title, int level, String fragment,
+                int iconRes, int parentTitle, String key) {
+            Entry entry = new Entry();
+            if (header != null) {
+                // The header gets modified while parsing, so take a copy now
+                Parcel p = Parcel.obtain();
+                p.setDataPosition(0);
+                header.writeToParcel(p, 0);
+                // Marshalling will not cause an issue if the definition changes,
+                // since we wipe data on hash changes and recreate it
+                entry.header = p.marshall();
+                p.recycle();
+            }
+            entry.title = title;
+            entry.level = level;
+            entry.iconRes = iconRes;
+            entry.fragment = fragment;
+            entry.parentTitle = parentTitle;
+            entry.key = key;
+            mEntries.add(entry);
+        }
+    }
+}
@@ -25,7 +25,6 @@ import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.TypedArray;
 import android.content.res.XmlResourceParser;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
 import android.os.Bundle;
 import android.os.Parcel;
 import android.os.ResultReceiver;
@@ -48,6 +47,14 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -58,7 +65,15 @@ public class SearchPopulator extends IntentService {
     public static final String EXTRA_PREF_KEY = "pref_key";
 
     private static final String LAST_PACKAGE_HASH = "last_package_hash";
+    private static final String LAST_VERSION_CODE = "last_version_code";
     private static final String LAST_LOCALE = "last_locale";
+    private static final String LAST_RESOURCES_CRC = "last_resources_crc";
+
+    private static final String RESOURCES_TABLE = "resources.arsc";
+
+    private static final int MAX_PARSER_THREADS = 2;
+
+    private PrecompiledSearchIndex mPrecompiledIndex;
 
     public SearchPopulator() {
         super(TAG);
@@ -69,25 +84,68 @@ public class SearchPopulator extends IntentService {
         ResultReceiver notifier = intent.getParcelableExtra(EXTRA_NOTIFIER);
         SharedPreferences sharedPreferences = getSharedPreferences(
                 getPackageName(), Context.MODE_PRIVATE);
+        PackageInfo pInfo = getOwnPackageInfo();
+        ZipFile apk = openApk(pInfo);
+
         int lastHash = sharedPreferences.getInt(LAST_PACKAGE_HASH, -1);
-        int currentHash = getPackageHashCode(getBasePackageName());
+        int currentHash = getPackageHashCode(apk);
+        int lastVersionCode = sharedPreferences.getInt(LAST_VERSION_CODE, -1);
+        int currentVersionCode = pInfo != null ? pInfo.versionCode : 0;
         String lastLocale = sharedPreferences.getString(LAST_LOCALE, null);
         String currentLocale = getResources().getConfiguration().locale.toString();
 
-        if (lastHash != currentHash || !TextUtils.equals(lastLocale, currentLocale)) {
-            populateDatabase();
-            sharedPreferences.edit()
-                    .putInt(LAST_PACKAGE_HASH, currentHash)
-                    .putString(LAST_LOCALE, currentLocale)
-                    .commit();
+        try {
+            if (lastHash != currentHash || lastVersionCode != currentVersionCode
+                    || !TextUtils.equals(lastLocale, currentLocale)) {
+                // Titles are resolved from the string table and the header list
+                // determines the subtrees, so changes to either invalidate
+                // everything. Otherwise only subtrees whose xml changed are redone.
+                long lastResourcesCrc = sharedPreferences.getLong(LAST_RESOURCES_CRC, -1);
+                long currentResourcesCrc = getResourcesCrc(apk);
+                boolean fullRebuild = apk == null
+                        || lastResourcesCrc != currentResourcesCrc
+                        || !TextUtils.equals(lastLocale, currentLocale);
+
+                populateDatabase(apk, fullRebuild);
+                sharedPreferences.edit()
+                        .putInt(LAST_PACKAGE_HASH, currentHash)
+                        .putInt(LAST_VERSION_CODE, currentVersionCode)
+                        .putString(LAST_LOCALE, currentLocale)
+                        .putLong(LAST_RESOURCES_CRC, currentResourcesCrc)
+                        .commit();
+            }
+        } finally {
+            if (apk != null) {
+                try {
+                    apk.close();
+                } catch (IOException e) {
+                    // ignored
+                }
+            }
         }
         notifier.send(0, null);
     }
 
-    private void populateDatabase() {
+    private void populateDatabase(ZipFile apk, boolean fullRebuild) {
         SettingsSearchDatabaseHelper dbHelper = SettingsSearchDatabaseHelper.getInstance(this);
-        dbHelper.wipeTable();
-
+        SearchIndexWriter writer = dbHelper.beginIndexing();
+        HashSet<String> unchangedSubtrees = new HashSet<String>();
+        HashSet<String> sharingSubtrees = new HashSet<String>();
+        if (fullRebuild) {
+            dbHelper.wipeTable();
+        } else {
+            findUnchangedSubtrees(dbHelper, apk, unchangedSubtrees, sharingSubtrees);
+        }
+        boolean retryFullRebuild = false;
+        mPrecompiledIndex = PrecompiledSearchIndex.load();
+
+        // The header list is read here, while the subtrees are parsed on the
+        // pool. Results are written back in header order so the outcome
+        // doesn't depend on scheduling. The xml parsers all go through the
+        // synchronized AssetManager, so more than two threads only contend.
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(MAX_PARSER_THREADS, Runtime.getRuntime().availableProcessors()));
+        ArrayList<Future<SubtreeResult>> results = new ArrayList<Future<SubtreeResult>>();
         XmlResourceParser parser = null;
         try {
             parser = getResources().getXml(R.xml.settings_headers);
@@ -135,22 +193,168 @@ public class SearchPopulator extends IntentService {
                         continue;
                     }
 
-                    dbHelper.insertHeader(header);
-                    if (xmlResId != 0) {
-                        populateFromXml(xmlResId, header, 1, header.iconRes,
-                                header.fragment, header.titleRes);
+                    String subtree = getSubtreeKey(header, xmlResId);
+                    if (unchangedSubtrees.contains(subtree)) {
+                        continue;
                     }
+                    results.add(executor.submit(new SubtreeTask(header, xmlResId, subtree)));
                 } else {
                     XmlUtils.skipCurrentTag(parser);
                 }
             }
+
+            ArrayList<SubtreeResult> parsed = new ArrayList<SubtreeResult>();
+            HashSet<String> changedSubtrees = new HashSet<String>();
+            for (Future<SubtreeResult> future : results) {
+                SubtreeResult result = future.get();
+                parsed.add(result);
+                changedSubtrees.add(result.entries.getSubtree());
+            }
+
+            // Titles are unique, so of subtrees sharing one only the last
+            // written keeps it. Which one that is depends on writing all of
+            // them in header order, so redo everything if a changed subtree
+            // shares a title, before or after the change.
+            HashSet<String> sharing = getSubtreesSharingTitles(dbHelper, parsed,
+                    fullRebuild ? null : changedSubtrees);
+            if (!fullRebuild) {
+                sharing.retainAll(changedSubtrees);
+                sharingSubtrees.retainAll(changedSubtrees);
+                retryFullRebuild = !sharing.isEmpty() || !sharingSubtrees.isEmpty();
+            }
+
+            if (!retryFullRebuild) {
+                for (SubtreeResult result : parsed) {
+                    String subtree = result.entries.getSubtree();
+                    if (!fullRebuild) {
+                        dbHelper.deleteSubtree(subtree);
+                    }
+                    writer.insertEntries(result.entries);
+                    writer.insertSubtree(subtree, getChecksum(apk, result.files),
+                            TextUtils.join(",", result.files), sharing.contains(subtree));
+                }
+                writer.setSuccessful();
+            }
         } catch (XmlPullParserException e) {
             throw new RuntimeException("Error parsing headers", e);
         } catch (IOException e) {
             throw new RuntimeException("Error parsing headers", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Error parsing headers", e.getCause());
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted while parsing headers", e);
         } finally {
+            executor.shutdownNow();
             if (parser != null) parser.close();
+            writer.close();
+        }
+
+        if (retryFullRebuild) {
+            populateDatabase(apk, true);
+        }
+    }
+
+    private static class SubtreeResult {
+        SearchIndexWriter.Entries entries;
+        ArrayList<String> files = new ArrayList<String>();
+    }
+
+    private class SubtreeTask implements Callable<SubtreeResult> {
+        private final Header mHeader;
+        private final int mXmlResId;
+        private final String mSubtree;
+
+        SubtreeTask(Header header, int xmlResId, String subtree) {
+            mHeader = header;
+            mXmlResId = xmlResId;
+            mSubtree = subtree;
+        }
+
+        @Override
+        public SubtreeResult call() throws XmlPullParserException {
+            SubtreeResult result = new SubtreeResult();
+            result.entries = new SearchIndexWriter.Entries(SearchPopulator.this, mSubtree);
+            result.entries.insertHeader(mHeader);
+            if (mXmlResId != 0) {
+                populateFromXml(result.entries, mXmlResId, mHeader, 1, mHeader.iconRes,
+                        mHeader.fragment, mHeader.titleRes, result.files);
+            }
+            return result;
+        }
+    }
+
+    private String getSubtreeKey(Header header, int xmlResId) {
+        if (xmlResId == 0) {
+            return header.fragment;
+        }
+        return header.fragment + "|" + getResources().getResourceEntryName(xmlResId);
+    }
+
+    /**
+     * Find the subtrees whose xml files are identical to the ones they
+     * were last indexed from, and those which had titles in common with
+     * another subtree then.
+     */
+    private void findUnchangedSubtrees(SettingsSearchDatabaseHelper dbHelper, ZipFile apk,
+            HashSet<String> unchanged, HashSet<String> sharing) {
+        Cursor c = dbHelper.querySubtrees();
+        if (c != null) {
+            int keyIndex = c.getColumnIndex(DatabaseContract.Subtrees.SUBTREE_KEY);
+            int checksumIndex = c.getColumnIndex(DatabaseContract.Subtrees.SUBTREE_CHECKSUM);
+            int filesIndex = c.getColumnIndex(DatabaseContract.Subtrees.SUBTREE_FILES);
+            int sharesIndex = c.getColumnIndex(DatabaseContract.Subtrees.SUBTREE_SHARES_TITLES);
+            while (c.moveToNext()) {
+                if (c.getInt(sharesIndex) != 0) {
+                    sharing.add(c.getString(keyIndex));
+                }
+                String files = c.getString(filesIndex);
+                List<String> paths = TextUtils.isEmpty(files)
+                        ? new ArrayList<String>() : Arrays.asList(files.split(","));
+                long checksum = getChecksum(apk, paths);
+                if (checksum != -1 && checksum == c.getLong(checksumIndex)) {
+                    unchanged.add(c.getString(keyIndex));
+                }
+            }
+            c.close();
+        }
+    }
+
+    /**
+     * Find the subtrees which have a title in common with another one,
+     * among the parsed ones and, for an incremental rebuild, those already
+     * in the index which are not being replaced.
+     * @param replaced the subtrees being replaced, or null for a full rebuild
+     */
+    private HashSet<String> getSubtreesSharingTitles(SettingsSearchDatabaseHelper dbHelper,
+            ArrayList<SubtreeResult> parsed, HashSet<String> replaced) {
+        HashMap<String, String> owners = new HashMap<String, String>();
+        if (replaced != null) {
+            Cursor c = dbHelper.queryTitles();
+            if (c != null) {
+                int titleIndex = c.getColumnIndex(DatabaseContract.Settings.ACTION_TITLE);
+                int subtreeIndex = c.getColumnIndex(DatabaseContract.Settings.ACTION_SUBTREE);
+                while (c.moveToNext()) {
+                    String subtree = c.getString(subtreeIndex);
+                    if (!replaced.contains(subtree)) {
+                        owners.put(c.getString(titleIndex), subtree);
+                    }
+                }
+                c.close();
+            }
+        }
+
+        HashSet<String> sharing = new HashSet<String>();
+        for (SubtreeResult result : parsed) {
+            String subtree = result.entries.getSubtree();
+            for (String title : result.entries.getTitles()) {
+                String owner = owners.put(title, subtree);
+                if (owner != null && !owner.equals(subtree)) {
+                    sharing.add(owner);
+                    sharing.add(subtree);
+                }
+            }
         }
+        return sharing;
     }
 
     private Header parseHeader(XmlResourceParser parser, AttributeSet attrs)
@@ -232,13 +436,24 @@ public class SearchPopulator extends IntentService {
         return header;
     }
 
-    private void populateFromXml(int xmlResId, Header header,
-            int level, int iconRes, String prefFragment, int titleRes)
+    private void populateFromXml(SearchIndexWriter.Entries entries, int xmlResId,
+            Header header, int level, int iconRes, String prefFragment, int titleRes,
+            ArrayList<String> files)
             throws XmlPullParserException {
-        SettingsSearchDatabaseHelper dbHelper = SettingsSearchDatabaseHelper.getInstance(this);
         AttributeSet attributeSet;
         int type;
-        XmlResourceParser xmlParser;
+        XmlResourceParser xmlParser = null;
+
+        TypedValue value = new TypedValue();
+        getResources().getValue(xmlResId, value, true);
+        if (value.string != null) {
+            files.add(value.string.toString());
+        }
+
+        if (populateFromPrecompiled(entries, xmlResId, header, level,
+                iconRes, prefFragment, titleRes, files)) {
+            return;
+        }
 
         try {
             xmlParser = getResources().getXml(xmlResId);
@@ -300,15 +515,15 @@ public class SearchPopulator extends IntentService {
                         com.android.settings.R.styleable.SearchableInfo_includeXmlForSearch, 0);
 
                 if (subXmlId != 0 && !TextUtils.isEmpty(fragment)) {
-                    populateFromXml(subXmlId, null, level + 1, header.iconRes,
-                            fragment, title.resourceId);
-                    dbHelper.insertEntry(preferenceTitle, level, fragment,
+                    populateFromXml(entries, subXmlId, null, level + 1, header.iconRes,
+                            fragment, title.resourceId, files);
+                    entries.insertEntry(preferenceTitle, level, fragment,
                             header.iconRes, titleRes, key);
                 } else if (header != null) {
                     header.title = preferenceTitle;
-                    dbHelper.insertHeader(header, titleRes, key);
+                    entries.insertHeader(header, titleRes, key);
                 } else {
-                    dbHelper.insertEntry(preferenceTitle, level, prefFragment,
+                    entries.insertEntry(preferenceTitle, level, prefFragment,
                             iconRes, titleRes, key);
                 }
 
@@ -317,13 +532,54 @@ public class SearchPopulator extends IntentService {
             }
         } catch (IOException e) {
             // ignored
+        } finally {
+            // several of these are open at once now, don't wait for the GC
+            if (xmlParser != null) xmlParser.close();
+        }
+    }
+
+    /**
+     * Same as {@link #populateFromXml}, but using the data parsed at build time.
+     * @return false if the file is not part of the precompiled index, in
+     *         which case nothing was added
+     */
+    private boolean populateFromPrecompiled(SearchIndexWriter.Entries entries, int xmlResId,
+            Header header, int level, int iconRes, String prefFragment, int titleRes,
+            ArrayList<String> files) throws XmlPullParserException {
+        PrecompiledSearchIndex.Preference[] prefs = mPrecompiledIndex.get(xmlResId);
+        if (prefs == null) {
+            return false;
         }
+
+        for (PrecompiledSearchIndex.Preference pref : prefs) {
+            if (pref.excludeFromSearch) {
+                continue;
+            }
+
+            String title = pref.titleRes != 0
+                    ? getResources().getString(pref.titleRes) : pref.title;
+            if (pref.includeXmlRes != 0 && !TextUtils.isEmpty(pref.fragment)) {
+                populateFromXml(entries, pref.includeXmlRes, null, level + 1, header.iconRes,
+                        pref.fragment, pref.titleRes, files);
+                entries.insertEntry(title, level, pref.fragment,
+                        header.iconRes, titleRes, pref.key);
+            } else if (header != null) {
+                header.title = title;
+                entries.insertHeader(header, titleRes, pref.key);
+            } else {
+                entries.insertEntry(title, level, prefFragment,
+                        iconRes, titleRes, pref.key);
+            }
+        }
+        return true;
     }
 
-    public static ArrayList<SearchInfo> loadSearchData(Context context) {
+    /**
+     * Load the entries whose titles match the given search constraint.
+     */
+    public static ArrayList<SearchInfo> loadSearchData(Context context, String constraint) {
         SettingsSearchDatabaseHelper dbHelper = SettingsSearchDatabaseHelper.getInstance(context);
-        SQLiteDatabase database = dbHelper.getReadableDatabase();
-        Cursor c = database.query(DatabaseContract.TABLE_NAME, null, null, null, null, null, null);
+        Cursor c = dbHelper.queryMatches(constraint);
         ArrayList<SearchInfo> infos = new ArrayList<SearchInfo>();
 
         if (c != null) {
@@ -357,48 +613,81 @@ public class SearchPopulator extends IntentService {
         return infos;
     }
 
-    /**
-     * Get a 32 bit hashcode for the given package.
-     * @param packageName
-     * @return
-     */
-    private int getPackageHashCode(String packageName) {
-        PackageInfo pInfo;
+    private PackageInfo getOwnPackageInfo() {
         try {
-            pInfo = getPackageManager().getPackageInfo(packageName, 0);
+            return getPackageManager().getPackageInfo(getBasePackageName(), 0);
         } catch (NameNotFoundException e) {
-            return 0;
+            return null;
         }
+    }
 
+    private ZipFile openApk(PackageInfo pInfo) {
+        if (pInfo == null) {
+            return null;
+        }
         String apkPath = pInfo.applicationInfo.sourceDir;
-        byte[] crc = getFileCrC(apkPath);
-        if (crc == null) return 0;
-        return Arrays.hashCode(crc);
+        try {
+            return new ZipFile(apkPath);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open " + apkPath, e);
+            return null;
+        }
     }
 
-    private byte[] getFileCrC(String path) {
-        ZipFile zfile = null;
-        try {
-            zfile = new ZipFile(path);
-            ZipEntry entry = zfile.getEntry("META-INF/MANIFEST.MF");
-            if (entry == null) {
-                Log.e(TAG, "Unable to get MANIFEST.MF from " + path);
-                return null;
-            }
+    /**
+     * Get a 32 bit hashcode for the given package.
+     * @param apk
+     * @return
+     */
+    private int getPackageHashCode(ZipFile apk) {
+        long crc = getFileCrc(apk, "META-INF/MANIFEST.MF");
+        if (crc == -1) return 0;
+        return Arrays.hashCode(ByteBuffer.allocate(8).putLong(crc).array());
+    }
 
-            long crc = entry.getCrc();
-            if (crc == -1) Log.e(TAG, "Unable to get CRC for " + path);
-            return ByteBuffer.allocate(8).putLong(crc).array();
-        } catch (IOException e) {
-        } finally {
-            if (zfile != null) {
-                try {
-                    zfile.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+    /**
+     * Get a checksum over the resources every subtree depends on:
+     * the string table and the header list.
+     */
+    private long getResourcesCrc(ZipFile apk) {
+        TypedValue value = new TypedValue();
+        getResources().getValue(R.xml.settings_headers, value, true);
+        ArrayList<String> paths = new ArrayList<String>();
+        paths.add(RESOURCES_TABLE);
+        if (value.string != null) {
+            paths.add(value.string.toString());
+        }
+        return getChecksum(apk, paths);
+    }
+
+    /**
+     * Combine the CRCs of the given apk entries.
+     * @return the checksum, or -1 if any of the entries could not be found
+     */
+    private long getChecksum(ZipFile apk, List<String> paths) {
+        long checksum = 17;
+        for (String path : paths) {
+            long crc = getFileCrc(apk, path);
+            if (crc == -1) {
+                return -1;
             }
+            checksum = 31 * checksum + crc;
         }
-        return null;
+        return checksum;
+    }
+
+    private long getFileCrc(ZipFile apk, String path) {
+        if (apk == null) {
+            return -1;
+        }
+        ZipEntry entry = apk.getEntry(path);
+        if (entry == null) {
+            Log.e(TAG, "Unable to get " + path + " from " + apk.getName());
+            return -1;
+        }
+
+        long crc = entry.getCrc();
+        if (crc == -1) Log.e(TAG, "Unable to get CRC for " + path);
+        return crc;
     }
 }
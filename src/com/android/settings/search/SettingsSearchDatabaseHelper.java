@@ -16,13 +16,12 @@
 
 package com.android.settings.search;
 
-import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
-import android.os.Parcel;
-import android.preference.PreferenceActivity.Header;
-import android.text.TextUtils;
+
+import java.util.ArrayList;
 
 public class SettingsSearchDatabaseHelper extends SQLiteOpenHelper {
     private static SettingsSearchDatabaseHelper mInstance = null;
@@ -30,7 +29,7 @@ public class SettingsSearchDatabaseHelper extends SQLiteOpenHelper {
     // general database configuration and tables
     private static final String sDatabaseName = "search.db";
 
-    protected static final int DATABASE_VERSION = 3;
+    protected static final int DATABASE_VERSION = 6;
     private Context mContext;
 
     public static SettingsSearchDatabaseHelper getInstance(Context context) {
@@ -57,68 +56,148 @@ public class SettingsSearchDatabaseHelper extends SQLiteOpenHelper {
                 DatabaseContract.Settings.ACTION_LEVEL + " INTEGER," +
                 DatabaseContract.Settings.ACTION_FRAGMENT + " TEXT," +
                 DatabaseContract.Settings.ACTION_PARENT_TITLE + " INTEGER," +
-                DatabaseContract.Settings.ACTION_KEY + " TEXT" +
+                DatabaseContract.Settings.ACTION_KEY + " TEXT," +
+                DatabaseContract.Settings.ACTION_SUBTREE + " TEXT" +
                 ");");
         db.execSQL(builder.toString());
+
+        // Full text index over the titles. Rows are keyed by the _id of the
+        // settings row they belong to (docid), so lookups can join back to it.
+        db.execSQL("CREATE VIRTUAL TABLE " + DatabaseContract.FTS_TABLE_NAME +
+                " USING fts4(" +
+                DatabaseContract.SettingsFts.TITLE_TOKENS + "," +
+                DatabaseContract.SettingsFts.TITLE_NORMALIZED +
+                ");");
+
+        db.execSQL("CREATE TABLE " + DatabaseContract.SUBTREE_TABLE_NAME + "(" +
+                DatabaseContract.Subtrees._ID + " INTEGER PRIMARY KEY," +
+                DatabaseContract.Subtrees.SUBTREE_KEY + " TEXT UNIQUE ON CONFLICT REPLACE," +
+                DatabaseContract.Subtrees.SUBTREE_CHECKSUM + " INTEGER," +
+                DatabaseContract.Subtrees.SUBTREE_FILES + " TEXT," +
+                DatabaseContract.Subtrees.SUBTREE_SHARES_TITLES + " INTEGER" +
+                ");");
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL("DROP TABLE IF EXISTS settings");
+        db.execSQL("DROP TABLE IF EXISTS " + DatabaseContract.TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + DatabaseContract.FTS_TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + DatabaseContract.SUBTREE_TABLE_NAME);
         onCreate(db);
     }
 
     public void wipeTable() {
         SQLiteDatabase database = getWritableDatabase();
         database.delete(DatabaseContract.TABLE_NAME, null, null);
+        database.delete(DatabaseContract.FTS_TABLE_NAME, null, null);
+        database.delete(DatabaseContract.SUBTREE_TABLE_NAME, null, null);
     }
 
-    public void insertHeader(Header header) {
-        insertHeader(header, 0, null);
+    /**
+     * Remove all entries that were indexed for the given subtree.
+     */
+    public void deleteSubtree(String subtree) {
+        SQLiteDatabase database = getWritableDatabase();
+        String[] args = new String[] { subtree };
+        database.delete(DatabaseContract.FTS_TABLE_NAME,
+                DatabaseContract.SettingsFts.DOCID + " IN (SELECT " +
+                DatabaseContract.Settings._ID + " FROM " + DatabaseContract.TABLE_NAME +
+                " WHERE " + DatabaseContract.Settings.ACTION_SUBTREE + " = ?)", args);
+        database.delete(DatabaseContract.TABLE_NAME,
+                DatabaseContract.Settings.ACTION_SUBTREE + " = ?", args);
+        // Also drop index rows whose settings row is gone, such as those
+        // left by indexes written before replaced titles were handled
+        database.delete(DatabaseContract.FTS_TABLE_NAME,
+                DatabaseContract.SettingsFts.DOCID + " NOT IN (SELECT " +
+                DatabaseContract.Settings._ID + " FROM " + DatabaseContract.TABLE_NAME + ")",
+                null);
+        database.delete(DatabaseContract.SUBTREE_TABLE_NAME,
+                DatabaseContract.Subtrees.SUBTREE_KEY + " = ?", args);
     }
 
-    public void insertHeader(Header header, int parentTitle, String key) {
-        if (header == null) {
-            return;
-        }
-        String title = null;
-        if (!TextUtils.isEmpty(header.title)) {
-            title = header.title.toString();
-        } else if (header.titleRes != 0) {
-            title = mContext.getString(header.titleRes);
-        }
-        if (TextUtils.isEmpty(title)) {
-            return;
+    public Cursor querySubtrees() {
+        SQLiteDatabase database = getReadableDatabase();
+        return database.query(DatabaseContract.SUBTREE_TABLE_NAME, null,
+                null, null, null, null, null);
+    }
+
+    /**
+     * @return cursor over the title and subtree of every entry
+     */
+    public Cursor queryTitles() {
+        SQLiteDatabase database = getReadableDatabase();
+        return database.query(DatabaseContract.TABLE_NAME,
+                new String[] {
+                    DatabaseContract.Settings.ACTION_TITLE,
+                    DatabaseContract.Settings.ACTION_SUBTREE
+                }, null, null, null, null, null);
+    }
+
+    /**
+     * Start a batch of index writes. All writes go through one transaction
+     * until {@link SearchIndexWriter#close()} is called.
+     */
+    public SearchIndexWriter beginIndexing() {
+        return new SearchIndexWriter(getWritableDatabase());
+    }
+
+    /**
+     * Query the full text index for entries whose title contains a word
+     * starting with each of the words in the given constraint.
+     * @return cursor over matching rows of the settings table, or null if
+     *         the constraint does not contain any searchable characters
+     */
+    public Cursor queryMatches(String constraint) {
+        String matchQuery = buildMatchQuery(constraint);
+        if (matchQuery == null) {
+            return null;
         }
-        insertEntry(header, title, 0, null, header.iconRes, parentTitle, key);
+        SQLiteDatabase database = getReadableDatabase();
+        // Index rows always belong to a settings row, the join reads it.
+        return database.rawQuery("SELECT " + DatabaseContract.TABLE_NAME + ".* FROM " +
+                DatabaseContract.TABLE_NAME + " JOIN " + DatabaseContract.FTS_TABLE_NAME +
+                " ON " + DatabaseContract.TABLE_NAME + "." + DatabaseContract.Settings._ID +
+                " = " + DatabaseContract.FTS_TABLE_NAME + "." +
+                DatabaseContract.SettingsFts.DOCID +
+                " WHERE " + DatabaseContract.FTS_TABLE_NAME + " MATCH ?" +
+                " ORDER BY " + DatabaseContract.TABLE_NAME + "." +
+                DatabaseContract.Settings._ID,
+                new String[] { matchQuery });
     }
 
-    public void insertEntry(String title, int level, String fragment,
-            int iconRes, int parentTitle, String key) {
-        if (TextUtils.isEmpty(title)) {
-            return;
+    /**
+     * Turn user input into an FTS query of prefix terms, e.g. "wi-fi call"
+     * becomes "wi* fi* call*". Only letters and digits are kept, so the
+     * result never contains FTS operators.
+     */
+    private static String buildMatchQuery(String constraint) {
+        StringBuilder builder = new StringBuilder();
+        for (String word : splitWords(constraint)) {
+            if (builder.length() > 0) {
+                builder.append(' ');
+            }
+            builder.append(word).append('*');
         }
-        insertEntry(null, title, level, fragment, iconRes, parentTitle, key);
+        return builder.length() > 0 ? builder.toString() : null;
     }
 
-    private void insertEntry(Header header, String title, int level, String fragment,
-            int iconRes, int parentTitle, String key) {
-        SQLiteDatabase database = getWritableDatabase();
-        ContentValues values = new ContentValues();
-        if (header != null) {
-            Parcel p = Parcel.obtain();
-            p.setDataPosition(0);
-            header.writeToParcel(p, 0);
-            // Marshalling will not cause an issue if the definition changes,
-            // since we wipe data on hash changes and recreate it
-            values.put(DatabaseContract.Settings.ACTION_HEADER, p.marshall());
+    /**
+     * Split user input into the lower cased words used for matching.
+     */
+    public static ArrayList<String> splitWords(String constraint) {
+        ArrayList<String> words = new ArrayList<String>();
+        if (constraint == null) {
+            return words;
+        }
+        for (String word : constraint.toLowerCase().split("[^\\p{L}\\p{Nd}]+")) {
+            if (!word.isEmpty()) {
+                words.add(word);
+            }
         }
-        values.put(DatabaseContract.Settings.ACTION_TITLE, title);
-        values.put(DatabaseContract.Settings.ACTION_LEVEL, level);
-        values.put(DatabaseContract.Settings.ACTION_ICON, iconRes);
-        values.put(DatabaseContract.Settings.ACTION_FRAGMENT, fragment);
-        values.put(DatabaseContract.Settings.ACTION_PARENT_TITLE, parentTitle);
-        values.put(DatabaseContract.Settings.ACTION_KEY, key);
-        database.insert(DatabaseContract.TABLE_NAME, null, values);
+        return words;
+    }
+
+    public static String normalizeTitle(String title) {
+        return title.toLowerCase().replaceAll("[^\\p{L}\\p{Nd}]+", "");
     }
 }
@@ -20,7 +20,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.res.Resources;
 import android.graphics.drawable.Drawable;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.ResultReceiver;
@@ -41,12 +40,28 @@ import android.widget.TextView;
 import com.android.settings.R;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.PriorityQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class SettingsSearchFilterAdapter extends BaseAdapter implements Filterable {
+    // number of results shown for a query
+    private static final int MAX_RESULTS = 50;
+
+    // score for each query word, depending on where it matched the title
+    private static final int SCORE_FIRST_WORD = 3;
+    private static final int SCORE_WORD = 2;
+    private static final int SCORE_JOINED_WORDS = 1;
+
+    private static final Pattern WORD_PATTERN = Pattern.compile("[\\p{L}\\p{Nd}]+");
+
     private Context mContext;
-    private List<SearchInfo> mSearchInfo;
+    private volatile boolean mSearchDataReady;
+    private volatile boolean mCandidatesInvalid;
     private List<SearchInfo> mFilteredInfo;
+    private List<String> mDisplayedWords;
     private LayoutInflater mInflater;
     private Resources mResources;
     private Drawable mDefaultIcon;
@@ -55,10 +70,22 @@ public class SettingsSearchFilterAdapter extends BaseAdapter implements Filterab
 
     private SparseArray<Drawable> mIconCache = new SparseArray<Drawable>();
 
+    // All matches of the last query, only used in the filter thread. As
+    // long as the user keeps typing, new results are a subset of these.
+    private String mCandidateQuery;
+    private ArrayList<SearchInfo> mCandidates;
+
     private ResultReceiver mPopulateDoneReceiver = new ResultReceiver(new Handler()) {
         @Override
         protected void onReceiveResult(int resultCode, Bundle resultData) {
-            new LoadSearchInfoTask().execute();
+            mSearchDataReady = true;
+            mCandidatesInvalid = true;
+            if (mLastConstraint != null) {
+                mFilter.filter(mLastConstraint);
+            } else {
+                mFilteredInfo = new ArrayList<SearchInfo>();
+                notifyDataSetChanged();
+            }
         }
     };
 
@@ -66,7 +93,7 @@ public class SettingsSearchFilterAdapter extends BaseAdapter implements Filterab
         @Override
         protected Filter.FilterResults performFiltering(CharSequence constraint) {
             Filter.FilterResults results = new Filter.FilterResults();
-            if (mFilteredInfo == null) {
+            if (!mSearchDataReady) {
                 results.values = null;
                 results.count = 1;
             } else {
@@ -82,28 +109,8 @@ public class SettingsSearchFilterAdapter extends BaseAdapter implements Filterab
         @Override
         protected void publishResults(CharSequence constraint, Filter.FilterResults results) {
             mFilteredInfo = (List<SearchInfo>) results.values;
-            if (mFilteredInfo != null) {
-                applyFilteredMatchSpans();
-            }
-            notifyDataSetChanged();
-        }
-    };
-
-    private class LoadSearchInfoTask extends AsyncTask<Void, Void, List<SearchInfo>> {
-        @Override
-        protected List<SearchInfo> doInBackground(Void... param) {
-            return SearchPopulator.loadSearchData(mContext);
-        }
-
-        @Override
-        protected void onPostExecute(List<SearchInfo> infos) {
-            mSearchInfo = infos;
-            if (mLastConstraint == null) {
-                mFilteredInfo = new ArrayList<SearchInfo>(infos);
-            } else {
-                mFilteredInfo = filterInfos(mLastConstraint);
-                applyFilteredMatchSpans();
-            }
+            mDisplayedWords = SettingsSearchDatabaseHelper.splitWords(
+                    constraint != null ? constraint.toString() : null);
             notifyDataSetChanged();
         }
     };
@@ -126,11 +133,13 @@ public class SettingsSearchFilterAdapter extends BaseAdapter implements Filterab
         public final int parentTitle;
         public final String key;
 
-        private String mNormalizedTitle;
-        // used in main thread
-        private final ArrayList<MatchInfo> mMatches = new ArrayList<MatchInfo>();
-        // updated in filter thread
-        private final ArrayList<MatchInfo> mPendingMatches = new ArrayList<MatchInfo>();
+        private final String mNormalizedTitle;
+        // lower cased words of the title and where they start
+        private final String[] mTitleWords;
+        private final int[] mTitleWordStarts;
+        // highlight spans, computed when the row is shown for mMatchedWords
+        private ArrayList<MatchInfo> mMatches;
+        private List<String> mMatchedWords;
 
         public SearchInfo(Header header, int level, String fragment, String title,
                 int iconRes, int parentTitle, String key) {
@@ -142,7 +151,20 @@ public class SettingsSearchFilterAdapter extends BaseAdapter implements Filterab
             this.parentTitle = parentTitle;
             this.key = key;
 
-            mNormalizedTitle = removeNonAlphaNumeric(title.toLowerCase());
+            mNormalizedTitle = SettingsSearchDatabaseHelper.normalizeTitle(title);
+
+            ArrayList<String> words = new ArrayList<String>();
+            ArrayList<Integer> starts = new ArrayList<Integer>();
+            Matcher matcher = WORD_PATTERN.matcher(title.toLowerCase());
+            while (matcher.find()) {
+                words.add(matcher.group());
+                starts.add(matcher.start());
+            }
+            mTitleWords = words.toArray(new String[words.size()]);
+            mTitleWordStarts = new int[starts.size()];
+            for (int i = 0; i < mTitleWordStarts.length; i++) {
+                mTitleWordStarts[i] = starts.get(i);
+            }
         }
     }
 
@@ -223,6 +245,10 @@ public class SettingsSearchFilterAdapter extends BaseAdapter implements Filterab
         }
         holder.imageView.setImageDrawable(d);
 
+        if (info.mMatchedWords != mDisplayedWords) {
+            info.mMatches = findMatches(info, mDisplayedWords);
+            info.mMatchedWords = mDisplayedWords;
+        }
         if (!info.mMatches.isEmpty()) {
             SpannableStringBuilder titleSpan = new SpannableStringBuilder(info.title);
             for (MatchInfo match : info.mMatches) {
@@ -251,67 +277,154 @@ public class SettingsSearchFilterAdapter extends BaseAdapter implements Filterab
     }
 
     private ArrayList<SearchInfo> filterInfos(CharSequence constraint) {
-        ArrayList<SearchInfo> filteredValues = new ArrayList<SearchInfo>();
-        if (constraint == null) {
-            return filteredValues;
+        String actualConstraint = constraint != null
+                ? constraint.toString().trim().toLowerCase() : "";
+        List<String> words = SettingsSearchDatabaseHelper.splitWords(actualConstraint);
+        if (mCandidatesInvalid) {
+            mCandidatesInvalid = false;
+            mCandidates = null;
+        }
+        if (words.isEmpty()) {
+            mCandidates = null;
+            return new ArrayList<SearchInfo>();
         }
 
-        String actualConstraint = constraint.toString().trim().toLowerCase();
-        if (actualConstraint.isEmpty()) {
-            return filteredValues;
+        ArrayList<SearchInfo> candidates;
+        if (mCandidates != null && actualConstraint.startsWith(mCandidateQuery)) {
+            // The query was only extended, so it can only match fewer entries
+            candidates = mCandidates;
+        } else {
+            candidates = SearchPopulator.loadSearchData(mContext, actualConstraint);
         }
 
-        String filteredConstraint = removeNonAlphaNumeric(actualConstraint);
-
-        for (SearchInfo item : mSearchInfo) {
-            String title = item.title.toLowerCase();
-            String filteredTitle = item.mNormalizedTitle;
-
-            item.mPendingMatches.clear();
-
-            int pos = filteredTitle.indexOf(filteredConstraint);
-            while (pos != -1) {
-                int unfilteredLen = title.length();
-                int filteredLen = filteredTitle.length();
-                int constraintLen = filteredConstraint.length();
-                MatchInfo match = new MatchInfo();
-                for (int ufIndex = 0, fIndex = 0;
-                        ufIndex < unfilteredLen && fIndex < filteredLen; ufIndex++) {
-                    if (title.charAt(ufIndex) != filteredTitle.charAt(fIndex)) {
-                        continue;
-                    }
-                    if (fIndex == pos) {
-                        match.start = ufIndex;
-                    }
-                    if (fIndex == pos + constraintLen - 1) {
-                        match.end = ufIndex + 1;
-                        break;
-                    }
-                    fIndex++;
-                }
+        // Keep the best MAX_RESULTS matches, worst one at the head
+        PriorityQueue<ScoredInfo> best = new PriorityQueue<ScoredInfo>();
+        ArrayList<SearchInfo> matches = new ArrayList<SearchInfo>();
+        for (int i = 0; i < candidates.size(); i++) {
+            SearchInfo info = candidates.get(i);
+            int score = getScore(info, words);
+            if (score < 0) {
+                continue;
+            }
+            matches.add(info);
+
+            ScoredInfo scored = new ScoredInfo(info, score, i);
+            if (best.size() < MAX_RESULTS) {
+                best.add(scored);
+            } else if (scored.compareTo(best.peek()) > 0) {
+                best.poll();
+                best.add(scored);
+            }
+        }
+        mCandidates = matches;
+        mCandidateQuery = actualConstraint;
 
-                if (match.start != -1 && match.end != -1) {
-                    item.mPendingMatches.add(match);
+        ArrayList<SearchInfo> filteredValues = new ArrayList<SearchInfo>(best.size());
+        while (!best.isEmpty()) {
+            filteredValues.add(best.poll().info);
+        }
+        Collections.reverse(filteredValues);
+        return filteredValues;
+    }
+
+    /**
+     * Rank an entry for the given query words. Words matching the start of
+     * the title rank highest, then words matching the start of any word in
+     * it, then ones only matching with punctuation removed ("wifi" for
+     * "Wi-Fi"). Ties go to the less nested entry and the earlier match.
+     * @return the score, or -1 if not all words match
+     */
+    private static int getScore(SearchInfo info, List<String> words) {
+        int score = 0;
+        int firstPosition = Integer.MAX_VALUE;
+        for (String word : words) {
+            int position = -1;
+            for (int i = 0; i < info.mTitleWords.length; i++) {
+                if (info.mTitleWords[i].startsWith(word)) {
+                    position = info.mTitleWordStarts[i];
+                    score += i == 0 ? SCORE_FIRST_WORD : SCORE_WORD;
+                    break;
                 }
-                pos = filteredTitle.indexOf(filteredConstraint, pos + 1);
             }
-            if (!item.mPendingMatches.isEmpty()) {
-                filteredValues.add(item);
+            if (position == -1) {
+                if (!info.mNormalizedTitle.startsWith(word)) {
+                    return -1;
+                }
+                position = 0;
+                score += SCORE_JOINED_WORDS;
             }
+            firstPosition = Math.min(firstPosition, position);
         }
+        return score * 10000 - Math.min(info.level, 9) * 1000 - Math.min(firstPosition, 999);
+    }
 
-        return filteredValues;
+    private static class ScoredInfo implements Comparable<ScoredInfo> {
+        final SearchInfo info;
+        final int score;
+        final int index;
+
+        ScoredInfo(SearchInfo info, int score, int index) {
+            this.info = info;
+            this.score = score;
+            this.index = index;
+        }
+
+        @Override
+        public int compareTo(ScoredInfo other) {
+            if (score != other.score) {
+                return score < other.score ? -1 : 1;
+            }
+            // equal scores keep the index order
+            return other.index - index;
+        }
     }
 
-    private void applyFilteredMatchSpans() {
-        for (SearchInfo info : mFilteredInfo) {
-            info.mMatches.clear();
-            info.mMatches.addAll(info.mPendingMatches);
+    private static ArrayList<MatchInfo> findMatches(SearchInfo item, List<String> words) {
+        ArrayList<MatchInfo> matches = new ArrayList<MatchInfo>();
+        if (words == null) {
+            return matches;
+        }
+        for (String word : words) {
+            addMatches(item, word, matches);
         }
+        return matches;
     }
 
-    private static String removeNonAlphaNumeric(String s) {
-        return s.replaceAll("[^\\p{L}\\p{Nd}]+", "");
+    private static void addMatches(SearchInfo item, String filteredConstraint,
+            ArrayList<MatchInfo> matches) {
+        if (filteredConstraint.isEmpty()) {
+            return;
+        }
+
+        String title = item.title.toLowerCase();
+        String filteredTitle = item.mNormalizedTitle;
+
+        int pos = filteredTitle.indexOf(filteredConstraint);
+        while (pos != -1) {
+            int unfilteredLen = title.length();
+            int filteredLen = filteredTitle.length();
+            int constraintLen = filteredConstraint.length();
+            MatchInfo match = new MatchInfo();
+            for (int ufIndex = 0, fIndex = 0;
+                    ufIndex < unfilteredLen && fIndex < filteredLen; ufIndex++) {
+                if (title.charAt(ufIndex) != filteredTitle.charAt(fIndex)) {
+                    continue;
+                }
+                if (fIndex == pos) {
+                    match.start = ufIndex;
+                }
+                if (fIndex == pos + constraintLen - 1) {
+                    match.end = ufIndex + 1;
+                    break;
+                }
+                fIndex++;
+            }
+
+            if (match.start != -1 && match.end != -1) {
+                matches.add(match);
+            }
+            pos = filteredTitle.indexOf(filteredConstraint, pos + 1);
+        }
     }
 
     private static class ViewHolder {
@@ -64,6 +64,7 @@ import android.widget.Switch;
 
 import com.android.settings.R;
 import com.android.settings.SettingsPreferenceFragment;
+import com.android.settings.applications.PackageCatalog;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -87,6 +88,7 @@ public class AppRestrictionsFragment extends SettingsPreferenceFragment implemen
     protected PackageManager mPackageManager;
     protected UserManager mUserManager;
     protected IPackageManager mIPm;
+    private PackageCatalog mCatalog;
     protected UserHandle mUser;
     private PackageInfo mSysPackageInfo;
 
@@ -275,6 +277,7 @@ public class AppRestrictionsFragment extends SettingsPreferenceFragment implemen
         }
 
         mPackageManager = getActivity().getPackageManager();
+        mCatalog = PackageCatalog.getInstance(getActivity());
         mIPm = IPackageManager.Stub.asInterface(ServiceManager.getService("package"));
         mUserManager = (UserManager) getActivity().getSystemService(Context.USER_SERVICE);
         mRestrictedProfile = mUserManager.getUserInfo(mUser.getIdentifier()).isRestricted();
@@ -561,6 +564,8 @@ public class AppRestrictionsFragment extends SettingsPreferenceFragment implemen
         Intent widgetIntent = new Intent(AppWidgetManager.ACTION_APPWIDGET_UPDATE);
         addSystemApps(mVisibleApps, widgetIntent, excludePackages);
 
+        // Labels and icons of the apps of this user are already loaded there
+        mCatalog.waitForLoad();
         List<ApplicationInfo> installedApps = pm.getInstalledApplications(
                 PackageManager.GET_UNINSTALLED_PACKAGES);
         for (ApplicationInfo app : installedApps) {
@@ -572,9 +577,15 @@ public class AppRestrictionsFragment extends SettingsPreferenceFragment implemen
                 // Downloaded app
                 SelectableAppInfo info = new SelectableAppInfo();
                 info.packageName = app.packageName;
-                info.appName = app.loadLabel(pm);
+                PackageCatalog.Entry entry = mCatalog.getEntry(app.packageName);
+                if (entry != null) {
+                    info.appName = entry.label;
+                    info.icon = mCatalog.getIcon(entry);
+                } else {
+                    info.appName = app.loadLabel(pm);
+                    info.icon = app.loadIcon(pm);
+                }
                 info.activityName = info.appName;
-                info.icon = app.loadIcon(pm);
                 mVisibleApps.add(info);
             } else {
                 try {
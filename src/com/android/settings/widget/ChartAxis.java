@@ -30,6 +30,13 @@ public interface ChartAxis {
     /** Set range of screen points this axis should cover. */
     public boolean setSize(float size);
 
+    /** Return lower bound of raw values this axis covers. */
+    public long getMin();
+    /** Return upper bound of raw values this axis covers. */
+    public long getMax();
+    /** Return range of screen points this axis covers. */
+    public float getSize();
+
     /** Convert raw value into screen point. */
     public float convertToPoint(long value);
     /** Convert screen point into raw value. */
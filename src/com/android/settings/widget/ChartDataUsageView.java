@@ -490,6 +490,21 @@ public class ChartDataUsageView extends ChartView {
             }
         }
 
+        @Override
+        public long getMin() {
+            return mMin;
+        }
+
+        @Override
+        public long getMax() {
+            return mMax;
+        }
+
+        @Override
+        public float getSize() {
+            return mSize;
+        }
+
         @Override
         public float convertToPoint(long value) {
             return (mSize * (value - mMin)) / (mMax - mMin);
@@ -572,6 +587,21 @@ public class ChartDataUsageView extends ChartView {
             }
         }
 
+        @Override
+        public long getMin() {
+            return mMin;
+        }
+
+        @Override
+        public long getMax() {
+            return mMax;
+        }
+
+        @Override
+        public float getSize() {
+            return mSize;
+        }
+
         @Override
         public float convertToPoint(long value) {
             if (LOG_SCALE) {
@@ -36,6 +36,8 @@ import android.view.View;
 import com.android.internal.util.Preconditions;
 import com.android.settings.R;
 
+import java.util.Arrays;
+
 /**
  * {@link NetworkStatsHistory} series to render inside a {@link ChartView},
  * using {@link ChartAxis} to map into screen coordinates.
@@ -60,6 +62,19 @@ public class ChartNetworkSeriesView extends View {
     private Path mPathFill;
     private Path mPathEstimate;
 
+    /**
+     * Series decimated to the pixel columns of the horizontal axis, as
+     * screen x and cumulative bytes, so paths are built from a few points
+     * per pixel however fine the buckets are.  Reused until the stats or
+     * the horizontal viewport change.
+     */
+    private final SeriesPoints mPoints = new SeriesPoints();
+    private boolean mPointsValid = false;
+    /** Viewport the points and the paths were built for. */
+    private final Viewport mPointsViewport = new Viewport();
+    private final Viewport mPathViewport = new Viewport();
+    private final Viewport mViewport = new Viewport();
+
     private long mStart;
     private long mEnd;
 
@@ -136,6 +151,7 @@ public class ChartNetworkSeriesView extends View {
 
     public void bindNetworkStats(NetworkStatsHistory stats) {
         mStats = stats;
+        mPointsValid = false;
         invalidatePath();
         invalidate();
     }
@@ -155,91 +171,74 @@ public class ChartNetworkSeriesView extends View {
         invalidate();
     }
 
+    /**
+     * Check the paths against the current viewport before the next draw,
+     * keeping them when it did not actually change.
+     */
     public void invalidatePath() {
         mPathValid = false;
-        mMax = 0;
+        if (mHoriz != null) {
+            mViewport.set(this);
+            if (!mViewport.sameHorizontal(mPointsViewport)) {
+                mPointsValid = false;
+            }
+        }
+        if (!mPointsValid) {
+            mMax = 0;
+        }
         invalidate();
     }
 
     /**
-     * Erase any existing {@link Path} and generate series outline based on
-     * currently bound {@link NetworkStatsHistory} data.
+     * Generate series outline based on currently bound
+     * {@link NetworkStatsHistory} data, unless the viewport is the one the
+     * current {@link Path}s were built for.
      */
     private void generatePath() {
-        if (LOGD) Log.d(TAG, "generatePath()");
+        mPathValid = true;
+
+        mViewport.set(this);
+        if (!mPointsValid || !mViewport.sameHorizontal(mPointsViewport)) {
+            generatePoints();
+            mPointsViewport.set(this);
+            mPointsValid = true;
+        } else if (mViewport.sameHorizontal(mPathViewport)
+                && mViewport.sameVertical(mPathViewport)) {
+            // only the vertical axis was touched, and it ended up the same
+            return;
+        }
+        mPathViewport.set(this);
+
+        if (LOGD) Log.d(TAG, "generatePath() from " + mPoints.size + " points");
 
-        mMax = 0;
         mPathStroke.reset();
         mPathFill.reset();
         mPathEstimate.reset();
-        mPathValid = true;
 
         // bail when not enough stats to render
-        if (mStats == null || mStats.size() < 2) {
+        if (mPoints.size == 0) {
             return;
         }
 
         final int width = getWidth();
         final int height = getHeight();
 
-        boolean started = false;
-        float lastX = 0;
-        float lastY = height;
-        long lastTime = mHoriz.convertToValue(lastX);
-
-        // move into starting position
-        mPathStroke.moveTo(lastX, lastY);
-        mPathFill.moveTo(lastX, lastY);
-
-        // TODO: count fractional data from first bucket crossing start;
-        // currently it only accepts first full bucket.
-
-        long totalData = 0;
-
-        NetworkStatsHistory.Entry entry = null;
-
-        final int start = mStats.getIndexBefore(mStart);
-        final int end = mStats.getIndexAfter(mEnd);
-        for (int i = start; i <= end; i++) {
-            entry = mStats.getValues(i, entry);
-
-            final long startTime = entry.bucketStart;
-            final long endTime = startTime + entry.bucketDuration;
-
-            final float startX = mHoriz.convertToPoint(startTime);
-            final float endX = mHoriz.convertToPoint(endTime);
-
-            // skip until we find first stats on screen
-            if (endX < 0) continue;
-
-            // increment by current bucket total
-            totalData += entry.rxBytes + entry.txBytes;
-
-            final float startY = lastY;
-            final float endY = mVert.convertToPoint(totalData);
-
-            if (lastTime != startTime) {
-                // gap in buckets; line to start of current bucket
-                mPathStroke.lineTo(startX, startY);
-                mPathFill.lineTo(startX, startY);
+        for (int i = 0; i < mPoints.size; i++) {
+            final float x = mPoints.x[i];
+            final float y = mVert.convertToPoint(mPoints.value[i]);
+            if (i == 0) {
+                mPathStroke.moveTo(x, y);
+                mPathFill.moveTo(x, y);
+            } else {
+                mPathStroke.lineTo(x, y);
+                mPathFill.lineTo(x, y);
             }
-
-            // always draw to end of current bucket
-            mPathStroke.lineTo(endX, endY);
-            mPathFill.lineTo(endX, endY);
-
-            lastX = endX;
-            lastY = endY;
-            lastTime = endTime;
         }
 
-        // when data falls short, extend to requested end time
-        if (lastTime < mEndTime) {
-            lastX = mHoriz.convertToPoint(mEndTime);
-
-            mPathStroke.lineTo(lastX, lastY);
-            mPathFill.lineTo(lastX, lastY);
-        }
+        float lastX = mPoints.x[mPoints.size - 1];
+        float lastY = mVert.convertToPoint(mMax);
+        final long lastTime = mPoints.lastTime;
+        long totalData = mMax;
 
         if (LOGD) {
             final RectF bounds = new RectF();
@@ -252,12 +251,11 @@ public class ChartNetworkSeriesView extends View {
         mPathFill.lineTo(lastX, height);
         mPathFill.lineTo(0, height);
 
-        mMax = totalData;
-
         if (ESTIMATE_ENABLED) {
             // build estimated data
             mPathEstimate.moveTo(lastX, lastY);
 
+            NetworkStatsHistory.Entry entry = null;
             final long now = System.currentTimeMillis();
             final long bucketDuration = mStats.getBucketDuration();
 
@@ -290,6 +288,72 @@ public class ChartNetworkSeriesView extends View {
         invalidate();
     }
 
+    /**
+     * Walk the buckets on screen into {@link #mPoints}, accumulating usage
+     * and recording the time the series ends.
+     */
+    private void generatePoints() {
+        mMax = 0;
+        mPoints.reset();
+
+        // bail when not enough stats to render
+        if (mStats == null || mStats.size() < 2) {
+            return;
+        }
+
+        float lastX = 0;
+        long lastTime = mHoriz.convertToValue(lastX);
+
+        // move into starting position
+        mPoints.add(lastX, 0);
+
+        // TODO: count fractional data from first bucket crossing start;
+        // currently it only accepts first full bucket.
+
+        long totalData = 0;
+
+        NetworkStatsHistory.Entry entry = null;
+
+        final int start = mStats.getIndexBefore(mStart);
+        final int end = mStats.getIndexAfter(mEnd);
+        for (int i = start; i <= end; i++) {
+            entry = mStats.getValues(i, entry);
+
+            final long startTime = entry.bucketStart;
+            final long endTime = startTime + entry.bucketDuration;
+
+            final float startX = mHoriz.convertToPoint(startTime);
+            final float endX = mHoriz.convertToPoint(endTime);
+
+            // skip until we find first stats on screen
+            if (endX < 0) continue;
+
+            if (lastTime != startTime) {
+                // gap in buckets; line to start of current bucket
+                mPoints.add(startX, totalData);
+            }
+
+            // increment by current bucket total
+            totalData += entry.rxBytes + entry.txBytes;
+
+            // always draw to end of current bucket
+            mPoints.add(endX, totalData);
+
+            lastX = endX;
+            lastTime = endTime;
+        }
+
+        // when data falls short, extend to requested end time
+        if (lastTime < mEndTime) {
+            lastX = mHoriz.convertToPoint(mEndTime);
+            mPoints.add(lastX, totalData);
+        }
+
+        mPoints.finish();
+        mPoints.lastTime = lastTime;
+        mMax = totalData;
+    }
+
     public void setEndTime(long endTime) {
         mEndTime = endTime;
     }
@@ -349,4 +413,144 @@ public class ChartNetworkSeriesView extends View {
         canvas.restoreToCount(save);
 
     }
+
+    /**
+     * Axis bounds and sizes the series was mapped with, compared by value.
+     */
+    private static final class Viewport {
+        long horizMin;
+        long horizMax;
+        float horizSize;
+        long start;
+        long end;
+        long endTime;
+        int width;
+        long vertMin;
+        long vertMax;
+        float vertSize;
+        int height;
+
+        void set(ChartNetworkSeriesView view) {
+            horizMin = view.mHoriz.getMin();
+            horizMax = view.mHoriz.getMax();
+            horizSize = view.mHoriz.getSize();
+            start = view.mStart;
+            end = view.mEnd;
+            endTime = view.mEndTime;
+            width = view.getWidth();
+            vertMin = view.mVert.getMin();
+            vertMax = view.mVert.getMax();
+            vertSize = view.mVert.getSize();
+            height = view.getHeight();
+        }
+
+        boolean sameHorizontal(Viewport other) {
+            return horizMin == other.horizMin && horizMax == other.horizMax
+                    && horizSize == other.horizSize && start == other.start
+                    && end == other.end && endTime == other.endTime && width == other.width;
+        }
+
+        boolean sameVertical(Viewport other) {
+            return vertMin == other.vertMin && vertMax == other.vertMax
+                    && vertSize == other.vertSize && height == other.height;
+        }
+    }
+
+    /**
+     * Points of a series, decimated to at most the first, lowest, highest
+     * and last point of each pixel column while they are added.  Usage is
+     * cumulative, so that is typically just where the series enters and
+     * leaves the column.
+     */
+    private static final class SeriesPoints {
+        float[] x = new float[64];
+        long[] value = new long[64];
+        int size;
+        long lastTime;
+
+        // Column being collected, in order of appearance
+        private int mColumn;
+        private int mCount;
+        private float mFirstX;
+        private float mMinX;
+        private float mMaxX;
+        private float mLastX;
+        private long mFirst;
+        private long mMin;
+        private long mMax;
+        private long mLast;
+        private int mMinOrder;
+        private int mMaxOrder;
+
+        void reset() {
+            size = 0;
+            mCount = 0;
+        }
+
+        void add(float pointX, long pointValue) {
+            final int column = (int) Math.floor(pointX);
+            if (mCount > 0 && column != mColumn) {
+                flush();
+            }
+            if (mCount == 0) {
+                mColumn = column;
+                mFirstX = mMinX = mMaxX = pointX;
+                mFirst = mMin = mMax = pointValue;
+                mMinOrder = mMaxOrder = 0;
+            } else if (pointValue < mMin) {
+                mMinX = pointX;
+                mMin = pointValue;
+                mMinOrder = mCount;
+            } else if (pointValue > mMax) {
+                mMaxX = pointX;
+                mMax = pointValue;
+                mMaxOrder = mCount;
+            }
+            mLastX = pointX;
+            mLast = pointValue;
+            mCount++;
+        }
+
+        /**
+         * Flush the last column, must be called once all points were added.
+         */
+        void finish() {
+            if (mCount > 0) {
+                flush();
+            }
+        }
+
+        private void flush() {
+            append(mFirstX, mFirst);
+            final int last = mCount - 1;
+            if (mMinOrder < mMaxOrder) {
+                appendInside(mMinOrder, last, mMinX, mMin);
+                appendInside(mMaxOrder, last, mMaxX, mMax);
+            } else {
+                appendInside(mMaxOrder, last, mMaxX, mMax);
+                appendInside(mMinOrder, last, mMinX, mMin);
+            }
+            if (last > 0) {
+                append(mLastX, mLast);
+            }
+            mCount = 0;
+        }
+
+        private void appendInside(int order, int last, float pointX, long pointValue) {
+            // first and last points of the column are appended anyway
+            if (order > 0 && order < last) {
+                append(pointX, pointValue);
+            }
+        }
+
+        private void append(float pointX, long pointValue) {
+            if (size == x.length) {
+                x = Arrays.copyOf(x, size * 2);
+                value = Arrays.copyOf(value, size * 2);
+            }
+            x[size] = pointX;
+            value[size] = pointValue;
+            size++;
+        }
+    }
 }
@@ -41,6 +41,21 @@ public class InvertedChartAxis implements ChartAxis {
         return mWrapped.setSize(size);
     }
 
+    @Override
+    public long getMin() {
+        return mWrapped.getMin();
+    }
+
+    @Override
+    public long getMax() {
+        return mWrapped.getMax();
+    }
+
+    @Override
+    public float getSize() {
+        return mSize;
+    }
+
     @Override
     public float convertToPoint(long value) {
         return mSize - mWrapped.convertToPoint(value);
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.pm.ApplicationInfo;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+
+/**
+ * Compares sorting app entries by precomputed collation keys against
+ * collating the labels in every comparison, as ApplicationsState used to.
+ *
+ * Timings are only logged: adb logcat -s AppEntrySortBenchmark
+ */
+@LargeTest
+public class AppEntrySortBenchmark extends AndroidTestCase {
+    private static final String TAG = "AppEntrySortBenchmark";
+
+    private static final int ITERATIONS = 20;
+
+    private static final String[] WORDS = {
+        "Mail", "Calendar", "Clock", "Camera", "Gallery", "Music", "Maps",
+        "Browser", "Settings", "Contacts", "Phone", "Messaging", "Keyboard",
+        "Caf\u00e9", "\u00c9lan", "\u00dcber", "\u00c4rzte", "\u00d1and\u00fa", "\u00d8re",
+        "\u00c5ngstr\u00f6m", "Zo\u00eb",
+    };
+
+    private final Collator mCollator = Collator.getInstance();
+
+    // What the comparators did before labels had collation keys
+    private final Comparator<ApplicationsState.AppEntry> mCollatingComparator =
+            new Comparator<ApplicationsState.AppEntry>() {
+        @Override
+        public int compare(ApplicationsState.AppEntry object1,
+                ApplicationsState.AppEntry object2) {
+            return mCollator.compare(object1.label, object2.label);
+        }
+    };
+
+    private final Comparator<ApplicationsState.AppEntry> mKeyComparator =
+            new Comparator<ApplicationsState.AppEntry>() {
+        @Override
+        public int compare(ApplicationsState.AppEntry object1,
+                ApplicationsState.AppEntry object2) {
+            return ApplicationsState.compareLabels(object1, object2);
+        }
+    };
+
+    public void testSort200() {
+        runBenchmark(200);
+    }
+
+    public void testSort1000() {
+        runBenchmark(1000);
+    }
+
+    public void testSort5000() {
+        runBenchmark(5000);
+    }
+
+    private void runBenchmark(int count) {
+        ArrayList<ApplicationsState.AppEntry> entries = createEntries(count);
+
+        long collating = 0;
+        long keyed = 0;
+        ArrayList<ApplicationsState.AppEntry> sortedByCollator = null;
+        ArrayList<ApplicationsState.AppEntry> sortedByKey = null;
+        for (int i = 0; i < ITERATIONS; i++) {
+            sortedByCollator = new ArrayList<ApplicationsState.AppEntry>(entries);
+            long start = SystemClock.elapsedRealtimeNanos();
+            Collections.sort(sortedByCollator, mCollatingComparator);
+            collating += SystemClock.elapsedRealtimeNanos() - start;
+
+            sortedByKey = new ArrayList<ApplicationsState.AppEntry>(entries);
+            start = SystemClock.elapsedRealtimeNanos();
+            Collections.sort(sortedByKey, mKeyComparator);
+            keyed += SystemClock.elapsedRealtimeNanos() - start;
+        }
+
+        for (int i = 0; i < count; i++) {
+            assertEquals(0, mCollator.compare(sortedByCollator.get(i).label,
+                    sortedByKey.get(i).label));
+        }
+
+        Log.i(TAG, count + " entries: Collator.compare "
+                + (collating / ITERATIONS / 1000) + "us, CollationKey "
+                + (keyed / ITERATIONS / 1000) + "us per sort");
+    }
+
+    private ArrayList<ApplicationsState.AppEntry> createEntries(int count) {
+        Random random = new Random(count);
+        ArrayList<ApplicationsState.AppEntry> entries =
+                new ArrayList<ApplicationsState.AppEntry>(count);
+        for (int i = 0; i < count; i++) {
+            ApplicationInfo info = new ApplicationInfo();
+            info.packageName = "com.example.app" + i;
+            info.sourceDir = "/data/app/" + info.packageName + ".apk";
+            ApplicationsState.AppEntry entry =
+                    new ApplicationsState.AppEntry(getContext(), info, i);
+            String label = WORDS[random.nextInt(WORDS.length)] + " "
+                    + WORDS[random.nextInt(WORDS.length)] + " " + i;
+            synchronized (entry) {
+                entry.setLabelLocked(label);
+            }
+            entries.add(entry);
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,11 @@
+LOCAL_PATH:= $(call my-dir)
+include $(CLEAR_VARS)
+
+# Host tool pre-parsing the preference xml files into the generated search
+# index class, see SearchIndexCompiler.
+LOCAL_MODULE := settings-searchindex
+LOCAL_MODULE_TAGS := optional
+
+LOCAL_SRC_FILES := $(call all-java-files-under, src)
+
+include $(BUILD_HOST_JAVA_LIBRARY)
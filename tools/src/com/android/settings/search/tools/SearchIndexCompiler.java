@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2014 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search.tools;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.NodeList;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+/**
+ * Host tool which pre-parses the preference xml files of the Settings app
+ * into the SearchIndexData class read by PrecompiledSearchIndex.
+ *
+ * Usage: SearchIndexCompiler <output java file> <res dir>...
+ *
+ * Resource directories are given in overlay order, highest priority first.
+ * Only files whose contents are known for every configuration are written;
+ * anything else is left for the app to parse at runtime.  Titles and
+ * included files are written as R fields, so javac resolves them to
+ * resource ids and the app doesn't have to look them up by name.
+ */
+public class SearchIndexCompiler {
+    private static final String ANDROID_NS = "http://schemas.android.com/apk/res/android";
+
+    // Keep in sync with PrecompiledSearchIndex
+    private static final String PACKAGE = "com.android.settings.search";
+    private static final String CLASS_NAME = "SearchIndexData";
+    private static final String PREFERENCE_CLASS = "Preference";
+
+    private static class Preference {
+        boolean excludeFromSearch;
+        // R field of the title, or null if it is a literal
+        String titleRes;
+        String title;
+        String key;
+        String fragment;
+        // R field of the included xml file
+        String includeXmlRes;
+    }
+
+    /** Thrown for files that can't be represented in the index. */
+    private static class UnsupportedException extends Exception {
+        UnsupportedException(String message) {
+            super(message);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("usage: SearchIndexCompiler <output java file> <res dir>...");
+            System.exit(1);
+        }
+
+        Map<String, File> files = new TreeMap<String, File>();
+        HashSet<String> qualified = new HashSet<String>();
+        for (int i = 1; i < args.length; i++) {
+            collectFiles(new File(args[i]), files, qualified);
+        }
+
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        DocumentBuilder builder = factory.newDocumentBuilder();
+
+        Map<String, List<Preference>> compiled = new TreeMap<String, List<Preference>>();
+        for (Map.Entry<String, File> entry : files.entrySet()) {
+            String name = entry.getKey();
+            if (qualified.contains(name)) {
+                continue;
+            }
+            Document document = builder.parse(entry.getValue());
+            if (!"PreferenceScreen".equals(document.getDocumentElement().getTagName())) {
+                continue;
+            }
+            try {
+                compiled.put(name, compileFile(document.getDocumentElement()));
+            } catch (UnsupportedException e) {
+                System.err.println("SearchIndexCompiler: skipping " + entry.getValue()
+                        + ": " + e.getMessage());
+            }
+        }
+
+        writeIndex(new File(args[0]), compiled);
+    }
+
+    private static void collectFiles(File resDir, Map<String, File> files,
+            HashSet<String> qualified) {
+        File[] dirs = resDir.listFiles();
+        if (dirs == null) {
+            return;
+        }
+        for (File dir : dirs) {
+            File[] xmlFiles = dir.listFiles();
+            if (xmlFiles == null) {
+                continue;
+            }
+            boolean isDefault = dir.getName().equals("xml");
+            if (!isDefault && !dir.getName().startsWith("xml-")) {
+                continue;
+            }
+            for (File file : xmlFiles) {
+                String name = file.getName();
+                if (!name.endsWith(".xml")) {
+                    continue;
+                }
+                name = name.substring(0, name.length() - 4);
+                if (!isDefault) {
+                    qualified.add(name);
+                } else if (!files.containsKey(name)) {
+                    files.put(name, file);
+                }
+            }
+        }
+    }
+
+    private static List<Preference> compileFile(Element root) throws UnsupportedException {
+        ArrayList<Preference> prefs = new ArrayList<Preference>();
+        // all descendants in document order, like the runtime parser visits them
+        NodeList elements = root.getElementsByTagName("*");
+        for (int i = 0; i < elements.getLength(); i++) {
+            Element element = (Element) elements.item(i);
+            if (element.hasAttribute("style")) {
+                throw new UnsupportedException("styled element " + element.getTagName());
+            }
+
+            Preference pref = new Preference();
+            String title = getAndroidAttribute(element, "title");
+            if (title != null) {
+                pref.titleRes = getReference(title, "string");
+                if (pref.titleRes == null) {
+                    pref.title = getLiteral(title);
+                }
+            }
+            String key = getAndroidAttribute(element, "key");
+            if (key != null) {
+                pref.key = getLiteral(key);
+            }
+            String fragment = getAndroidAttribute(element, "fragment");
+            if (fragment != null) {
+                pref.fragment = getLiteral(fragment);
+            }
+            String include = getSettingsAttribute(element, "includeXmlForSearch");
+            if (include != null) {
+                pref.includeXmlRes = getReference(include, "xml");
+                if (pref.includeXmlRes == null) {
+                    throw new UnsupportedException("unexpected include " + include);
+                }
+            }
+            String exclude = getSettingsAttribute(element, "excludeFromSearch");
+            if ("true".equals(exclude)) {
+                pref.excludeFromSearch = true;
+            } else if (exclude != null && !"false".equals(exclude)) {
+                throw new UnsupportedException("unexpected excludeFromSearch " + exclude);
+            }
+            prefs.add(pref);
+        }
+        return prefs;
+    }
+
+    private static String getAndroidAttribute(Element element, String name) {
+        Attr attr = element.getAttributeNodeNS(ANDROID_NS, name);
+        return attr != null ? attr.getValue() : null;
+    }
+
+    private static String getSettingsAttribute(Element element, String name) {
+        NamedNodeMap attrs = element.getAttributes();
+        for (int i = 0; i < attrs.getLength(); i++) {
+            Attr attr = (Attr) attrs.item(i);
+            if (name.equals(attr.getLocalName()) && attr.getNamespaceURI() != null
+                    && !ANDROID_NS.equals(attr.getNamespaceURI())) {
+                return attr.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Turn "@type/name", "@android:type/name" or "@*android:type/name" into
+     * the matching field of the app, public or internal framework R class.
+     * @return the field, or null if the value is a literal
+     */
+    private static String getReference(String value, String type)
+            throws UnsupportedException {
+        if (value.startsWith("?")) {
+            throw new UnsupportedException("theme attribute " + value);
+        }
+        if (!value.startsWith("@")) {
+            return null;
+        }
+        String rClass;
+        String ref;
+        if (value.startsWith("@*android:")) {
+            rClass = "com.android.internal.R";
+            ref = value.substring("@*android:".length());
+        } else if (value.startsWith("@android:")) {
+            rClass = "android.R";
+            ref = value.substring("@android:".length());
+        } else if (value.indexOf(':') < 0) {
+            rClass = "R";
+            ref = value.substring(1);
+        } else {
+            throw new UnsupportedException("unexpected package " + value);
+        }
+        if (!ref.startsWith(type + "/")) {
+            throw new UnsupportedException("unexpected reference " + value);
+        }
+        // resource names may contain dots, field names have underscores
+        return rClass + "." + type + "."
+                + ref.substring(type.length() + 1).replace('.', '_');
+    }
+
+    /**
+     * Literal strings are copied as is; anything aapt would have to
+     * process first is not supported.
+     */
+    private static String getLiteral(String value) throws UnsupportedException {
+        if (value.startsWith("@") || value.startsWith("?")
+                || value.indexOf('\\') >= 0 || value.indexOf('"') >= 0) {
+            throw new UnsupportedException("unsupported value " + value);
+        }
+        return value;
+    }
+
+    /**
+     * Write the index as a class with one method per file, to stay clear
+     * of the method size limit.
+     */
+    private static void writeIndex(File output, Map<String, List<Preference>> compiled)
+            throws IOException {
+        File parent = output.getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(output)));
+        try {
+            out.println("// Generated by SearchIndexCompiler, do not edit.");
+            out.println("package " + PACKAGE + ";");
+            out.println();
+            out.println("import android.util.SparseArray;");
+            out.println();
+            out.println("import com.android.settings.R;");
+            out.println("import " + PACKAGE + ".PrecompiledSearchIndex.Preference;");
+            out.println();
+            out.println("final class " + CLASS_NAME + " {");
+            out.println("    private " + CLASS_NAME + "() {");
+            out.println("    }");
+            out.println();
+            out.println("    static void load(SparseArray<" + PREFERENCE_CLASS + "[]> files) {");
+            for (int i = 0; i < compiled.size(); i++) {
+                out.println("        loadFile" + i + "(files);");
+            }
+            out.println("    }");
+
+            int fileIndex = 0;
+            for (Map.Entry<String, List<Preference>> entry : compiled.entrySet()) {
+                out.println();
+                out.println("    private static void loadFile" + fileIndex++ + "(SparseArray<"
+                        + PREFERENCE_CLASS + "[]> files) {");
+                out.println("        files.put(R.xml."
+                        + entry.getKey().replace('.', '_') + ", new "
+                        + PREFERENCE_CLASS + "[] {");
+                for (Preference pref : entry.getValue()) {
+                    out.println("            new " + PREFERENCE_CLASS + "("
+                            + pref.excludeFromSearch + ", "
+                            + (pref.titleRes != null ? pref.titleRes : "0") + ", "
+                            + toJavaString(pref.title) + ", "
+                            + toJavaString(pref.key) + ", "
+                            + toJavaString(pref.fragment) + ", "
+                            + (pref.includeXmlRes != null ? pref.includeXmlRes : "0") + "),");
+                }
+                out.println("        });");
+                out.println("    }");
+            }
+            out.println("}");
+        } finally {
+            out.close();
+        }
+        if (out.checkError()) {
+            throw new IOException("Unable to write " + output);
+        }
+    }
+
+    private static String toJavaString(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                // octal; javac translates unicode escapes before parsing
+                sb.append(String.format("\\%03o", (int) c));
+            } else if (c > 0x7e) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}